@@ -15,15 +15,28 @@
  */
 package org.glowroot.zipkin;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.weaving.AgentSPI;
 import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
 import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.model.NopThreadContext;
 import org.glowroot.zipkin.model.SpanContext;
 import org.glowroot.zipkin.model.SpanImpl;
 import org.glowroot.zipkin.model.ThreadContextImpl;
+import org.glowroot.zipkin.model.TimerTable;
+import org.glowroot.zipkin.propagation.B3Context;
+import org.glowroot.zipkin.propagation.B3Propagation;
+import org.glowroot.zipkin.propagation.Getter;
+import org.glowroot.zipkin.reporter.SpanRecord;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.sampler.TailSampler;
+import org.glowroot.zipkin.sampler.TraceBuffer;
 import org.glowroot.zipkin.util.Global;
+import org.glowroot.zipkin.util.TraceClock;
 
 class AgentImpl implements AgentSPI {
 
@@ -36,29 +49,130 @@ class AgentImpl implements AgentSPI {
             MessageSupplier messageSupplier, TimerName timerName,
             ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
             int rootSuppressionKeyId) {
+        return startIncomingSpan(messageSupplier, timerName, threadContextHolder,
+                rootNestingGroupId, rootSuppressionKeyId, null);
+    }
+
+    // same as above, but continues the trace from the incoming carrier (e.g. http request
+    // headers) if it contains B3 headers, see Propagation
+    <C> Span startIncomingSpan(String transactionType, String transactionName, Getter<C> getter,
+            C carrier, MessageSupplier messageSupplier, TimerName timerName,
+            ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
+            int rootSuppressionKeyId) {
+        return startIncomingSpan(messageSupplier, timerName, threadContextHolder,
+                rootNestingGroupId, rootSuppressionKeyId, B3Propagation.extract(getter, carrier));
+    }
+
+    private Span startIncomingSpan(MessageSupplier messageSupplier, TimerName timerName,
+            ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
+            int rootSuppressionKeyId, @Nullable B3Context extracted) {
 
         long id = Global.nextId();
-        SpanContext spanContext = new SpanContext(0, id, id, id);
+        long traceIdHigh;
+        long traceId;
+        long parentSpanId;
+        if (extracted != null && extracted.getTraceId() != 0) {
+            traceIdHigh = extracted.getTraceIdHigh();
+            traceId = extracted.getTraceId();
+            parentSpanId = extracted.getSpanId();
+        } else {
+            traceIdHigh = Global.nextTraceIdHigh();
+            traceId = id;
+            parentSpanId = 0;
+        }
+        if (!isSampled(extracted, traceId)) {
+            Global.getMetrics().traceNotSampled();
+            NopThreadContext threadContext = new NopThreadContext(threadContextHolder,
+                    rootNestingGroupId, rootSuppressionKeyId);
+            threadContextHolder.set(threadContext);
+            return threadContext;
+        }
+        SpanContext spanContext = new SpanContext(traceIdHigh, traceId, parentSpanId, id);
+        TraceClock clock = new TraceClock();
+        TailSampler tailSampler = Global.getTailSampler();
+        TraceBuffer traceBuffer =
+                tailSampler == null ? null : tailSampler.newTraceBuffer(traceId);
+        TimerTable traceTimers = Global.isTimerAggregation() ? new TimerTable() : null;
         ThreadContextImpl threadContext = new ThreadContextImpl(threadContextHolder, spanContext,
-                null, rootNestingGroupId, rootSuppressionKeyId);
+                clock, traceBuffer, traceTimers, null, rootNestingGroupId, rootSuppressionKeyId);
         threadContextHolder.set(threadContext);
 
-        return new RootTraceEntryImpl(spanContext, messageSupplier, threadContextHolder);
+        return new RootTraceEntryImpl(threadContext, parentSpanId, id,
+                threadContext.getTimerIndex(timerName), messageSupplier, threadContextHolder);
+    }
+
+    // the upstream sampling decision is honored if there is one, even while the overhead governor
+    // is throttling
+    private static boolean isSampled(@Nullable B3Context extracted, long traceId) {
+        if (extracted != null) {
+            int sampling = extracted.getSampling();
+            if (sampling == B3Context.SAMPLING_SAMPLED) {
+                return true;
+            } else if (sampling == B3Context.SAMPLING_NOT_SAMPLED) {
+                return false;
+            }
+        }
+        if (!Global.getSampler().isSampled(traceId)) {
+            return false;
+        }
+        OverheadGovernor overheadGovernor = Global.getOverheadGovernor();
+        return overheadGovernor == null || overheadGovernor.isSampled(traceId);
     }
 
     private static class RootTraceEntryImpl extends SpanImpl {
 
         private final ThreadContextThreadLocal.Holder threadContextHolder;
 
-        public RootTraceEntryImpl(SpanContext spanContext, MessageSupplier messageSupplier,
+        // the trace's timers, including those of aux threads that have already ended
+        private @Nullable TimerTable timers;
+
+        // with tail sampling, the root span is handed to the trace buffer when it completes
+        private long rootDurationMicros;
+        private boolean rootError;
+
+        public RootTraceEntryImpl(ThreadContextImpl threadContext, long parentSpanId,
+                long spanId, int timerIndex, MessageSupplier messageSupplier,
                 ThreadContextThreadLocal.Holder threadContextHolder) {
-            super(spanContext, "", messageSupplier);
+            super(threadContext, parentSpanId, spanId, timerIndex, AgentMetrics.INCOMING, "",
+                    messageSupplier);
             this.threadContextHolder = threadContextHolder;
         }
 
+        @Override
+        protected void preFinish() {
+            timers = getThreadContext().flushTimers();
+            if (timers != null) {
+                timers.close();
+            }
+        }
+
+        @Override
+        public void writeTo(SpanRecord record) {
+            super.writeTo(record);
+            if (timers != null) {
+                timers.putTags(record);
+            }
+        }
+
+        @Override
+        protected void report(long durationMicros, boolean error) {
+            if (getTraceBuffer() == null) {
+                super.report(durationMicros, error);
+            } else {
+                rootDurationMicros = durationMicros;
+                rootError = error;
+            }
+        }
+
         @Override
         protected void postFinish() {
+            getThreadContext().flushQueryAggregates();
             threadContextHolder.set(null);
+            TraceBuffer traceBuffer = getTraceBuffer();
+            if (traceBuffer != null) {
+                traceBuffer.complete(this, rootDurationMicros, rootError);
+            }
+            Global.flushSpans();
         }
     }
 }
@@ -15,26 +15,81 @@
  */
 package org.glowroot.zipkin;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.codec.Encoding;
 import zipkin2.reporter.AsyncReporter;
 import zipkin2.reporter.Reporter;
 import zipkin2.reporter.Sender;
 import zipkin2.reporter.okhttp3.OkHttpSender;
 
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.init.EngineModule;
 import org.glowroot.xyzzy.engine.init.MainEntryPointUtil;
+import org.glowroot.zipkin.config.AgentConfig;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.propagation.B3Propagation;
+import org.glowroot.zipkin.reporter.EncodedSpanEncoder;
+import org.glowroot.zipkin.reporter.LazyReporter;
+import org.glowroot.zipkin.reporter.MeteredSender;
+import org.glowroot.zipkin.reporter.SpanHandoff;
+import org.glowroot.zipkin.reporter.SpanRecordEncoder;
+import org.glowroot.zipkin.reporter.SpoolingSender;
+import org.glowroot.zipkin.reporter.StripedReporter;
+import org.glowroot.zipkin.reporter.WaitStrategy;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.sampler.TailSampler;
+import org.glowroot.zipkin.util.CompactThreadContextThreadLocal;
 import org.glowroot.zipkin.util.Global;
+import org.glowroot.zipkin.util.IdGenerator;
+import org.glowroot.zipkin.util.QueryNormalizer;
+import org.glowroot.zipkin.weaving.InstrumentationModules;
+import org.glowroot.zipkin.weaving.MeteredInstrumentation;
+import org.glowroot.zipkin.weaving.WeavingCache;
+import org.glowroot.zipkin.weaving.WeavingCost;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class MainEntryPoint {
 
-    private static boolean USE_CONSOLE_REPORTER = true;
+    private static final String DEFAULT_ENDPOINT = "http://127.0.0.1:9411/api/v2/spans";
+
+    private static final String SPOOL_FILE_NAME = "zipkin-agent.spool";
+
+    private static final String WEAVING_CACHE_DIR_NAME = "weaving-cache";
+
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_MILLIS = 5000;
+
+    // interval between attempts to start the http reporter, see LazyReporter
+    private static final long REPORTER_RETRY_MILLIS = 30000;
+
+    private static final String METRICS_OBJECT_NAME = "org.glowroot.zipkin:type=AgentMetrics";
+
+    private static final String WEAVING_COST_OBJECT_NAME = "org.glowroot.zipkin:type=WeavingCost";
 
     private MainEntryPoint() {}
 
-    public static void premain(Instrumentation instrumentation, File agentJarFile) {
+    // startTick is when Premain was entered, before the agent jar was appended to the bootstrap
+    // class path
+    public static void premain(Instrumentation instrumentation, File agentJarFile,
+            @Nullable String agentArgs, long startTick) {
         // DO NOT USE ANY GUAVA CLASSES before initLogging() because they trigger loading of jul
         // (and thus org.glowroot.xyzzy.engine.jul.Logger and thus glowroot's shaded slf4j)
         Logger startupLogger;
@@ -48,29 +103,341 @@ public class MainEntryPoint {
             return;
         }
         try {
-            start(instrumentation, agentJarFile);
+            start(instrumentation, agentJarFile, agentArgs);
+            startupLogger.info("Agent started in {} ms ({} classes loaded)",
+                    NANOSECONDS.toMillis(System.nanoTime() - startTick),
+                    instrumentation.getAllLoadedClasses().length);
         } catch (Throwable t) {
             // log error but don't re-throw which would prevent monitored app from starting
             startupLogger.error("Agent failed to start: {}", t.getMessage(), t);
         }
     }
 
-    private static void start(Instrumentation instrumentation, File agentJarFile) throws Exception {
+    private static void start(Instrumentation instrumentation, File agentJarFile,
+            @Nullable String agentArgs) throws Exception {
+
+        AgentConfig config = AgentConfig.create(agentArgs, agentJarFile.getParentFile());
+        initTracing(config);
 
         // FIXME simple way to avoid conflict when multiple java processes being monitored
         File tmpDir = new File(agentJarFile.getParentFile(), "tmp");
 
         AgentImpl agent = new AgentImpl();
 
-        EngineModule.createWithSomeDefaults(instrumentation, tmpDir,
+        // the engine registers its weaving transformer through this instrumentation
+        WeavingCost weavingCost = new WeavingCost();
+        Instrumentation meteredInstrumentation = MeteredInstrumentation.create(instrumentation,
+                InstrumentationModules.create(config), weavingCost,
+                createWeavingCache(config, agentJarFile, tmpDir));
+
+        EngineModule.createWithSomeDefaults(meteredInstrumentation, tmpDir,
                 Global.getThreadContextThreadLocal(), new XyzzyServiceImpl(), agent,
                 agentJarFile);
 
-        if (USE_CONSOLE_REPORTER) {
-            Global.setReporter(Reporter.CONSOLE);
+        initReporting(config, tmpDir);
+        if (config.getBooleanProperty("jmx", true)) {
+            registerMBeansInBackground(weavingCost);
+        }
+    }
+
+    // everything that spans depend on while they are being started and ended
+    static void initTracing(AgentConfig config) {
+        Global.setThreadContextThreadLocal(createThreadContextThreadLocal(config));
+        Global.setIdGenerator(IdGenerator.create(config.getProperty("idGenerator", "threadLocal"),
+                config.getBooleanProperty("traceId128Bit", false)));
+        Global.setSampler(Sampler.create(config.getDoubleProperty("samplingProbability", 1.0),
+                config.getIntProperty("samplingTracesPerSecond", 0)));
+        Global.setPropagation(B3Propagation.create(config.getProperty("propagation", "b3multi")));
+        long localSpanThresholdMillis = config.getLongProperty("localSpanThresholdMillis", 100);
+        Global.setLocalSpanThresholdNanos(localSpanThresholdMillis < 0 ? -1
+                : MILLISECONDS.toNanos(localSpanThresholdMillis));
+        Global.setQueryAggregation(config.getBooleanProperty("queryAggregation", false));
+        Global.setTimerAggregation(config.getBooleanProperty("timerAggregation", false));
+        if (config.getBooleanProperty("queryNormalization", false)) {
+            Global.setQueryNormalizer(new QueryNormalizer(
+                    config.getIntProperty("queryNormalizationCacheSize", 10000),
+                    config.getIntProperty("queryNormalizationMaxNames", 1000)));
+        }
+        if (config.getBooleanProperty("tailSampling", false)) {
+            Global.setTailSampler(new TailSampler(
+                    config.getBooleanProperty("tailSamplingKeepErrors", true),
+                    MILLISECONDS.toMicros(
+                            config.getLongProperty("tailSamplingDurationThresholdMillis", 1000)),
+                    config.getDoubleProperty("tailSamplingProbability", 0.0),
+                    config.getIntProperty("tailSamplingMaxBufferedSpans", 100000),
+                    config.getIntProperty("tailSamplingMaxSpansPerTrace", 1000),
+                    config.getIntProperty("tailSamplingMaxPendingTraces", 10000)));
+        }
+    }
+
+    // the http reporter's configuration is validated here, but its threads, connections and spool
+    // file are only created once the first span is reported, see HttpReporter
+    static void initReporting(AgentConfig config, File tmpDir) throws Exception {
+        Encoding encoding = getEncoding(config);
+        SpanRecordEncoder spanEncoder = SpanRecordEncoder.forEncoding(encoding);
+        Reporter<byte[]> reporter;
+        String reporterType = config.getProperty("reporter", "console");
+        if (reporterType.equals("console")) {
+            if (encoding != Encoding.JSON) {
+                throw new IllegalArgumentException("Console reporter requires JSON encoding");
+            }
+            reporter = new ConsoleReporter();
+        } else if (reporterType.equals("http")) {
+            reporter = new HttpReporter(config, encoding, tmpDir);
+        } else {
+            throw new IllegalArgumentException("Unexpected reporter: " + reporterType);
+        }
+        Global.setSpanEncoder(spanEncoder);
+        Global.setReporter(reporter);
+        AgentMetrics metrics = Global.getMetrics();
+        SpanHandoff spanHandoff = new SpanHandoff(spanEncoder, reporter,
+                config.getIntProperty("pendingMaxSpans", 10000),
+                config.getIntProperty("handoffBatchSize", 8), getWaitStrategy(config), metrics);
+        metrics.setSpanHandoff(spanHandoff);
+        Global.setSpanHandoff(spanHandoff);
+        addShutdownHook(spanHandoff, reporter);
+        if (config.getBooleanProperty("governor", false)) {
+            OverheadGovernor overheadGovernor = new OverheadGovernor(metrics,
+                    config.getIntProperty("governorMaxSpansPerSecond", 0),
+                    config.getDoubleProperty("governorMaxQueueFill", 0.5),
+                    config.getDoubleProperty("governorMaxCpuPercent", 0),
+                    spanHandoff.getCapacity(), config.getIntProperty("queuedMaxSpans", 10000));
+            Global.setOverheadGovernor(overheadGovernor);
+            overheadGovernor.start(config.getLongProperty("governorIntervalMillis", 1000));
+        }
+    }
+
+    // reports the spans that are still in the handoff (including the batches of threads that are
+    // still running), and then the spans queued in the reporter, instead of losing them at exit
+    private static void addShutdownHook(final SpanHandoff spanHandoff,
+            final Reporter<byte[]> reporter) {
+        final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                spanHandoff.close();
+                try {
+                    if (reporter instanceof Flushable) {
+                        ((Flushable) reporter).flush();
+                    }
+                    if (reporter instanceof Closeable) {
+                        ((Closeable) reporter).close();
+                    }
+                } catch (Throwable t) {
+                    LoggerFactory.getLogger(MainEntryPoint.class).warn(t.getMessage(), t);
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the flush sends synchronously, so it must not hold up the JVM exit for long
+                // when the collector is slow or down
+                Thread thread = new Thread(flush, "Zipkin-Agent-Shutdown-Flush");
+                thread.setDaemon(true);
+                thread.start();
+                try {
+                    thread.join(SHUTDOWN_FLUSH_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Zipkin-Agent-Shutdown"));
+    }
+
+    // creating the platform mbean server loads several hundred classes, which would otherwise
+    // roughly double the time spent in premain
+    static void registerMBeansInBackground(final WeavingCost weavingCost) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                    mbeanServer.registerMBean(Global.getMetrics(),
+                            new ObjectName(METRICS_OBJECT_NAME));
+                    mbeanServer.registerMBean(weavingCost,
+                            new ObjectName(WEAVING_COST_OBJECT_NAME));
+                } catch (Throwable t) {
+                    LoggerFactory.getLogger(MainEntryPoint.class).error(t.getMessage(), t);
+                }
+            }
+        }, "Zipkin-Agent-Jmx-Init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static @Nullable WeavingCache createWeavingCache(AgentConfig config,
+            File agentJarFile, File tmpDir) {
+        if (!config.getBooleanProperty("weavingCache", false)) {
+            return null;
+        }
+        int maxEntries = config.getIntProperty("weavingCacheMaxEntries", 1000000);
+        try {
+            return WeavingCache.open(new File(tmpDir, WEAVING_CACHE_DIR_NAME),
+                    WeavingCache.fingerprint(agentJarFile, System.getProperty("java.class.path")),
+                    maxEntries);
+        } catch (IOException e) {
+            LoggerFactory.getLogger(MainEntryPoint.class)
+                    .warn("Weaving cache disabled: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static ThreadContextThreadLocal createThreadContextThreadLocal(AgentConfig config) {
+        String storage = config.getProperty("threadContextStorage", "threadLocal");
+        if (storage.equals("threadLocal")) {
+            return new ThreadContextThreadLocal();
+        } else if (storage.equals("compact")) {
+            return new CompactThreadContextThreadLocal();
         } else {
-            Sender sender = OkHttpSender.create("http://127.0.0.1:9411/api/v2/spans");
-            Global.setReporter(AsyncReporter.create(sender));
+            throw new IllegalArgumentException("Unexpected thread context storage: " + storage);
+        }
+    }
+
+    private static WaitStrategy getWaitStrategy(AgentConfig config) {
+        String waitStrategy = config.getProperty("handoffWaitStrategy", "sleep");
+        try {
+            return WaitStrategy.valueOf(waitStrategy.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unexpected handoff wait strategy: " + waitStrategy);
+        }
+    }
+
+    private static Encoding getEncoding(AgentConfig config) {
+        String encoding = config.getProperty("encoding", "JSON");
+        try {
+            return Encoding.valueOf(encoding.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unexpected encoding: " + encoding);
+        }
+    }
+
+    // same as zipkin2.reporter.Reporter.CONSOLE, but for spans that are already encoded as json
+    private static class ConsoleReporter implements Reporter<byte[]> {
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        @Override
+        public void report(byte[] encodedSpan) {
+            System.out.println(new String(encodedSpan, UTF_8));
+        }
+    }
+
+    // the configuration is read and validated (including the endpoint, by the okhttp sender
+    // builder) up front, so that a bad configuration fails agent startup instead of the first span
+    private static class HttpReporter extends LazyReporter {
+
+        private final OkHttpSender.Builder senderBuilder;
+        private final Encoding encoding;
+        private final int senderThreads;
+        private final int queuedMaxSpans;
+        private final int queuedMaxBytes;
+        private final long messageTimeoutMillis;
+
+        private final @Nullable File spoolFile;
+        private final int spoolMaxBytes;
+        private final long spoolRetryMillis;
+        private final int spoolMaxRetries;
+
+        private HttpReporter(AgentConfig config, Encoding encoding, File tmpDir) {
+            super(Global.getMetrics(), REPORTER_RETRY_MILLIS);
+            this.encoding = encoding;
+            senderThreads = config.getIntProperty("senderThreads", 1);
+            if (senderThreads < 1) {
+                throw new IllegalArgumentException("senderThreads must be at least 1");
+            }
+            senderBuilder = OkHttpSender.newBuilder()
+                    .endpoint(config.getProperty("endpoint", DEFAULT_ENDPOINT))
+                    .encoding(encoding)
+                    .maxRequests(Math.max(senderThreads, 64));
+            Integer messageMaxBytes = config.getIntProperty("messageMaxBytes");
+            if (messageMaxBytes != null) {
+                if (messageMaxBytes < 1) {
+                    throw new IllegalArgumentException("messageMaxBytes must be at least 1");
+                }
+                senderBuilder.messageMaxBytes(messageMaxBytes);
+            }
+            // the queue limits are for the agent as a whole, so they are divided among sender
+            // threads
+            queuedMaxSpans = config.getIntProperty("queuedMaxSpans", 10000) / senderThreads;
+            if (queuedMaxSpans < 1) {
+                throw new IllegalArgumentException(
+                        "queuedMaxSpans must be at least senderThreads");
+            }
+            Integer queuedMaxBytes = config.getIntProperty("queuedMaxBytes");
+            if (queuedMaxBytes == null) {
+                // 1% of max heap, AsyncReporter's own default is 1% of totalMemory(), which is only
+                // the heap size at the time, and is usually much smaller early in startup
+                queuedMaxBytes = (int) Math.min(Integer.MAX_VALUE,
+                        (long) (Runtime.getRuntime().maxMemory() * 0.01));
+            } else if (queuedMaxBytes < 1) {
+                throw new IllegalArgumentException("queuedMaxBytes must be at least 1");
+            }
+            this.queuedMaxBytes = queuedMaxBytes / senderThreads;
+            messageTimeoutMillis = config.getLongProperty("messageTimeoutMillis", 1000);
+            if (messageTimeoutMillis < 0) {
+                throw new IllegalArgumentException("messageTimeoutMillis must not be negative");
+            }
+            if (config.getBooleanProperty("spool", false)) {
+                spoolFile = new File(tmpDir, SPOOL_FILE_NAME);
+                spoolMaxBytes = config.getIntProperty("spoolMaxBytes", 64 * 1024 * 1024);
+                if (spoolMaxBytes < 1) {
+                    throw new IllegalArgumentException("spoolMaxBytes must be at least 1");
+                }
+                spoolRetryMillis = config.getLongProperty("spoolRetryMillis", 5000);
+                if (spoolRetryMillis < 0) {
+                    throw new IllegalArgumentException("spoolRetryMillis must not be negative");
+                }
+                spoolMaxRetries = config.getIntProperty("spoolMaxRetries", 720);
+                if (spoolMaxRetries < 0) {
+                    throw new IllegalArgumentException("spoolMaxRetries must not be negative");
+                }
+                senderBuilder.clientBuilder()
+                        .addInterceptor(new SpoolingSender.TransientResponseInterceptor());
+            } else {
+                spoolFile = null;
+                spoolMaxBytes = 0;
+                spoolRetryMillis = 0;
+                spoolMaxRetries = 0;
+            }
+        }
+
+        @Override
+        protected Reporter<byte[]> create() {
+            Sender sender = new MeteredSender(senderBuilder.build(), Global.getMetrics());
+            if (spoolFile != null) {
+                sender = createSpoolingSender(sender, spoolFile);
+            }
+            EncodedSpanEncoder encoder = new EncodedSpanEncoder(encoding);
+            List<AsyncReporter<byte[]>> reporters = new ArrayList<AsyncReporter<byte[]>>();
+            for (int i = 0; i < senderThreads; i++) {
+                reporters.add(AsyncReporter.builder(sender)
+                        .queuedMaxSpans(queuedMaxSpans)
+                        .queuedMaxBytes(queuedMaxBytes)
+                        .messageTimeout(messageTimeoutMillis, MILLISECONDS)
+                        .metrics(Global.getMetrics().forReporter(i))
+                        .build(encoder));
+            }
+            if (senderThreads == 1) {
+                return reporters.get(0);
+            }
+            return new StripedReporter<byte[]>(reporters);
+        }
+
+        private Sender createSpoolingSender(Sender sender, File spoolFile) {
+            try {
+                File dir = spoolFile.getParentFile();
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+                }
+                return new SpoolingSender(sender, spoolFile, spoolMaxBytes, spoolRetryMillis,
+                        spoolMaxRetries, Global.getMetrics());
+            } catch (IOException e) {
+                // e.g. another JVM using the same agent installation already has the spool file
+                // locked
+                LoggerFactory.getLogger(MainEntryPoint.class)
+                        .warn("Span spool disabled: {}", e.getMessage(), e);
+                return sender;
+            }
         }
     }
 }
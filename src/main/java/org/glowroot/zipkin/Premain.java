@@ -30,17 +30,17 @@ public class Premain {
 
     private Premain() {}
 
-    public static void premain(@SuppressWarnings("unused") String agentArgs,
-            Instrumentation instrumentation) {
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        long startTick = System.nanoTime();
         try {
             CodeSource codeSource = Premain.class.getProtectionDomain().getCodeSource();
             File agentJarFile = getAgentJarFile(codeSource);
             instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(agentJarFile));
             Class<?> mainEntryPointClass = Class.forName("org.glowroot.zipkin.MainEntryPoint", true,
                     Premain.class.getClassLoader());
-            Method premainMethod =
-                    mainEntryPointClass.getMethod("premain", Instrumentation.class, File.class);
-            premainMethod.invoke(null, instrumentation, agentJarFile);
+            Method premainMethod = mainEntryPointClass.getMethod("premain", Instrumentation.class,
+                    File.class, String.class, long.class);
+            premainMethod.invoke(null, instrumentation, agentJarFile, agentArgs, startTick);
         } catch (Throwable t) {
             // log error but don't re-throw which would prevent monitored app from starting
             System.err.println("Glowroot failed to start: " + t.getMessage());
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.model.NopSpan;
+import org.glowroot.zipkin.model.PropagatingThreadContext;
+import org.glowroot.zipkin.propagation.Getter;
+import org.glowroot.zipkin.propagation.Setter;
+import org.glowroot.zipkin.util.Global;
+
+// entry points for instrumentation that has access to the carrier (e.g. http request headers),
+// since the engine's ThreadContext and AgentSPI have no way to pass one
+public final class Propagation {
+
+    private static final AgentImpl agent = new AgentImpl();
+
+    private Propagation() {}
+
+    // continues the trace from the carrier if there is no trace on this thread yet, otherwise the
+    // carrier is ignored and this is the same as ThreadContext.startIncomingSpan()
+    public static <C> Span startIncomingSpan(String transactionType, String transactionName,
+            Getter<C> getter, C carrier, MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextThreadLocal.Holder threadContextHolder = Global.getThreadContextHolder();
+        ThreadContextPlus threadContext = threadContextHolder.get();
+        if (threadContext != null) {
+            return threadContext.startIncomingSpan(transactionType, transactionName,
+                    messageSupplier, timerName);
+        }
+        return agent.startIncomingSpan(transactionType, transactionName, getter, carrier,
+                messageSupplier, timerName, threadContextHolder, 0, 0);
+    }
+
+    // nothing is injected if there is no trace on this thread
+    public static <C> Span startOutgoingSpan(String type, String text, Setter<C> setter,
+            C carrier, MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextPlus threadContext = Global.getThreadContextHolder().get();
+        if (threadContext instanceof PropagatingThreadContext) {
+            return ((PropagatingThreadContext) threadContext).startOutgoingSpan(type, text,
+                    setter, carrier, messageSupplier, timerName);
+        }
+        return NopSpan.INSTANCE;
+    }
+
+    public static <C> AsyncSpan startAsyncOutgoingSpan(String type, String text,
+            Setter<C> setter, C carrier, MessageSupplier messageSupplier, TimerName timerName) {
+        ThreadContextPlus threadContext = Global.getThreadContextHolder().get();
+        if (threadContext instanceof PropagatingThreadContext) {
+            return ((PropagatingThreadContext) threadContext).startAsyncOutgoingSpan(type, text,
+                    setter, carrier, messageSupplier, timerName);
+        }
+        return NopSpan.INSTANCE;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// agent configuration is read from (in order of precedence)
+// 1. agent args, e.g. -javaagent:zipkin-agent.jar=reporter=http,queuedMaxSpans=50000
+// 2. the properties file given by the agent arg "config", or if not given, zipkin-agent.properties
+//    in the same directory as the agent jar (if it exists)
+//
+// properties:
+//
+// idGenerator           threadLocal (default) or striped
+// traceId128Bit         generate 128-bit trace ids (default false)
+// threadContextStorage  threadLocal (default) or compact, compact only keeps state for threads that
+//                       have an active span, instead of for every thread that has ever run
+//                       instrumented code, for services that run very large numbers of (e.g.
+//                       virtual) threads, at the cost of a shared map lookup in place of a thread
+//                       local lookup
+//
+// samplingProbability   probability that a trace is sampled, between 0.0 and 1.0 in increments of
+//                       0.0001 (default 1.0)
+// samplingTracesPerSecond
+//                       max traces sampled per second, applied after samplingProbability (default
+//                       0, meaning no limit)
+//
+// propagation           format of the B3 headers added to outgoing requests, b3multi (default) or
+//                       b3single, incoming requests accept either format
+//
+// localSpanThresholdMillis
+//                       local spans (e.g. spring beans, ejb, quartz jobs) are only reported if they
+//                       take at least this long, or end with an error, -1 to disable local spans
+//                       (default 100)
+//
+// queryAggregation      report repeated executions of the same query under the same parent span as
+//                       a single span with query.count and query.duration.total/min/max (micros)
+//                       tags, queries that end with an error are still reported individually
+//                       (default false), the query.rows and query.fetch.duration (micros) tags are
+//                       then totals across the executions
+// queryNormalization    name query spans by their query text with literals replaced by ?, comments
+//                       removed and IN lists collapsed, instead of by their raw query text (default
+//                       false)
+// queryNormalizationCacheSize
+//                       max raw query texts whose normalized names are cached (default 10000)
+// queryNormalizationMaxNames
+//                       max distinct normalized query names, additional names are reported as
+//                       "(other queries)" (default 1000)
+//
+// timerAggregation      add the total time (micros) and count of each instrumentation timer (e.g.
+//                       servlet filters, jdbc calls, template rendering) across the whole trace to
+//                       the root span as timer.<name>.duration and timer.<name>.count tags (default
+//                       false), timers of async spans and of aux threads that end after the root
+//                       span are not included
+//
+// tailSampling          buffer the spans of each sampled trace until the root span ends, and only
+//                       report the trace if it is interesting (default false)
+// tailSamplingKeepErrors
+//                       keep traces that contain a span with an error (default true)
+// tailSamplingDurationThresholdMillis
+//                       keep traces that contain a span at least this long (default 1000)
+// tailSamplingProbability
+//                       probability that any other trace is kept, in increments of 0.0001
+//                       (default 0.0)
+// tailSamplingMaxBufferedSpans
+//                       max spans buffered across all traces, the oldest traces are evicted when
+//                       exceeded (default 100000)
+// tailSamplingMaxSpansPerTrace
+//                       max spans buffered per trace, including the root span which is never
+//                       dropped, additional spans are dropped (default 1000)
+// tailSamplingMaxPendingTraces
+//                       max traces buffered, the oldest traces are evicted when exceeded (default
+//                       10000)
+//
+// governor              throttle tracing when the agent's overhead goes over budget, first by no
+//                       longer starting query spans, then local spans, and then by halving the
+//                       sampling probability step by step, and restore it step by step once the
+//                       load drops (default false)
+// governorMaxSpansPerSecond
+//                       budget for spans started per second (default 0, meaning no budget)
+// governorMaxQueueFill  budget for the fill of the span handoff and reporter queues, between 0.0
+//                       and 1.0 (default 0.5)
+// governorMaxCpuPercent budget for the cpu time of the thread that encodes spans, as a percent of
+//                       one core (default 0, meaning no budget)
+// governorIntervalMillis
+//                       interval between load measurements (default 1000)
+//
+// instrumentationDefault
+//                       whether instrumentation modules are enabled unless configured otherwise
+//                       below (default true)
+// instrumentation.<module>
+//                       enable or disable a single instrumentation module, e.g.
+//                       instrumentation.kafka=false, module names are the package names under
+//                       org.glowroot.xyzzy.instrumentation, as listed in the weaving cost report
+//                       (the mbean org.glowroot.zipkin:type=WeavingCost), classes that a disabled
+//                       module would instrument are left unwoven, which also drops the
+//                       instrumentation of enabled modules in those classes (logged as a warning
+//                       and counted as classes lost in the weaving cost report)
+// weavingCache          remember the classes that were not woven in a file under the agent tmp
+//                       directory, so that they skip the weaver on the next start (default false),
+//                       the cache starts over whenever the agent jar or a jar on the application
+//                       class path changes, but not when jars outside of the class path change
+//                       (e.g. a web application redeployed to an app server), applications that
+//                       share the agent installation each keep their own cache, until it has not
+//                       been used for 30 days
+// weavingCacheMaxEntries
+//                       max classes in the weaving cache, after which it starts over (default
+//                       1000000, which is 8MB on disk)
+//
+// reporter              console (default) or http, the http reporter's settings are validated at
+//                       startup, but its sender threads are only started once the first span is
+//                       reported
+// endpoint              collector url (default http://127.0.0.1:9411/api/v2/spans)
+// encoding              JSON (default) or PROTO3
+// pendingMaxSpans       max ended spans waiting to be encoded (off the application thread) before
+//                       dropping, rounded up to a power of 2 (default 10000)
+// handoffBatchSize      number of ended spans each thread collects before handing them off as a
+//                       whole, they are also handed off when the root span ends (default 8)
+// handoffWaitStrategy   how the thread that encodes spans waits for more spans, sleep (default),
+//                       yield or spin (yield and spin use up to a whole core)
+// queuedMaxSpans        max spans buffered before dropping (default 10000)
+// queuedMaxBytes        max bytes buffered before dropping (default 1% of max heap)
+// messageMaxBytes       max bytes per message sent to the collector (default 500KiB)
+// messageTimeoutMillis  max time a span waits to be batched into a message (default 1000)
+// senderThreads         number of threads sending messages to the collector (default 1)
+// spool                 spill messages to a memory-mapped file under the agent tmp directory when
+//                       the collector is slow or down, and resend them in order once the collector
+//                       recovers (default false)
+// spoolMaxBytes         max size of the spool file (default 64MiB)
+// spoolRetryMillis      interval between retries of spooled messages (default 5000)
+// spoolMaxRetries       max retries of a spooled message before dropping it, messages rejected by
+//                       the collector (e.g. 400) are dropped without retrying (default 720, which
+//                       is one hour at the default spoolRetryMillis)
+//
+// jmx                   register the agent's own metrics (spans started/reported/dropped, queue
+//                       depths, bytes encoded/sent, sender latency, cpu time) as the mbean
+//                       org.glowroot.zipkin:type=AgentMetrics, and the weaving cost per
+//                       instrumentation module as org.glowroot.zipkin:type=WeavingCost, from a
+//                       background thread so that startup does not wait on the platform mbean
+//                       server, disable for app servers that require the platform mbean server
+//                       to be created later
+//                       (default true)
+public class AgentConfig {
+
+    public static final String PROPERTIES_FILE_NAME = "zipkin-agent.properties";
+
+    private final Properties properties;
+
+    private AgentConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static AgentConfig create(@Nullable String agentArgs, @Nullable File agentDir)
+            throws IOException {
+        Properties agentArgProperties = parseAgentArgs(agentArgs);
+        String configPath = agentArgProperties.getProperty("config");
+        File configFile = null;
+        if (configPath != null) {
+            configFile = new File(configPath);
+            if (!configFile.exists()) {
+                throw new IOException("Config file not found: " + configFile.getAbsolutePath());
+            }
+        } else if (agentDir != null) {
+            configFile = new File(agentDir, PROPERTIES_FILE_NAME);
+        }
+        Properties properties = new Properties();
+        if (configFile != null && configFile.exists()) {
+            InputStream in = new FileInputStream(configFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        properties.putAll(agentArgProperties);
+        return new AgentConfig(properties);
+    }
+
+    public static AgentConfig create(Properties properties) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        return new AgentConfig(copy);
+    }
+
+    // names of the properties that start with the given prefix, with the prefix removed
+    public Set<String> getPropertyNames(String prefix) {
+        Set<String> names = new TreeSet<String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                names.add(name.substring(prefix.length()));
+            }
+        }
+        return names;
+    }
+
+    public @Nullable String getProperty(String name) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    public String getProperty(String name, String defaultValue) {
+        String value = getProperty(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public @Nullable Integer getIntProperty(String name) {
+        String value = getProperty(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public int getIntProperty(String name, int defaultValue) {
+        Integer value = getIntProperty(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public long getLongProperty(String name, long defaultValue) {
+        String value = getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public double getDoubleProperty(String name, double defaultValue) {
+        String value = getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw invalidValue(name, value);
+        }
+    }
+
+    // agent args are comma-separated key=value pairs
+    private static Properties parseAgentArgs(@Nullable String agentArgs) {
+        Properties properties = new Properties();
+        if (agentArgs == null) {
+            return properties;
+        }
+        for (String arg : agentArgs.split(",")) {
+            if (arg.trim().isEmpty()) {
+                continue;
+            }
+            int index = arg.indexOf('=');
+            if (index == -1) {
+                throw new IllegalArgumentException(
+                        "Invalid agent arg (expecting key=value): " + arg);
+            }
+            properties.setProperty(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+        }
+        return properties;
+    }
+
+    private static IllegalArgumentException invalidValue(String name, String value) {
+        return new IllegalArgumentException(
+                "Invalid value for agent property " + name + ": " + value);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import zipkin2.reporter.ReporterMetrics;
+
+import org.glowroot.zipkin.reporter.SpanHandoff;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.util.Global;
+
+import static java.util.Collections.newSetFromMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// counters that are updated on application threads (e.g. span started) are striped so that the
+// agent's self-telemetry does not become a contention point itself, see StripedCounters
+public class AgentMetrics implements AgentMetricsMBean {
+
+    // span kinds
+    public static final int INCOMING = 0;
+    public static final int OUTGOING = 1;
+    public static final int LOCAL = 2;
+    public static final int QUERY = 3;
+
+    private static final int NUM_KINDS = 4;
+
+    // counter indexes
+    private static final int SPANS_STARTED = 0;
+    private static final int SPANS_REPORTED = SPANS_STARTED + NUM_KINDS;
+    private static final int TRACES_NOT_SAMPLED = SPANS_REPORTED + NUM_KINDS;
+    private static final int SPANS_DROPPED_SAMPLING = TRACES_NOT_SAMPLED + 1;
+    private static final int SPANS_DROPPED_QUEUE_FULL = SPANS_DROPPED_SAMPLING + 1;
+    private static final int SPANS_DROPPED_ENCODING_ERROR = SPANS_DROPPED_QUEUE_FULL + 1;
+    private static final int SPANS_DROPPED_REPORTER = SPANS_DROPPED_ENCODING_ERROR + 1;
+    private static final int SPANS_DROPPED_SPOOL = SPANS_DROPPED_REPORTER + 1;
+    private static final int BYTES_ENCODED = SPANS_DROPPED_SPOOL + 1;
+    private static final int REPORTER_SPANS = BYTES_ENCODED + 1;
+    private static final int REPORTER_SPAN_BYTES = REPORTER_SPANS + 1;
+    private static final int MESSAGES_SENT = REPORTER_SPAN_BYTES + 1;
+    private static final int MESSAGES_DROPPED = MESSAGES_SENT + 1;
+    private static final int BYTES_SENT = MESSAGES_DROPPED + 1;
+    private static final int NUM_COUNTERS = BYTES_SENT + 1;
+
+    private final StripedCounters counters = new StripedCounters(NUM_COUNTERS);
+
+    // updated by sender threads only, so not striped
+    private final AtomicLong senderRequests = new AtomicLong();
+    private final AtomicLong senderLatencyTotalNanos = new AtomicLong();
+    private final AtomicLong senderLatencyMaxNanos = new AtomicLong();
+
+    // queued spans and bytes for each reporter, see forReporter()
+    private volatile AtomicLongArray reporterQueuedSpans = new AtomicLongArray(0);
+    private volatile AtomicLongArray reporterQueuedBytes = new AtomicLongArray(0);
+
+    private volatile @Nullable SpanHandoff spanHandoff;
+    // threads that send spans to the collector, see LazyReporter
+    private final Set<Long> reporterThreadIds =
+            newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    public void spanStarted(int kind) {
+        counters.increment(SPANS_STARTED + kind);
+    }
+
+    public void spanReported(int kind) {
+        counters.increment(SPANS_REPORTED + kind);
+    }
+
+    public void traceNotSampled() {
+        counters.increment(TRACES_NOT_SAMPLED);
+    }
+
+    public void spansDroppedSampling(int count) {
+        counters.add(SPANS_DROPPED_SAMPLING, count);
+    }
+
+    public void spansDroppedQueueFull(int count) {
+        counters.add(SPANS_DROPPED_QUEUE_FULL, count);
+    }
+
+    public void spanDroppedEncodingError() {
+        counters.increment(SPANS_DROPPED_ENCODING_ERROR);
+    }
+
+    public void spansDroppedReporter(int count) {
+        counters.add(SPANS_DROPPED_REPORTER, count);
+    }
+
+    public void spansDroppedSpool(int count) {
+        counters.add(SPANS_DROPPED_SPOOL, count);
+    }
+
+    public void bytesEncoded(int bytes) {
+        counters.add(BYTES_ENCODED, bytes);
+    }
+
+    public void senderRequest(long latencyNanos) {
+        senderRequests.incrementAndGet();
+        senderLatencyTotalNanos.addAndGet(latencyNanos);
+        long max = senderLatencyMaxNanos.get();
+        while (latencyNanos > max && !senderLatencyMaxNanos.compareAndSet(max, latencyNanos)) {
+            max = senderLatencyMaxNanos.get();
+        }
+    }
+
+    public void setSpanHandoff(SpanHandoff spanHandoff) {
+        this.spanHandoff = spanHandoff;
+    }
+
+    public void reporterThreadStarted(long threadId) {
+        reporterThreadIds.add(threadId);
+    }
+
+    // metrics for each of the (striped) AsyncReporters, whose queue gauges are summed
+    public ReporterMetrics forReporter(int index) {
+        synchronized (this) {
+            if (index >= reporterQueuedSpans.length()) {
+                reporterQueuedSpans = new AtomicLongArray(index + 1);
+                reporterQueuedBytes = new AtomicLongArray(index + 1);
+            }
+        }
+        return new AsyncReporterMetrics(index);
+    }
+
+    @Override
+    public long getIncomingSpansStarted() {
+        return counters.sum(SPANS_STARTED + INCOMING);
+    }
+
+    @Override
+    public long getOutgoingSpansStarted() {
+        return counters.sum(SPANS_STARTED + OUTGOING);
+    }
+
+    @Override
+    public long getLocalSpansStarted() {
+        return counters.sum(SPANS_STARTED + LOCAL);
+    }
+
+    @Override
+    public long getQuerySpansStarted() {
+        return counters.sum(SPANS_STARTED + QUERY);
+    }
+
+    @Override
+    public long getIncomingSpansReported() {
+        return counters.sum(SPANS_REPORTED + INCOMING);
+    }
+
+    @Override
+    public long getOutgoingSpansReported() {
+        return counters.sum(SPANS_REPORTED + OUTGOING);
+    }
+
+    @Override
+    public long getLocalSpansReported() {
+        return counters.sum(SPANS_REPORTED + LOCAL);
+    }
+
+    @Override
+    public long getQuerySpansReported() {
+        return counters.sum(SPANS_REPORTED + QUERY);
+    }
+
+    @Override
+    public long getTracesNotSampled() {
+        return counters.sum(TRACES_NOT_SAMPLED);
+    }
+
+    @Override
+    public long getSpansDroppedSampling() {
+        return counters.sum(SPANS_DROPPED_SAMPLING);
+    }
+
+    @Override
+    public long getSpansDroppedQueueFull() {
+        return counters.sum(SPANS_DROPPED_QUEUE_FULL);
+    }
+
+    @Override
+    public long getSpansDroppedEncodingError() {
+        return counters.sum(SPANS_DROPPED_ENCODING_ERROR);
+    }
+
+    @Override
+    public long getSpansDroppedReporter() {
+        return counters.sum(SPANS_DROPPED_REPORTER);
+    }
+
+    @Override
+    public long getSpansDroppedSpool() {
+        return counters.sum(SPANS_DROPPED_SPOOL);
+    }
+
+    @Override
+    public int getHandoffQueueDepth() {
+        SpanHandoff spanHandoff = this.spanHandoff;
+        return spanHandoff == null ? 0 : spanHandoff.getPendingBatches();
+    }
+
+    @Override
+    public long getReporterQueuedSpans() {
+        return sum(reporterQueuedSpans);
+    }
+
+    @Override
+    public long getReporterQueuedBytes() {
+        return sum(reporterQueuedBytes);
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return counters.sum(BYTES_ENCODED);
+    }
+
+    @Override
+    public long getReporterSpans() {
+        return counters.sum(REPORTER_SPANS);
+    }
+
+    @Override
+    public long getReporterSpanBytes() {
+        return counters.sum(REPORTER_SPAN_BYTES);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return counters.sum(MESSAGES_SENT);
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return counters.sum(MESSAGES_DROPPED);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return counters.sum(BYTES_SENT);
+    }
+
+    @Override
+    public long getSenderRequests() {
+        return senderRequests.get();
+    }
+
+    @Override
+    public double getSenderLatencyTotalMillis() {
+        return toMillis(senderLatencyTotalNanos.get());
+    }
+
+    @Override
+    public double getSenderLatencyMaxMillis() {
+        return toMillis(senderLatencyMaxNanos.get());
+    }
+
+    @Override
+    public double getHandoffThreadCpuTimeMillis() {
+        SpanHandoff spanHandoff = this.spanHandoff;
+        if (spanHandoff == null) {
+            return 0;
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        // -1 if the thread has died, or if thread cpu time measurement is disabled
+        long cpuTimeNanos = threadBean.getThreadCpuTime(spanHandoff.getThreadId());
+        return cpuTimeNanos == -1 ? -1 : toMillis(cpuTimeNanos);
+    }
+
+    @Override
+    public double getReporterThreadCpuTimeMillis() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        long cpuTimeNanos = 0;
+        for (long threadId : reporterThreadIds) {
+            // -1 if the thread has died (e.g. the reporter was closed), or if thread cpu time
+            // measurement is disabled
+            long threadCpuTimeNanos = threadBean.getThreadCpuTime(threadId);
+            if (threadCpuTimeNanos != -1) {
+                cpuTimeNanos += threadCpuTimeNanos;
+            }
+        }
+        return toMillis(cpuTimeNanos);
+    }
+
+    @Override
+    public int getOverheadGovernorLevel() {
+        OverheadGovernor overheadGovernor = Global.getOverheadGovernor();
+        return overheadGovernor == null ? 0 : overheadGovernor.getLevel();
+    }
+
+    private static long sum(AtomicLongArray values) {
+        long sum = 0;
+        for (int i = 0; i < values.length(); i++) {
+            sum += values.get(i);
+        }
+        return sum;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    private class AsyncReporterMetrics implements ReporterMetrics {
+
+        private final int index;
+
+        private AsyncReporterMetrics(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void incrementMessages() {
+            counters.increment(MESSAGES_SENT);
+        }
+
+        @Override
+        public void incrementMessagesDropped(Throwable cause) {
+            counters.increment(MESSAGES_DROPPED);
+        }
+
+        @Override
+        public void incrementSpans(int quantity) {
+            counters.add(REPORTER_SPANS, quantity);
+        }
+
+        @Override
+        public void incrementSpanBytes(int quantity) {
+            counters.add(REPORTER_SPAN_BYTES, quantity);
+        }
+
+        @Override
+        public void incrementMessageBytes(int quantity) {
+            counters.add(BYTES_SENT, quantity);
+        }
+
+        @Override
+        public void incrementSpansDropped(int quantity) {
+            counters.add(SPANS_DROPPED_REPORTER, quantity);
+        }
+
+        @Override
+        public void updateQueuedSpans(int update) {
+            reporterQueuedSpans.set(index, update);
+        }
+
+        @Override
+        public void updateQueuedBytes(int update) {
+            reporterQueuedBytes.set(index, update);
+        }
+    }
+}
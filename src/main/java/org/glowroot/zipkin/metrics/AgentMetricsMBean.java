@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.metrics;
+
+// the agent's own overhead, registered as org.glowroot.zipkin:type=AgentMetrics
+//
+// counters are totals since the agent started, durations are in milliseconds
+public interface AgentMetricsMBean {
+
+    long getIncomingSpansStarted();
+
+    long getOutgoingSpansStarted();
+
+    long getLocalSpansStarted();
+
+    long getQuerySpansStarted();
+
+    long getIncomingSpansReported();
+
+    long getOutgoingSpansReported();
+
+    long getLocalSpansReported();
+
+    long getQuerySpansReported();
+
+    long getTracesNotSampled();
+
+    // discarded by tail sampling
+    long getSpansDroppedSampling();
+
+    // handoff ring buffer full
+    long getSpansDroppedQueueFull();
+
+    // e.g. a message supplier that throws
+    long getSpansDroppedEncodingError();
+
+    // reporter queue full or collector unavailable
+    long getSpansDroppedReporter();
+
+    // spooled messages rejected by the collector or still failing after spoolMaxRetries
+    long getSpansDroppedSpool();
+
+    // in batches, see SpanHandoff
+    int getHandoffQueueDepth();
+
+    long getReporterQueuedSpans();
+
+    long getReporterQueuedBytes();
+
+    long getBytesEncoded();
+
+    // spans (and their encoded bytes) handed to the reporter, whether or not they fit in its queue
+    long getReporterSpans();
+
+    long getReporterSpanBytes();
+
+    // including messages that failed to send
+    long getMessagesSent();
+
+    // messages that failed to send, e.g. collector unavailable
+    long getMessagesDropped();
+
+    long getBytesSent();
+
+    long getSenderRequests();
+
+    double getSenderLatencyTotalMillis();
+
+    double getSenderLatencyMaxMillis();
+
+    // cpu time of the thread that materializes and encodes spans, see SpanHandoff
+    //
+    // -1 if thread cpu time is not supported by the jvm
+    double getHandoffThreadCpuTimeMillis();
+
+    // cpu time of the threads that send spans to the collector (the AsyncReporter flush threads and
+    // the spool drain thread), not including the handoff thread, see LazyReporter
+    //
+    // -1 if thread cpu time is not supported by the jvm
+    double getReporterThreadCpuTimeMillis();
+
+    // 0 when not throttling, see OverheadGovernor
+    int getOverheadGovernorLevel();
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// a fixed set of counters that are updated from many threads (e.g. on every span start), so
+// instead of a single AtomicLong per counter (which all threads would contend on), threads are
+// spread over a number of stripes by thread id, and each counter is summed across the stripes when
+// read (LongAdder is not available in java 6)
+//
+// each stripe holds all of the counters, padded out to whole cache lines, so that a thread updating
+// several counters only touches its own stripe's cache line(s), same as StripedIdGenerator
+class StripedCounters {
+
+    // 8 longs = 64 bytes = typical cache line
+    private static final int LONGS_PER_CACHE_LINE = 8;
+
+    private final AtomicLongArray stripes;
+    private final int numCounters;
+    private final int stripeLength;
+    private final int mask;
+
+    StripedCounters(int numCounters) {
+        this(numCounters, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    StripedCounters(int numCounters, int minStripes) {
+        this.numCounters = numCounters;
+        stripeLength = (numCounters + LONGS_PER_CACHE_LINE - 1) / LONGS_PER_CACHE_LINE
+                * LONGS_PER_CACHE_LINE;
+        int numStripes = Integer.highestOneBit(Math.max(minStripes - 1, 1)) << 1;
+        mask = numStripes - 1;
+        // one extra cache line so the first stripe does not share a line with the array header
+        stripes = new AtomicLongArray((numStripes + 1) * stripeLength);
+    }
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    void add(int counter, long delta) {
+        stripes.getAndAdd(stripeOffset() + counter, delta);
+    }
+
+    long sum(int counter) {
+        if (counter >= numCounters) {
+            throw new IllegalArgumentException("Unexpected counter: " + counter);
+        }
+        long sum = 0;
+        for (int i = 0; i <= mask; i++) {
+            sum += stripes.get((i + 1) * stripeLength + counter);
+        }
+        return sum;
+    }
+
+    private int stripeOffset() {
+        long threadId = Thread.currentThread().getId();
+        // spread sequential thread ids across stripes
+        int h = (int) (threadId ^ (threadId >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return ((h & mask) + 1) * stripeLength;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+
+// only started and stopped by the thread that owns the thread context, see TimerTable
+class AggregatedTimer implements Timer {
+
+    private final ThreadContextImpl threadContext;
+    private final int index;
+    // 0 when extending a timer that has already been counted
+    private final int count;
+    private final long startTick;
+
+    private boolean stopped;
+
+    AggregatedTimer(ThreadContextImpl threadContext, int index, int count) {
+        this.threadContext = threadContext;
+        this.index = index;
+        this.count = count;
+        startTick = System.nanoTime();
+    }
+
+    @Override
+    public void stop() {
+        if (!stopped) {
+            stopped = true;
+            threadContext.addTimer(index, System.nanoTime() - startTick, count);
+        }
+    }
+}
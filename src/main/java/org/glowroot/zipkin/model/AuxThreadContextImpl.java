@@ -26,16 +26,25 @@ import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
 import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.ThreadContext.ServletRequestInfo;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
+import org.glowroot.zipkin.sampler.TraceBuffer;
 import org.glowroot.zipkin.util.Global;
+import org.glowroot.zipkin.util.TraceClock;
 
 public class AuxThreadContextImpl implements AuxThreadContext {
 
     private final SpanContext parentSpanContext;
+    private final TraceClock clock;
+    private final @Nullable TraceBuffer traceBuffer;
+    private final @Nullable TimerTable traceTimers;
     private final @Nullable ServletRequestInfo servletRequestInfo;
 
-    public AuxThreadContextImpl(SpanContext parentSpanContext,
+    public AuxThreadContextImpl(SpanContext parentSpanContext, TraceClock clock,
+            @Nullable TraceBuffer traceBuffer, @Nullable TimerTable traceTimers,
             @Nullable ServletRequestInfo servletRequestInfo) {
         this.parentSpanContext = parentSpanContext;
+        this.clock = clock;
+        this.traceBuffer = traceBuffer;
+        this.traceTimers = traceTimers;
         this.servletRequestInfo = servletRequestInfo;
     }
 
@@ -58,53 +67,56 @@ public class AuxThreadContextImpl implements AuxThreadContext {
             }
             return NopTransactionService.LOCAL_SPAN;
         }
-        SpanContext spanContext = new SpanContext(parentSpanContext.getTraceIdHigh(),
-                parentSpanContext.getTraceId(), parentSpanContext.getSpanId(), Global.nextId());
-        threadContext =
-                new ThreadContextImpl(threadContextHolder, spanContext, servletRequestInfo, 0, 0);
-        threadContextHolder.set(threadContext);
+        // no span is reported for the aux thread itself, so spans started on the aux thread are
+        // children of the span that was active when the aux thread context was created
+        ThreadContextImpl auxThreadContext = new ThreadContextImpl(threadContextHolder,
+                parentSpanContext, clock, traceBuffer, traceTimers, servletRequestInfo, 0, 0);
+        threadContextHolder.set(auxThreadContext);
         if (completeAsyncTransaction) {
-            threadContext.setTransactionAsyncComplete();
+            auxThreadContext.setTransactionAsyncComplete();
         }
-        return new AuxRootEntryImpl(threadContextHolder);
+        return new AuxRootEntryImpl(auxThreadContext, threadContextHolder);
     }
 
     private static class AuxRootEntryImpl implements Span {
 
+        private final ThreadContextImpl threadContext;
         private final ThreadContextThreadLocal.Holder threadContextHolder;
 
-        private AuxRootEntryImpl(ThreadContextThreadLocal.Holder threadContextHolder) {
+        private AuxRootEntryImpl(ThreadContextImpl threadContext,
+                ThreadContextThreadLocal.Holder threadContextHolder) {
+            this.threadContext = threadContext;
             this.threadContextHolder = threadContextHolder;
         }
 
         @Override
         public void end() {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
         public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
         public void endWithError(Throwable t) {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
         public void endWithError(String message) {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
         public void endWithError(String message, Throwable t) {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
         public void endWithInfo(Throwable t) {
-            threadContextHolder.set(null);
+            endInternal();
         }
 
         @Override
@@ -116,5 +128,12 @@ public class AuxThreadContextImpl implements AuxThreadContext {
         public @Nullable Object getMessageSupplier() {
             return null;
         }
+
+        private void endInternal() {
+            threadContext.flushQueryAggregates();
+            threadContext.flushTimers();
+            threadContextHolder.set(null);
+            Global.flushSpans();
+        }
     }
 }
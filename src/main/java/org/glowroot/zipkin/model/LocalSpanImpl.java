@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.util.Global;
+
+// local spans (e.g. spring beans, ejb, quartz jobs) are only reported if they exceed the local span
+// threshold, so that fast ones cost little more than the allocation and two calls to nanoTime (the
+// message supplier is not even evaluated)
+//
+// local spans that have child spans are always reported, since the children reference them as
+// their parent
+class LocalSpanImpl extends SpanImpl {
+
+    LocalSpanImpl(ThreadContextImpl threadContext, long parentSpanId, long spanId, int stackIndex,
+            int timerIndex, MessageSupplier messageSupplier) {
+        super(threadContext, parentSpanId, spanId, stackIndex, timerIndex, AgentMetrics.LOCAL, "",
+                messageSupplier);
+    }
+
+    @Override
+    protected boolean shouldReport(long durationNanos) {
+        return durationNanos >= Global.getLocalSpanThresholdNanos()
+                || getThreadContext().hasChildSpan(getStackIndex());
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.util.Global;
+
+// aux thread context for unsampled traces, the unsampled decision carries over to the aux thread
+// (see NopThreadContext)
+class NopAuxThreadContext implements AuxThreadContext {
+
+    static final NopAuxThreadContext INSTANCE = new NopAuxThreadContext();
+
+    private NopAuxThreadContext() {}
+
+    @Override
+    public Span start() {
+        ThreadContextThreadLocal.Holder threadContextHolder = Global.getThreadContextHolder();
+        if (threadContextHolder.get() != null) {
+            return NopSpan.INSTANCE;
+        }
+        NopThreadContext threadContext = new NopThreadContext(threadContextHolder, 0, 0);
+        threadContextHolder.set(threadContext);
+        return threadContext;
+    }
+
+    @Override
+    public Span startAndMarkAsyncTransactionComplete() {
+        return start();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.engine.impl.NopTransactionService;
+import org.glowroot.xyzzy.instrumentation.api.AsyncQuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+
+// returned for all spans in unsampled traces
+public class NopSpan implements AsyncQuerySpan {
+
+    public static final NopSpan INSTANCE = new NopSpan();
+
+    private NopSpan() {}
+
+    @Override
+    public void end() {}
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {}
+
+    @Override
+    public void endWithError(Throwable t) {}
+
+    @Override
+    public void endWithError(String message) {}
+
+    @Override
+    public void endWithError(String message, Throwable t) {}
+
+    @Override
+    public void endWithInfo(Throwable t) {}
+
+    @Override
+    public Timer extend() {
+        return NopTransactionService.TIMER;
+    }
+
+    @Override
+    public @Nullable Object getMessageSupplier() {
+        return null;
+    }
+
+    @Override
+    public void stopSyncTimer() {}
+
+    @Override
+    public Timer extendSyncTimer() {
+        return NopTransactionService.TIMER;
+    }
+
+    @Override
+    public void rowNavigationAttempted() {}
+
+    @Override
+    public void incrementCurrRow() {}
+
+    @Override
+    public void setCurrRow(long row) {}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.NopTransactionService;
+import org.glowroot.xyzzy.instrumentation.api.AsyncQuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.propagation.Setter;
+import org.glowroot.zipkin.util.Global;
+
+// thread context for unsampled traces
+//
+// a thread context still needs to be installed (instead of leaving the thread context holder empty)
+// so that the engine's nesting and suppression tracking works as usual, and so that nested incoming
+// spans do not start new traces
+//
+// this class is also the root span of the unsampled trace (clearing the thread context holder when
+// it ends), so that the only allocation for an unsampled trace is this one small object
+public class NopThreadContext implements PropagatingThreadContext, Span {
+
+    private final ThreadContextThreadLocal.Holder threadContextHolder;
+
+    private @Nullable ServletRequestInfo servletRequestInfo;
+
+    private int currentNestingGroupId;
+    private int currentSuppressionKeyId;
+
+    public NopThreadContext(ThreadContextThreadLocal.Holder threadContextHolder,
+            int rootNestingGroupId, int rootSuppressionKeyId) {
+        this.threadContextHolder = threadContextHolder;
+        currentNestingGroupId = rootNestingGroupId;
+        currentSuppressionKeyId = rootSuppressionKeyId;
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return true;
+    }
+
+    @Override
+    public Span startIncomingSpan(String transactionType, String transactionName,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public Span startIncomingSpan(String transactionType, String transactionName,
+            MessageSupplier messageSupplier, TimerName timerName,
+            AlreadyInTransactionBehavior alreadyInTransactionBehavior) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public Span startLocalSpan(MessageSupplier messageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public QuerySpan startQuerySpan(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public QuerySpan startQuerySpan(String queryType, String queryText, long queryExecutionCount,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public AsyncQuerySpan startAsyncQuerySpan(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public Span startOutgoingSpan(String type, String text, MessageSupplier messageSupplier,
+            TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public AsyncSpan startAsyncOutgoingSpan(String type, String text,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        return NopSpan.INSTANCE;
+    }
+
+    // propagates the decision not to sample, see ThreadContextImpl
+    @Override
+    public <C> Span startOutgoingSpan(String type, String text, Setter<C> setter, C carrier,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        Global.getPropagation().injectNotSampled(setter, carrier);
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public <C> AsyncSpan startAsyncOutgoingSpan(String type, String text, Setter<C> setter,
+            C carrier, MessageSupplier messageSupplier, TimerName timerName) {
+        Global.getPropagation().injectNotSampled(setter, carrier);
+        return NopSpan.INSTANCE;
+    }
+
+    @Override
+    public Timer startTimer(TimerName timerName) {
+        return NopTransactionService.TIMER;
+    }
+
+    @Override
+    public AuxThreadContext createAuxThreadContext() {
+        return NopAuxThreadContext.INSTANCE;
+    }
+
+    @Override
+    public void setTransactionAsync() {}
+
+    @Override
+    public void setTransactionAsyncComplete() {}
+
+    @Override
+    public void setTransactionType(String transactionType, int priority) {}
+
+    @Override
+    public void setTransactionName(String transactionName, int priority) {}
+
+    @Override
+    public void setTransactionUser(String user, int priority) {}
+
+    @Override
+    public void addTransactionAttribute(String name, String value) {}
+
+    @Override
+    public void setTransactionSlowThreshold(long threshold, TimeUnit unit, int priority) {}
+
+    @Override
+    public void setTransactionError(Throwable t) {}
+
+    @Override
+    public void setTransactionError(String message) {}
+
+    @Override
+    public void setTransactionError(String message, Throwable t) {}
+
+    @Override
+    public void addErrorEntry(Throwable t) {}
+
+    @Override
+    public void addErrorEntry(String message) {}
+
+    @Override
+    public void addErrorEntry(String message, Throwable t) {}
+
+    @Override
+    public void trackResourceAcquired(Object resource, boolean withLocationStackTrace) {}
+
+    @Override
+    public void trackResourceReleased(Object resource) {}
+
+    @Override
+    public @Nullable ServletRequestInfo getServletRequestInfo() {
+        return servletRequestInfo;
+    }
+
+    @Override
+    public void setServletRequestInfo(@Nullable ServletRequestInfo servletRequestInfo) {
+        this.servletRequestInfo = servletRequestInfo;
+    }
+
+    @Override
+    public int getCurrentNestingGroupId() {
+        return currentNestingGroupId;
+    }
+
+    @Override
+    public void setCurrentNestingGroupId(int nestingGroupId) {
+        this.currentNestingGroupId = nestingGroupId;
+    }
+
+    @Override
+    public int getCurrentSuppressionKeyId() {
+        return currentSuppressionKeyId;
+    }
+
+    @Override
+    public void setCurrentSuppressionKeyId(int suppressionKeyId) {
+        this.currentSuppressionKeyId = suppressionKeyId;
+    }
+
+    // the remaining methods implement Span (as the root span of the unsampled trace)
+
+    @Override
+    public void end() {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public void endWithError(Throwable t) {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public void endWithError(String message) {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public void endWithError(String message, Throwable t) {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public void endWithInfo(Throwable t) {
+        threadContextHolder.set(null);
+    }
+
+    @Override
+    public Timer extend() {
+        return NopTransactionService.TIMER;
+    }
+
+    @Override
+    public @Nullable Object getMessageSupplier() {
+        return null;
+    }
+}
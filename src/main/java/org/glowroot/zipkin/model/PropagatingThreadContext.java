@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.propagation.Setter;
+
+// outgoing spans that also inject the trace context into a carrier (e.g. http request headers),
+// implemented by both the sampled and the unsampled thread context (which propagates the decision
+// not to sample), see org.glowroot.zipkin.Propagation
+public interface PropagatingThreadContext extends ThreadContextPlus {
+
+    <C> Span startOutgoingSpan(String type, String text, Setter<C> setter, C carrier,
+            MessageSupplier messageSupplier, TimerName timerName);
+
+    <C> AsyncSpan startAsyncOutgoingSpan(String type, String text, Setter<C> setter, C carrier,
+            MessageSupplier messageSupplier, TimerName timerName);
+}
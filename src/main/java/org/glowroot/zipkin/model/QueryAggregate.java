@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import org.glowroot.zipkin.reporter.SpanRecord;
+
+// repeated executions of the same query under the same parent span (e.g. N+1 selects from an ORM),
+// reported as a single span with count and duration stats tags (see ThreadContextImpl)
+class QueryAggregate {
+
+    // the first execution, which is reported on behalf of all of the executions
+    private final QuerySpanImpl firstQuerySpan;
+
+    private int executions;
+    // sum of the execution counts, which can be more than one per span (e.g. jdbc batches)
+    private long count;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+    private long lastEndTick;
+    // -1 if row navigation was never attempted on any of the executions
+    private long rowCount = -1;
+    private long fetchNanos;
+
+    QueryAggregate(QuerySpanImpl firstQuerySpan) {
+        this.firstQuerySpan = firstQuerySpan;
+    }
+
+    boolean matches(QuerySpanImpl querySpan) {
+        return firstQuerySpan.getParentSpanId() == querySpan.getParentSpanId()
+                && firstQuerySpan.getQueryType().equals(querySpan.getQueryType());
+    }
+
+    long getParentSpanId() {
+        return firstQuerySpan.getParentSpanId();
+    }
+
+    void add(QuerySpanImpl querySpan, long endTick) {
+        long durationNanos = endTick - querySpan.getStartTick();
+        executions++;
+        count += querySpan.getExecutionCount();
+        totalNanos += durationNanos;
+        minNanos = Math.min(minNanos, durationNanos);
+        maxNanos = Math.max(maxNanos, durationNanos);
+        lastEndTick = endTick;
+        long spanRowCount = querySpan.getRowCount();
+        if (spanRowCount != -1) {
+            rowCount = rowCount == -1 ? spanRowCount : rowCount + spanRowCount;
+        }
+        fetchNanos += querySpan.getFetchNanos();
+    }
+
+    void report() {
+        // a query that was not repeated is reported as a normal query span
+        firstQuerySpan.report(lastEndTick, executions == 1 ? null : this);
+    }
+
+    void putTags(SpanRecord record) {
+        record.putTag("query.count", Long.toString(count));
+        record.putTag("query.duration.total", Long.toString(totalNanos / 1000));
+        record.putTag("query.duration.min", Long.toString(minNanos / 1000));
+        record.putTag("query.duration.max", Long.toString(maxNanos / 1000));
+        // totals across all of the executions
+        if (rowCount != -1) {
+            record.putTag("query.rows", Long.toString(rowCount));
+        }
+        if (fetchNanos != 0) {
+            record.putTag("query.fetch.duration", Long.toString(fetchNanos / 1000));
+        }
+    }
+}
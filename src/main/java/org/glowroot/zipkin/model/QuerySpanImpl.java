@@ -19,30 +19,86 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
-import zipkin2.Span;
 
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.engine.util.Throwables;
 import org.glowroot.xyzzy.instrumentation.api.AsyncQuerySpan;
 import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.reporter.SpanRecord;
 import org.glowroot.zipkin.util.Global;
 
-class QuerySpanImpl implements AsyncQuerySpan {
+// the query span is also its own fetch timer (see extend), so that result set navigation does not
+// allocate per row
+//
+// the query message supplier is only evaluated once the span has been handed off (see PendingSpan)
+//
+// instrumentation ends a query span when the query has executed (e.g. jdbc executeQuery), before
+// its result set is navigated, so a synchronous query span is not reported when it ends, but is
+// held by the thread context until the next query on the thread starts, its parent span ends, or
+// the thread context ends (see ThreadContextImpl.deferQuerySpan), so that the rows and fetch time
+// are complete when it is reported
+class QuerySpanImpl implements AsyncQuerySpan, Timer, PendingSpan {
 
-    private final SpanContext spanContext;
+    private final ThreadContextImpl threadContext;
+    private final long parentSpanId;
+    private final long spanId;
+    // index in the thread context's timer table, or -1 if not timed (e.g. async query spans)
+    private final int timerIndex;
     private final String queryType;
     private final String queryText;
+    private final long executionCount;
     private final QueryMessageSupplier queryMessageSupplier;
-    private final long startTimeMicros;
+    // only synchronous query spans are aggregated, since the aggregates are not thread safe
+    private final boolean aggregate;
+    // async query spans can end on a different thread, so they are reported when they end, with
+    // the rows navigated up to that point
+    private final boolean async;
+    private final long startTick;
 
-    QuerySpanImpl(SpanContext context, String queryType, String queryText,
-            QueryMessageSupplier queryMessageSupplier) {
-        this.spanContext = context;
+    // row tracking is only updated by the thread that is navigating the result set, which is the
+    // thread that reports the span (except for async query spans, where the row counts are best
+    // effort)
+    //
+    // -1 until row navigation is attempted, so that "no rows" can be distinguished from "unknown"
+    private long currRow = -1;
+    private long maxRow;
+    private long fetchNanos;
+    // 0 when the fetch timer is not running
+    private long fetchStartTick;
+    private boolean ended;
+    // set when the span ends
+    private long endTick;
+    private @Nullable Throwable error;
+    // set instead of (or in addition to) the throwable by endWithError(String)
+    private @Nullable String errorMessage;
+
+    // set when the span is reported, before it is handed off, and never modified afterwards (see
+    // PendingSpan), the row count and fetch time are copied since async query spans can still be
+    // navigated by another thread, and since the fetch timer can still be stopped after that
+    private long durationMicros;
+    private @Nullable QueryAggregate queryAggregate;
+    private long reportedRowCount;
+    private long reportedFetchNanos;
+
+    // query spans are never pushed onto the span stack since they have no children
+    QuerySpanImpl(ThreadContextImpl threadContext, long parentSpanId, long spanId, int timerIndex,
+            String queryType, String queryText, long executionCount,
+            QueryMessageSupplier queryMessageSupplier, boolean aggregate, boolean async) {
+        this.threadContext = threadContext;
+        this.parentSpanId = parentSpanId;
+        this.spanId = spanId;
+        this.timerIndex = timerIndex;
         this.queryType = queryType;
         this.queryText = queryText;
+        this.executionCount = executionCount;
         this.queryMessageSupplier = queryMessageSupplier;
-        startTimeMicros = Global.currentTimeMicros();
+        this.aggregate = aggregate;
+        this.async = async;
+        startTick = System.nanoTime();
+        Global.getMetrics().spanStarted(AgentMetrics.QUERY);
     }
 
     @Override
@@ -57,17 +113,17 @@ class QuerySpanImpl implements AsyncQuerySpan {
 
     @Override
     public void endWithError(Throwable t) {
-        finish(t);
+        finish(null, t);
     }
 
     @Override
     public void endWithError(String message) {
-        finish();
+        finish(message, null);
     }
 
     @Override
     public void endWithError(String message, Throwable t) {
-        finish(t);
+        finish(message, t);
     }
 
     @Override
@@ -75,9 +131,29 @@ class QuerySpanImpl implements AsyncQuerySpan {
         finish();
     }
 
+    // instrumentation extends the query span while navigating its result set (e.g. jdbc
+    // ResultSet.next()), which is tracked as fetch time
     @Override
     public Timer extend() {
-        return NopTransactionService.TIMER;
+        if (fetchStartTick != 0) {
+            // already extended
+            return NopTransactionService.TIMER;
+        }
+        fetchStartTick = System.nanoTime();
+        return this;
+    }
+
+    @Override
+    public void stop() {
+        if (fetchStartTick != 0) {
+            long nanos = System.nanoTime() - fetchStartTick;
+            fetchNanos += nanos;
+            fetchStartTick = 0;
+            if (ended) {
+                // fetch time before the span ended is already part of the span's own time
+                threadContext.addTimer(timerIndex, nanos, 0);
+            }
+        }
     }
 
     @Override
@@ -86,49 +162,155 @@ class QuerySpanImpl implements AsyncQuerySpan {
     }
 
     @Override
-    public void rowNavigationAttempted() {}
+    public void rowNavigationAttempted() {
+        if (currRow == -1) {
+            currRow = 0;
+        }
+    }
 
     @Override
-    public void incrementCurrRow() {}
+    public void incrementCurrRow() {
+        if (currRow == -1) {
+            currRow = 1;
+        } else {
+            currRow++;
+        }
+        if (currRow > maxRow) {
+            maxRow = currRow;
+        }
+    }
 
     @Override
-    public void setCurrRow(long row) {}
+    public void setCurrRow(long row) {
+        currRow = row;
+        if (row > maxRow) {
+            maxRow = row;
+        }
+    }
 
+    // for async query spans, the sync timer is the time spent on the calling thread, and it is
+    // extended while the calling thread navigates the results, so it is tracked as fetch time too
     @Override
-    public void stopSyncTimer() {}
+    public void stopSyncTimer() {
+        stop();
+    }
 
     @Override
     public Timer extendSyncTimer() {
-        return NopTransactionService.TIMER;
+        return extend();
     }
 
     private void finish() {
-        Global.report(newBuilder().build());
+        finish(null, null);
+    }
+
+    long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    String getQueryType() {
+        return queryType;
+    }
+
+    String getQueryText() {
+        return queryText;
     }
 
-    private void finish(Throwable t) {
-        Global.report(newBuilder()
-                .putTag("error", Throwables.getBestMessage(t))
-                .build());
+    long getExecutionCount() {
+        return executionCount;
     }
 
-    private Span.Builder newBuilder() {
-        long durationMicros = Global.currentTimeMicros() - startTimeMicros;
-        Span.Builder builder = Span.newBuilder()
-                .traceId(spanContext.traceIdString())
-                .parentId(spanContext.parentSpanIdString())
-                .id(spanContext.spanIdString())
+    long getStartTick() {
+        return startTick;
+    }
+
+    // -1 if row navigation was never attempted
+    long getRowCount() {
+        return currRow == -1 ? -1 : maxRow;
+    }
+
+    long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    private void finish(@Nullable String message, @Nullable Throwable t) {
+        if (ended) {
+            return;
+        }
+        endTick = System.nanoTime();
+        if (fetchStartTick != 0) {
+            // the span ended while the fetch timer was still running (e.g. async query spans)
+            fetchNanos += endTick - fetchStartTick;
+            fetchStartTick = 0;
+        }
+        ended = true;
+        error = t;
+        errorMessage = message;
+        threadContext.addTimer(timerIndex, endTick - startTick, 1);
+        if (async || !threadContext.deferQuerySpan(this)) {
+            complete();
+        }
+    }
+
+    // called once the result set is no longer expected to be navigated
+    void complete() {
+        if (fetchStartTick != 0) {
+            // the result set is still being navigated
+            fetchNanos += System.nanoTime() - fetchStartTick;
+            fetchStartTick = 0;
+        }
+        // queries that fail are never aggregated, so that the error is not lost
+        if (error == null && errorMessage == null && aggregate
+                && threadContext.aggregateQuery(this, endTick)) {
+            return;
+        }
+        report(endTick, null);
+    }
+
+    // the aggregate is passed when reporting the first span of a query aggregate, in which case
+    // the span covers the period from the start of the first execution to the end of the last
+    void report(long endTick, @Nullable QueryAggregate queryAggregate) {
+        durationMicros = Math.max((endTick - startTick) / 1000, 1);
+        this.queryAggregate = queryAggregate;
+        reportedRowCount = getRowCount();
+        reportedFetchNanos = fetchNanos;
+        Global.getMetrics().spanReported(AgentMetrics.QUERY);
+        threadContext.report(this, durationMicros, error != null || errorMessage != null);
+    }
+
+    @Override
+    public void writeTo(SpanRecord record) {
+        record.ids(threadContext.getTraceIdHigh(), threadContext.getTraceId(), parentSpanId,
+                spanId)
                 .name(queryText)
+                .timestamp(threadContext.getClock().toEpochMicros(startTick))
+                .duration(durationMicros)
                 .putTag("type", queryType);
         Map<String, ?> detail = queryMessageSupplier.get();
         for (Map.Entry<String, ?> entry : detail.entrySet()) {
             Object value = entry.getValue();
             if (value != null) {
                 // TODO do tags accept null values?
-                builder.putTag(entry.getKey(), value.toString());
+                record.putTag(entry.getKey(), value.toString());
             }
         }
-        return builder.timestamp(startTimeMicros)
-                .duration(Math.max(durationMicros, 1));
+        if (queryAggregate != null) {
+            queryAggregate.putTags(record);
+        } else {
+            if (executionCount != 1) {
+                record.putTag("query.count", Long.toString(executionCount));
+            }
+            if (reportedRowCount != -1) {
+                record.putTag("query.rows", Long.toString(reportedRowCount));
+            }
+            if (reportedFetchNanos != 0) {
+                record.putTag("query.fetch.duration", Long.toString(reportedFetchNanos / 1000));
+            }
+        }
+        if (error != null) {
+            record.putTag("error", Throwables.getBestMessage(error));
+        } else if (errorMessage != null) {
+            record.putTag("error", errorMessage);
+        }
     }
 }
@@ -15,11 +15,10 @@
  */
 package org.glowroot.zipkin.model;
 
-import org.checkerframework.checker.nullness.qual.Nullable;
-
-import org.glowroot.zipkin.util.HexCodec;
-
 // much copied from brave.propagation.TraceContext
+//
+// only primitives, ids are never materialized as strings, they are written as hex directly into the
+// encoded span (see SpanRecordEncoder)
 public class SpanContext {
 
     private final long traceIdHigh;
@@ -49,45 +48,4 @@ public class SpanContext {
     public long getSpanId() {
         return spanId;
     }
-
-    volatile @Nullable String traceIdString; // Lazily initialized and cached.
-
-    /** Returns the hex representation of the span's trace ID */
-    public String traceIdString() {
-        String r = traceIdString;
-        if (r == null) {
-            if (traceIdHigh != 0) {
-                char[] result = new char[32];
-                HexCodec.writeHexLong(result, 0, traceIdHigh);
-                HexCodec.writeHexLong(result, 16, traceId);
-                r = new String(result);
-            } else {
-                r = HexCodec.toLowerHex(traceId);
-            }
-            traceIdString = r;
-        }
-        return r;
-    }
-
-    volatile @Nullable String parentSpanIdString; // Lazily initialized and cached.
-
-    /** Returns the hex representation of the span's parent ID */
-    public @Nullable String parentSpanIdString() {
-        String r = parentSpanIdString;
-        if (r == null && parentSpanId != 0L) {
-            r = parentSpanIdString = HexCodec.toLowerHex(parentSpanId);
-        }
-        return r;
-    }
-
-    volatile @Nullable String spanIdString; // Lazily initialized and cached.
-
-    /** Returns the hex representation of the span's ID */
-    public String spanIdString() {
-        String r = spanIdString;
-        if (r == null) {
-            r = spanIdString = HexCodec.toLowerHex(spanId);
-        }
-        return r;
-    }
 }
@@ -17,7 +17,7 @@ package org.glowroot.zipkin.model;
 
 import java.util.concurrent.TimeUnit;
 
-import zipkin2.Span;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.engine.util.Throwables;
@@ -25,20 +25,52 @@ import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
 import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
 import org.glowroot.xyzzy.instrumentation.api.internal.ReadableMessage;
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.reporter.SpanRecord;
+import org.glowroot.zipkin.sampler.TraceBuffer;
 import org.glowroot.zipkin.util.Global;
 
-public class SpanImpl implements AsyncSpan {
-
-    private final SpanContext spanContext;
+// the message supplier is only evaluated once the span has been handed off (see PendingSpan)
+public class SpanImpl implements AsyncSpan, PendingSpan {
+
+    // trace ids, clock and trace buffer are all obtained from the thread context in order to reduce
+    // the memory footprint of each span
+    private final ThreadContextImpl threadContext;
+    private final long parentSpanId;
+    private final long spanId;
+    // index in the thread context's span stack, or -1 if not pushed (e.g. async spans)
+    private final int stackIndex;
+    // index in the thread context's timer table, or -1 if not timed (e.g. async spans)
+    private final int timerIndex;
+    // see AgentMetrics
+    private final int kind;
     private final String type;
     private final MessageSupplier messageSupplier;
-    private final long startTimeMicros;
+    private final long startTick;
+
+    // set when the span ends, before it is handed off
+    private long durationMicros;
+    private @Nullable Throwable error;
+    // set instead of (or in addition to) the throwable by endWithError(String)
+    private @Nullable String errorMessage;
+
+    protected SpanImpl(ThreadContextImpl threadContext, long parentSpanId, long spanId,
+            int timerIndex, int kind, String type, MessageSupplier messageSupplier) {
+        this(threadContext, parentSpanId, spanId, -1, timerIndex, kind, type, messageSupplier);
+    }
 
-    protected SpanImpl(SpanContext spanContext, String type, MessageSupplier messageSupplier) {
-        this.spanContext = spanContext;
+    SpanImpl(ThreadContextImpl threadContext, long parentSpanId, long spanId, int stackIndex,
+            int timerIndex, int kind, String type, MessageSupplier messageSupplier) {
+        this.threadContext = threadContext;
+        this.parentSpanId = parentSpanId;
+        this.spanId = spanId;
+        this.stackIndex = stackIndex;
+        this.timerIndex = timerIndex;
+        this.kind = kind;
         this.type = type;
         this.messageSupplier = messageSupplier;
-        startTimeMicros = Global.currentTimeMicros();
+        startTick = System.nanoTime();
+        Global.getMetrics().spanStarted(kind);
     }
 
     @Override
@@ -53,17 +85,17 @@ public class SpanImpl implements AsyncSpan {
 
     @Override
     public void endWithError(Throwable t) {
-        finish(t);
+        finish(null, t);
     }
 
     @Override
     public void endWithError(String message) {
-        finish();
+        finish(message, null);
     }
 
     @Override
     public void endWithError(String message, Throwable t) {
-        finish(t);
+        finish(message, t);
     }
 
     @Override
@@ -73,7 +105,7 @@ public class SpanImpl implements AsyncSpan {
 
     @Override
     public Timer extend() {
-        return NopTransactionService.TIMER;
+        return threadContext.extendTimer(timerIndex);
     }
 
     @Override
@@ -89,33 +121,73 @@ public class SpanImpl implements AsyncSpan {
         return NopTransactionService.TIMER;
     }
 
+    protected @Nullable TraceBuffer getTraceBuffer() {
+        return threadContext.getTraceBuffer();
+    }
+
+    protected ThreadContextImpl getThreadContext() {
+        return threadContext;
+    }
+
+    int getStackIndex() {
+        return stackIndex;
+    }
+
+    // spans that end with an error are always reported
+    protected boolean shouldReport(long durationNanos) {
+        return true;
+    }
+
+    // called before the span is reported (and possibly handed off to another thread)
+    protected void preFinish() {}
+
     protected void postFinish() {}
 
+    protected void report(long durationMicros, boolean error) {
+        threadContext.report(this, durationMicros, error);
+    }
+
     private void finish() {
-        Global.report(newBuilder().build());
-        postFinish();
+        finish(null, null);
     }
 
-    private void finish(Throwable t) {
-        Global.report(newBuilder()
-                .putTag("error", Throwables.getBestMessage(t))
-                .build());
+    private void finish(@Nullable String message, @Nullable Throwable t) {
+        long durationNanos = System.nanoTime() - startTick;
+        if (timerIndex != -1) {
+            threadContext.addTimer(timerIndex, durationNanos, 1);
+        }
+        preFinish();
+        boolean hasError = message != null || t != null;
+        boolean report = hasError || shouldReport(durationNanos);
+        if (stackIndex != -1) {
+            threadContext.popSpan(stackIndex, spanId);
+        }
+        if (report) {
+            durationMicros = Math.max(durationNanos / 1000, 1);
+            error = t;
+            errorMessage = message;
+            Global.getMetrics().spanReported(kind);
+            report(durationMicros, hasError);
+        }
         postFinish();
     }
 
-    private Span.Builder newBuilder() {
-        long durationMicros = Global.currentTimeMicros() - startTimeMicros;
-        Span.Builder builder = Span.newBuilder()
-                .traceId(spanContext.traceIdString())
-                .parentId(spanContext.parentSpanIdString())
-                .id(spanContext.spanIdString())
-                .name(getSpanName());
+    @Override
+    public void writeTo(SpanRecord record) {
+        record.ids(threadContext.getTraceIdHigh(), threadContext.getTraceId(), parentSpanId,
+                spanId)
+                .name(getSpanName())
+                .timestamp(threadContext.getClock().toEpochMicros(startTick))
+                .duration(durationMicros);
         if (!type.isEmpty()) {
             // currently this class if being used for incoming spans also which have type ""
-            builder.putTag("type", type);
+            record.putTag("type", type);
+        }
+        if (error != null) {
+            record.putTag("error", Throwables.getBestMessage(error));
+        } else if (errorMessage != null) {
+            record.putTag("error", errorMessage);
         }
-        return builder.timestamp(startTimeMicros)
-                .duration(Math.max(durationMicros, 1));
     }
 
     private String getSpanName() {
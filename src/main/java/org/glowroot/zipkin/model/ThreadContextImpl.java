@@ -15,11 +15,14 @@
  */
 package org.glowroot.zipkin.model;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.instrumentation.api.AsyncQuerySpan;
@@ -31,32 +34,239 @@ import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
 import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
 import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.propagation.Setter;
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.sampler.TraceBuffer;
+import org.glowroot.zipkin.util.Global;
+import org.glowroot.zipkin.util.TraceClock;
 
-public class ThreadContextImpl implements ThreadContextPlus {
+public class ThreadContextImpl implements PropagatingThreadContext {
+
+    private static final int INITIAL_SPAN_STACK_CAPACITY = 8;
+
+    // bounds the memory held by a thread context that executes many distinct queries, beyond this
+    // additional distinct queries are reported individually
+    private static final int MAX_QUERY_AGGREGATES = 100;
 
     private final ThreadContextThreadLocal.Holder threadContextHolder;
 
+    // the span that is active when this thread context starts, which is the root span for the
+    // thread that starts the trace, or the parent span for aux threads
     private final SpanContext spanContext;
+    private final TraceClock clock;
+    private final @Nullable TraceBuffer traceBuffer;
+    // null unless timer aggregation was enabled when the trace started
+    private final @Nullable TimerTable traceTimers;
 
     private @Nullable ServletRequestInfo servletRequestInfo;
 
     private int currentNestingGroupId;
     private int currentSuppressionKeyId;
 
+    // ids of the active (synchronous) spans on this thread, index 0 is spanContext's span id, and
+    // the parent of each span is the span below it
+    //
+    // only accessed by the thread that owns this thread context, so no synchronization needed
+    private long[] spanIdStack = new long[INITIAL_SPAN_STACK_CAPACITY];
+    // whether a child span has been started from the span at the same index
+    private boolean[] childSpanStack = new boolean[INITIAL_SPAN_STACK_CAPACITY];
+    private int spanStackSize;
+
+    // keyed by query text (after normalization, if enabled), only used when query aggregation is
+    // enabled, each aggregate is reported when its parent span ends (or when this thread context
+    // ends for the base span)
+    private @Nullable Map<String, QueryAggregate> queryAggregates;
+    // query spans that end after this thread context has ended are reported individually
+    private boolean queryAggregatesFlushed;
+    // the last synchronous query span that ended on this thread, whose result set may still be
+    // navigated, see QuerySpanImpl
+    private @Nullable QuerySpanImpl pendingQuerySpan;
+
+    // this thread's timers, merged into the trace's timers when this thread context ends
+    private @Nullable TimerTable timers;
+    // timers that stop after this thread context has ended are not tracked
+    private boolean timersFlushed;
+
     public ThreadContextImpl(ThreadContextThreadLocal.Holder threadContextHolder,
-            SpanContext context, @Nullable ServletRequestInfo servletRequestInfo,
+            SpanContext context, TraceClock clock, @Nullable TraceBuffer traceBuffer,
+            @Nullable TimerTable traceTimers, @Nullable ServletRequestInfo servletRequestInfo,
             int rootNestingGroupId, int rootSuppressionKeyId) {
         this.threadContextHolder = threadContextHolder;
         this.spanContext = context;
+        this.clock = clock;
+        this.traceBuffer = traceBuffer;
+        this.traceTimers = traceTimers;
         this.servletRequestInfo = servletRequestInfo;
         currentNestingGroupId = rootNestingGroupId;
         currentSuppressionKeyId = rootSuppressionKeyId;
+        spanIdStack[0] = context.getSpanId();
+        spanStackSize = 1;
     }
 
     ThreadContextThreadLocal.Holder getThreadContextHolder() {
         return threadContextHolder;
     }
 
+    long getTraceIdHigh() {
+        return spanContext.getTraceIdHigh();
+    }
+
+    long getTraceId() {
+        return spanContext.getTraceId();
+    }
+
+    TraceClock getClock() {
+        return clock;
+    }
+
+    @Nullable TraceBuffer getTraceBuffer() {
+        return traceBuffer;
+    }
+
+    void report(PendingSpan span, long durationMicros, boolean error) {
+        if (traceBuffer == null) {
+            Global.report(span);
+        } else {
+            traceBuffer.add(span, durationMicros, error);
+        }
+    }
+
+    // returns -1 if timer aggregation is disabled, or the timer table is full
+    public int getTimerIndex(TimerName timerName) {
+        if (traceTimers == null || timersFlushed) {
+            return -1;
+        }
+        if (timers == null) {
+            timers = new TimerTable();
+        }
+        return timers.indexOf(timerName);
+    }
+
+    Timer extendTimer(int timerIndex) {
+        if (timerIndex == -1) {
+            return NopTransactionService.TIMER;
+        }
+        return new AggregatedTimer(this, timerIndex, 0);
+    }
+
+    void addTimer(int timerIndex, long nanos, int count) {
+        if (timers != null && timerIndex != -1 && !timersFlushed) {
+            timers.add(timerIndex, nanos, count);
+        }
+    }
+
+    // merges this thread's timers into the trace's timers, called when this thread context ends,
+    // returns the trace's timers
+    public @Nullable TimerTable flushTimers() {
+        if (timers != null && traceTimers != null && !timersFlushed) {
+            traceTimers.mergeFrom(timers);
+        }
+        timersFlushed = true;
+        return traceTimers;
+    }
+
+    boolean hasChildSpan(int stackIndex) {
+        return childSpanStack[stackIndex];
+    }
+
+    // spans can end out of order (e.g. a span that is not ended in a finally block), in which case
+    // the spans above it are popped also
+    void popSpan(int stackIndex, long spanId) {
+        if (stackIndex < spanStackSize && spanIdStack[stackIndex] == spanId) {
+            if (pendingQuerySpan != null
+                    && isInSpanStack(pendingQuerySpan.getParentSpanId(), stackIndex)) {
+                // the result set cannot outlive its parent span
+                completePendingQuerySpan();
+            }
+            if (queryAggregates != null && !queryAggregates.isEmpty()) {
+                flushQueryAggregates(stackIndex);
+            }
+            spanStackSize = stackIndex;
+        }
+    }
+
+    // returns false if the query span should be completed right away, since this thread context has
+    // already ended
+    boolean deferQuerySpan(QuerySpanImpl querySpan) {
+        if (queryAggregatesFlushed) {
+            return false;
+        }
+        // instrumentation does not tell when a result set is closed, but it is done with by the
+        // time the next query executes on the same thread
+        completePendingQuerySpan();
+        pendingQuerySpan = querySpan;
+        return true;
+    }
+
+    private void completePendingQuerySpan() {
+        QuerySpanImpl querySpan = pendingQuerySpan;
+        if (querySpan != null) {
+            pendingQuerySpan = null;
+            querySpan.complete();
+        }
+    }
+
+    // returns false if the query span should be reported individually
+    boolean aggregateQuery(QuerySpanImpl querySpan, long endTick) {
+        if (queryAggregatesFlushed) {
+            return false;
+        }
+        if (queryAggregates == null) {
+            queryAggregates = new HashMap<String, QueryAggregate>();
+        }
+        String queryText = querySpan.getQueryText();
+        QueryAggregate queryAggregate = queryAggregates.get(queryText);
+        if (queryAggregate != null && !queryAggregate.matches(querySpan)) {
+            // same query text under a different parent span (which has not ended yet, otherwise
+            // the aggregate would have already been reported), or with a different type
+            queryAggregate.report();
+            queryAggregates.remove(queryText);
+            queryAggregate = null;
+        }
+        if (queryAggregate == null) {
+            if (queryAggregates.size() >= MAX_QUERY_AGGREGATES) {
+                return false;
+            }
+            queryAggregate = new QueryAggregate(querySpan);
+            queryAggregates.put(queryText, queryAggregate);
+        }
+        queryAggregate.add(querySpan, endTick);
+        return true;
+    }
+
+    // called when this thread context ends, before the trace buffer (if any) is completed, also
+    // reports the pending query span (if any)
+    public void flushQueryAggregates() {
+        completePendingQuerySpan();
+        if (queryAggregates != null) {
+            flushQueryAggregates(0);
+        }
+        queryAggregatesFlushed = true;
+    }
+
+    // reports the aggregates whose parent span is being popped from the span stack
+    private void flushQueryAggregates(int stackIndex) {
+        Iterator<QueryAggregate> i = queryAggregates.values().iterator();
+        while (i.hasNext()) {
+            QueryAggregate queryAggregate = i.next();
+            if (isInSpanStack(queryAggregate.getParentSpanId(), stackIndex)) {
+                queryAggregate.report();
+                i.remove();
+            }
+        }
+    }
+
+    private boolean isInSpanStack(long spanId, int fromStackIndex) {
+        for (int i = fromStackIndex; i < spanStackSize; i++) {
+            if (spanIdStack[i] == spanId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean isInTransaction() {
         return true;
@@ -77,48 +287,112 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     @Override
     public Span startLocalSpan(MessageSupplier messageSupplier, TimerName timerName) {
-        return NopTransactionService.LOCAL_SPAN;
+        if (Global.getLocalSpanThresholdNanos() < 0 || isLocalSpansThrottled()) {
+            return NopTransactionService.LOCAL_SPAN;
+        }
+        long parentSpanId = startChildSpan();
+        long spanId = Global.nextId();
+        return new LocalSpanImpl(this, parentSpanId, spanId, pushSpan(spanId),
+                getTimerIndex(timerName), messageSupplier);
     }
 
     @Override
     public QuerySpan startQuerySpan(String queryType, String queryText,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        return new QuerySpanImpl(spanContext, queryType, queryText, queryMessageSupplier);
+        completePendingQuerySpan();
+        if (isQuerySpansThrottled()) {
+            return NopSpan.INSTANCE;
+        }
+        return new QuerySpanImpl(this, startChildSpan(), Global.nextId(),
+                getTimerIndex(timerName), queryType, Global.getQueryName(queryText), 1,
+                queryMessageSupplier, Global.isQueryAggregation(), false);
     }
 
     @Override
     public QuerySpan startQuerySpan(String queryType, String queryText, long queryExecutionCount,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        // TODO pass along queryExecutionCount
-        return new QuerySpanImpl(spanContext, queryType, queryText, queryMessageSupplier);
+        completePendingQuerySpan();
+        if (isQuerySpansThrottled()) {
+            return NopSpan.INSTANCE;
+        }
+        return new QuerySpanImpl(this, startChildSpan(), Global.nextId(),
+                getTimerIndex(timerName), queryType, Global.getQueryName(queryText),
+                queryExecutionCount, queryMessageSupplier, Global.isQueryAggregation(), false);
     }
 
     @Override
     public AsyncQuerySpan startAsyncQuerySpan(String queryType, String queryText,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        return new QuerySpanImpl(spanContext, queryType, queryText, queryMessageSupplier);
+        completePendingQuerySpan();
+        if (isQuerySpansThrottled()) {
+            return NopSpan.INSTANCE;
+        }
+        // async query spans can end on a different thread, so they are not timed either
+        return new QuerySpanImpl(this, startChildSpan(), Global.nextId(), -1, queryType,
+                Global.getQueryName(queryText), 1, queryMessageSupplier, false, true);
     }
 
     @Override
     public Span startOutgoingSpan(String type, String text,
             MessageSupplier messageSupplier, TimerName timerName) {
-        return new SpanImpl(spanContext, type, messageSupplier);
+        long parentSpanId = startChildSpan();
+        long spanId = Global.nextId();
+        return new SpanImpl(this, parentSpanId, spanId, pushSpan(spanId),
+                getTimerIndex(timerName), AgentMetrics.OUTGOING, type, messageSupplier);
     }
 
     @Override
     public AsyncSpan startAsyncOutgoingSpan(String type, String text,
             MessageSupplier messageSupplier, TimerName timerName) {
-        return new SpanImpl(spanContext, type, messageSupplier);
+        // async spans can end on a different thread, so they are not pushed onto the span stack,
+        // and are not timed
+        return new SpanImpl(this, startChildSpan(), Global.nextId(), -1, AgentMetrics.OUTGOING,
+                type, messageSupplier);
+    }
+
+    // same as startOutgoingSpan(), but also injects the new span's context into the carrier (e.g.
+    // http request headers), so that the downstream service continues the trace
+    @Override
+    public <C> Span startOutgoingSpan(String type, String text, Setter<C> setter, C carrier,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        long parentSpanId = startChildSpan();
+        long spanId = Global.nextId();
+        Global.getPropagation().inject(spanContext.getTraceIdHigh(), spanContext.getTraceId(),
+                parentSpanId, spanId, setter, carrier);
+        return new SpanImpl(this, parentSpanId, spanId, pushSpan(spanId),
+                getTimerIndex(timerName), AgentMetrics.OUTGOING, type, messageSupplier);
+    }
+
+    @Override
+    public <C> AsyncSpan startAsyncOutgoingSpan(String type, String text, Setter<C> setter,
+            C carrier, MessageSupplier messageSupplier, TimerName timerName) {
+        long parentSpanId = startChildSpan();
+        long spanId = Global.nextId();
+        Global.getPropagation().inject(spanContext.getTraceIdHigh(), spanContext.getTraceId(),
+                parentSpanId, spanId, setter, carrier);
+        return new SpanImpl(this, parentSpanId, spanId, -1, AgentMetrics.OUTGOING, type,
+                messageSupplier);
     }
 
     @Override
     public Timer startTimer(TimerName timerName) {
-        return NopTransactionService.TIMER;
+        int timerIndex = getTimerIndex(timerName);
+        if (timerIndex == -1) {
+            return NopTransactionService.TIMER;
+        }
+        return new AggregatedTimer(this, timerIndex, 1);
     }
 
     @Override
     public AuxThreadContext createAuxThreadContext() {
-        return new AuxThreadContextImpl(spanContext, servletRequestInfo);
+        int top = spanStackSize - 1;
+        long parentSpanId = startChildSpan();
+        long grandparentSpanId =
+                top == 0 ? spanContext.getParentSpanId() : spanIdStack[top - 1];
+        SpanContext parentSpanContext = new SpanContext(spanContext.getTraceIdHigh(),
+                spanContext.getTraceId(), grandparentSpanId, parentSpanId);
+        return new AuxThreadContextImpl(parentSpanContext, clock, traceBuffer, traceTimers,
+                servletRequestInfo);
     }
 
     @Override
@@ -195,4 +469,33 @@ public class ThreadContextImpl implements ThreadContextPlus {
     public void setCurrentSuppressionKeyId(int suppressionKeyId) {
         this.currentSuppressionKeyId = suppressionKeyId;
     }
+
+    // returns the id of the current span, which is the parent of the child span being started
+    private long startChildSpan() {
+        int top = spanStackSize - 1;
+        childSpanStack[top] = true;
+        return spanIdStack[top];
+    }
+
+    private int pushSpan(long spanId) {
+        if (spanStackSize == spanIdStack.length) {
+            spanIdStack = Arrays.copyOf(spanIdStack, spanStackSize * 2);
+            childSpanStack = Arrays.copyOf(childSpanStack, spanStackSize * 2);
+        }
+        int stackIndex = spanStackSize++;
+        spanIdStack[stackIndex] = spanId;
+        childSpanStack[stackIndex] = false;
+        return stackIndex;
+    }
+
+    // see OverheadGovernor
+    private static boolean isQuerySpansThrottled() {
+        OverheadGovernor overheadGovernor = Global.getOverheadGovernor();
+        return overheadGovernor != null && !overheadGovernor.isQuerySpansEnabled();
+    }
+
+    private static boolean isLocalSpansThrottled() {
+        OverheadGovernor overheadGovernor = Global.getOverheadGovernor();
+        return overheadGovernor != null && !overheadGovernor.isLocalSpansEnabled();
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.model;
+
+import java.util.Arrays;
+
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.reporter.SpanRecord;
+
+// total time and count per timer name, so that the timers the instrumentation already starts
+// (e.g. around servlet filters, jdbc calls, template rendering) give a "where did the time go"
+// breakdown on the root span, without a span per call
+//
+// timer names are looked up by identity (the engine creates a single instance per name), and a
+// trace rarely has more than a handful of distinct timers, so a linear scan over parallel
+// primitive arrays is cheaper than hashing and boxing
+//
+// each thread context accumulates into its own table without synchronization, and merges it into
+// the trace's table when it ends (see ThreadContextImpl.flushTimers)
+public class TimerTable {
+
+    // bounds the memory held per trace, additional distinct timers are not tracked
+    private static final int MAX_TIMERS = 64;
+
+    private static final TimerName[] EMPTY_NAMES = new TimerName[0];
+    private static final long[] EMPTY_LONGS = new long[0];
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private TimerName[] names = EMPTY_NAMES;
+    private long[] totalNanos = EMPTY_LONGS;
+    private int[] counts = EMPTY_INTS;
+    private int size;
+
+    // set once the root span ends, after which (late) aux threads can no longer merge into it
+    private boolean closed;
+
+    // returns -1 if the table is full
+    int indexOf(TimerName name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+        if (size == MAX_TIMERS) {
+            return -1;
+        }
+        if (size == names.length) {
+            int capacity = Math.min(Math.max(size * 2, 4), MAX_TIMERS);
+            names = Arrays.copyOf(names, capacity);
+            totalNanos = Arrays.copyOf(totalNanos, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        names[size] = name;
+        return size++;
+    }
+
+    // count is 0 when an already counted timer is extended
+    void add(int index, long nanos, int count) {
+        totalNanos[index] += nanos;
+        counts[index] += count;
+    }
+
+    // the other table must only be accessed by the calling thread
+    synchronized void mergeFrom(TimerTable other) {
+        if (closed) {
+            return;
+        }
+        for (int i = 0; i < other.size; i++) {
+            int index = indexOf(other.names[i]);
+            if (index != -1) {
+                add(index, other.totalNanos[i], other.counts[i]);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // durations are in microseconds, same as the span duration
+    public synchronized void putTags(SpanRecord record) {
+        for (int i = 0; i < size; i++) {
+            String name = getName(names[i]);
+            record.putTag("timer." + name + ".duration", Long.toString(totalNanos[i] / 1000));
+            record.putTag("timer." + name + ".count", Integer.toString(counts[i]));
+        }
+    }
+
+    private static String getName(TimerName timerName) {
+        if (timerName instanceof ImmutableTimerNameImpl) {
+            return ((ImmutableTimerNameImpl) timerName).name();
+        }
+        return timerName.toString();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.propagation;
+
+// trace context extracted from incoming B3 headers
+//
+// trace id is 0 if only a sampling decision was propagated (e.g. "b3: 0")
+public class B3Context {
+
+    public static final int SAMPLING_DEFERRED = 0;
+    public static final int SAMPLING_SAMPLED = 1;
+    public static final int SAMPLING_NOT_SAMPLED = 2;
+
+    private final long traceIdHigh;
+    private final long traceId;
+    private final long spanId;
+    private final int sampling;
+
+    B3Context(long traceIdHigh, long traceId, long spanId, int sampling) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.sampling = sampling;
+    }
+
+    public long getTraceIdHigh() {
+        return traceIdHigh;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    // the caller's span, which becomes the parent of the incoming span
+    public long getSpanId() {
+        return spanId;
+    }
+
+    public int getSampling() {
+        return sampling;
+    }
+}
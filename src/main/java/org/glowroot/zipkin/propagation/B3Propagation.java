@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.propagation;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.zipkin.util.HexCodec;
+
+// see https://github.com/openzipkin/b3-propagation
+//
+// headers are parsed in place (no substrings, splitting or regexes) and ids are written straight
+// into a char array via HexCodec, so the only allocations are the extracted context and the header
+// value strings that the carrier requires
+//
+// extraction accepts both the single header and multi header formats, injection uses the
+// configured format
+public abstract class B3Propagation {
+
+    public static final B3Propagation MULTI_HEADER = new MultiHeader();
+
+    public static final B3Propagation SINGLE_HEADER = new SingleHeader();
+
+    static final String B3 = "b3";
+    static final String TRACE_ID = "X-B3-TraceId";
+    static final String SPAN_ID = "X-B3-SpanId";
+    static final String PARENT_SPAN_ID = "X-B3-ParentSpanId";
+    static final String SAMPLED = "X-B3-Sampled";
+    static final String FLAGS = "X-B3-Flags";
+
+    public abstract <C> void inject(long traceIdHigh, long traceId, long parentSpanId,
+            long spanId, Setter<C> setter, C carrier);
+
+    // propagates the decision not to sample, so that downstream services don't start new traces
+    public abstract <C> void injectNotSampled(Setter<C> setter, C carrier);
+
+    public static B3Propagation create(String format) {
+        if (format.equals("b3multi")) {
+            return MULTI_HEADER;
+        } else if (format.equals("b3single")) {
+            return SINGLE_HEADER;
+        } else {
+            throw new IllegalArgumentException("Unexpected propagation format: " + format);
+        }
+    }
+
+    public static @Nullable <C> B3Context extract(Getter<C> getter, C carrier) {
+        String b3 = getter.get(carrier, B3);
+        if (b3 != null) {
+            return parseSingleHeader(b3);
+        }
+        String traceIdHex = getter.get(carrier, TRACE_ID);
+        int sampling = parseSampled(getter.get(carrier, SAMPLED), getter.get(carrier, FLAGS));
+        if (traceIdHex == null) {
+            return sampling == B3Context.SAMPLING_DEFERRED ? null
+                    : new B3Context(0, 0, 0, sampling);
+        }
+        String spanIdHex = getter.get(carrier, SPAN_ID);
+        if (spanIdHex == null) {
+            // same as above, the trace can't be continued, but the sampling decision is kept
+            return sampling == B3Context.SAMPLING_DEFERRED ? null
+                    : new B3Context(0, 0, 0, sampling);
+        }
+        int length = traceIdHex.length();
+        long traceIdHigh;
+        long traceId;
+        if (length == 32) {
+            if (!HexCodec.isLowerHex(traceIdHex, 0, 16)) {
+                return null;
+            }
+            traceIdHigh = HexCodec.lowerHexToUnsignedLong(traceIdHex, 0, 16);
+            traceId = HexCodec.lowerHexToUnsignedLong(traceIdHex, 16, 32);
+        } else {
+            traceIdHigh = 0;
+            traceId = HexCodec.lowerHexToUnsignedLong(traceIdHex, 0, length);
+        }
+        long spanId = HexCodec.lowerHexToUnsignedLong(spanIdHex, 0, spanIdHex.length());
+        if (traceId == 0 || spanId == 0) {
+            return null;
+        }
+        return new B3Context(traceIdHigh, traceId, spanId, sampling);
+    }
+
+    // {traceId}-{spanId}[-{sampled}[-{parentSpanId}]], or just {sampled}
+    static @Nullable B3Context parseSingleHeader(CharSequence b3) {
+        int length = b3.length();
+        if (length == 1) {
+            int sampling = parseSamplingChar(b3.charAt(0));
+            return sampling == B3Context.SAMPLING_DEFERRED ? null
+                    : new B3Context(0, 0, 0, sampling);
+        }
+        int pos;
+        long traceIdHigh;
+        if (length > 32 && b3.charAt(32) == '-') {
+            if (!HexCodec.isLowerHex(b3, 0, 16)) {
+                return null;
+            }
+            traceIdHigh = HexCodec.lowerHexToUnsignedLong(b3, 0, 16);
+            pos = 16;
+        } else if (length > 16 && b3.charAt(16) == '-') {
+            traceIdHigh = 0;
+            pos = 0;
+        } else {
+            return null;
+        }
+        long traceId = HexCodec.lowerHexToUnsignedLong(b3, pos, pos + 16);
+        pos += 17;
+        if (length < pos + 16) {
+            return null;
+        }
+        long spanId = HexCodec.lowerHexToUnsignedLong(b3, pos, pos + 16);
+        pos += 16;
+        if (traceId == 0 || spanId == 0) {
+            return null;
+        }
+        int sampling = B3Context.SAMPLING_DEFERRED;
+        if (pos < length) {
+            // sampled flag, optionally followed by parent span id (which is not needed here)
+            if (b3.charAt(pos) != '-' || pos + 1 == length) {
+                return null;
+            }
+            sampling = parseSamplingChar(b3.charAt(pos + 1));
+            if (pos + 2 < length && b3.charAt(pos + 2) != '-') {
+                return null;
+            }
+        }
+        return new B3Context(traceIdHigh, traceId, spanId, sampling);
+    }
+
+    private static int parseSampled(@Nullable String sampled, @Nullable String flags) {
+        if (flags != null && flags.equals("1")) {
+            // debug implies sampled
+            return B3Context.SAMPLING_SAMPLED;
+        }
+        if (sampled == null) {
+            return B3Context.SAMPLING_DEFERRED;
+        }
+        if (sampled.equals("1") || sampled.equalsIgnoreCase("true")) {
+            return B3Context.SAMPLING_SAMPLED;
+        }
+        if (sampled.equals("0") || sampled.equalsIgnoreCase("false")) {
+            return B3Context.SAMPLING_NOT_SAMPLED;
+        }
+        return B3Context.SAMPLING_DEFERRED;
+    }
+
+    private static int parseSamplingChar(char c) {
+        switch (c) {
+            case '1':
+            case 'd':
+                return B3Context.SAMPLING_SAMPLED;
+            case '0':
+                return B3Context.SAMPLING_NOT_SAMPLED;
+            default:
+                return B3Context.SAMPLING_DEFERRED;
+        }
+    }
+
+    private static String toTraceIdHex(long traceIdHigh, long traceId) {
+        if (traceIdHigh == 0) {
+            return HexCodec.toLowerHex(traceId);
+        }
+        char[] data = new char[32];
+        HexCodec.writeHexLong(data, 0, traceIdHigh);
+        HexCodec.writeHexLong(data, 16, traceId);
+        return new String(data);
+    }
+
+    private static class MultiHeader extends B3Propagation {
+
+        @Override
+        public <C> void inject(long traceIdHigh, long traceId, long parentSpanId, long spanId,
+                Setter<C> setter, C carrier) {
+            setter.put(carrier, TRACE_ID, toTraceIdHex(traceIdHigh, traceId));
+            setter.put(carrier, SPAN_ID, HexCodec.toLowerHex(spanId));
+            if (parentSpanId != 0) {
+                setter.put(carrier, PARENT_SPAN_ID, HexCodec.toLowerHex(parentSpanId));
+            }
+            setter.put(carrier, SAMPLED, "1");
+        }
+
+        @Override
+        public <C> void injectNotSampled(Setter<C> setter, C carrier) {
+            setter.put(carrier, SAMPLED, "0");
+        }
+    }
+
+    private static class SingleHeader extends B3Propagation {
+
+        @Override
+        public <C> void inject(long traceIdHigh, long traceId, long parentSpanId, long spanId,
+                Setter<C> setter, C carrier) {
+            int traceIdLength = traceIdHigh == 0 ? 16 : 32;
+            // {traceId}-{spanId}-1[-{parentSpanId}]
+            char[] data = new char[traceIdLength + 19 + (parentSpanId == 0 ? 0 : 17)];
+            int pos = 0;
+            if (traceIdHigh != 0) {
+                HexCodec.writeHexLong(data, pos, traceIdHigh);
+                pos += 16;
+            }
+            HexCodec.writeHexLong(data, pos, traceId);
+            pos += 16;
+            data[pos++] = '-';
+            HexCodec.writeHexLong(data, pos, spanId);
+            pos += 16;
+            data[pos++] = '-';
+            data[pos++] = '1';
+            if (parentSpanId != 0) {
+                data[pos++] = '-';
+                HexCodec.writeHexLong(data, pos, parentSpanId);
+            }
+            setter.put(carrier, B3, new String(data));
+        }
+
+        @Override
+        public <C> void injectNotSampled(Setter<C> setter, C carrier) {
+            setter.put(carrier, B3, "0");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.List;
+
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+
+// spans are encoded by SpanRecordEncoder on the span handoff thread, so there is nothing left for
+// AsyncReporter to encode
+public class EncodedSpanEncoder implements BytesEncoder<byte[]> {
+
+    private final Encoding encoding;
+
+    public EncodedSpanEncoder(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    public int sizeInBytes(byte[] encodedSpan) {
+        return encodedSpan.length;
+    }
+
+    @Override
+    public byte[] encode(byte[] encodedSpan) {
+        return encodedSpan;
+    }
+
+    @Override
+    public byte[] encodeList(List<byte[]> encodedSpans) {
+        return BytesMessageEncoder.forEncoding(encoding).encode(encodedSpans);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// defers building the reporter (e.g. the okhttp client, the AsyncReporter threads and the spool
+// file) until the first span is reported, which keeps those threads and connections out of agent
+// startup, and away from short-lived JVMs that never report a span
+//
+// the first span is normally reported from the span handoff thread, so the application thread
+// does not pay for the initialization either
+//
+// subclasses validate their configuration in their constructor, so that create() only fails on
+// resource errors (e.g. out of threads), in which case the spans are dropped (and counted) and
+// create() is retried after retryIntervalMillis
+//
+// the threads that create() starts to send spans are registered for the reporter thread cpu time
+// metric (see AgentMetrics), they are located by name since AsyncReporter does not expose them
+public abstract class LazyReporter implements Reporter<byte[]>, Flushable, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LazyReporter.class);
+
+    private static final String[] REPORTER_THREAD_NAME_PREFIXES =
+            {"AsyncReporter{", "Zipkin-Agent-Spool-Drain"};
+
+    private final AgentMetrics metrics;
+    private final long retryIntervalMillis;
+
+    private volatile @Nullable Reporter<byte[]> delegate;
+
+    // guarded by this
+    private int failures;
+    private long nextAttemptTick;
+
+    protected LazyReporter(AgentMetrics metrics, long retryIntervalMillis) {
+        this.metrics = metrics;
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    @Override
+    public void report(byte[] encodedSpan) {
+        Reporter<byte[]> delegate = this.delegate;
+        if (delegate == null) {
+            delegate = init();
+            if (delegate == null) {
+                metrics.spansDroppedReporter(1);
+                return;
+            }
+        }
+        delegate.report(encodedSpan);
+    }
+
+    // nothing to flush or close if no span has been reported
+    @Override
+    public void flush() throws IOException {
+        Reporter<byte[]> delegate = this.delegate;
+        if (delegate instanceof Flushable) {
+            ((Flushable) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Reporter<byte[]> delegate = this.delegate;
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    protected abstract Reporter<byte[]> create() throws Exception;
+
+    private synchronized @Nullable Reporter<byte[]> init() {
+        Reporter<byte[]> delegate = this.delegate;
+        if (delegate != null) {
+            return delegate;
+        }
+        if (failures > 0 && System.nanoTime() - nextAttemptTick < 0) {
+            return null;
+        }
+        // so that matching threads of the application (e.g. its own AsyncReporter) are not counted
+        Set<Thread> existingThreads = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+        try {
+            delegate = create();
+        } catch (Throwable t) {
+            // don't retry (and log) on every span
+            if (failures++ == 0) {
+                logger.error("Reporter failed to start, spans will be dropped until it starts"
+                        + " (retrying every {} ms): {}", retryIntervalMillis, t.getMessage(), t);
+            } else {
+                logger.debug(t.getMessage(), t);
+            }
+            nextAttemptTick = System.nanoTime() + MILLISECONDS.toNanos(retryIntervalMillis);
+            return null;
+        }
+        if (failures > 0) {
+            logger.info("Reporter started after {} failed attempts", failures);
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!existingThreads.contains(thread) && isReporterThread(thread.getName())) {
+                metrics.reporterThreadStarted(thread.getId());
+            }
+        }
+        this.delegate = delegate;
+        return delegate;
+    }
+
+    private static boolean isReporterThread(String threadName) {
+        for (String prefix : REPORTER_THREAD_NAME_PREFIXES) {
+            if (threadName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
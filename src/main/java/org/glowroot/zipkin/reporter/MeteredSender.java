@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.IOException;
+import java.util.List;
+
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+// records the latency of each message sent to the collector, see AgentMetrics
+public class MeteredSender extends Sender {
+
+    private final Sender delegate;
+    private final AgentMetrics metrics;
+
+    public MeteredSender(Sender delegate, AgentMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return delegate.encoding();
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return delegate.messageMaxBytes();
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return delegate.messageSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public int messageSizeInBytes(int encodedSizeInBytes) {
+        return delegate.messageSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        return new MeteredCall(delegate.sendSpans(encodedSpans));
+    }
+
+    @Override
+    public CheckResult check() {
+        return delegate.check();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private class MeteredCall extends Call.Base<Void> {
+
+        private final Call<Void> delegate;
+
+        private MeteredCall(Call<Void> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected Void doExecute() throws IOException {
+            long startTick = System.nanoTime();
+            try {
+                return delegate.execute();
+            } finally {
+                metrics.senderRequest(System.nanoTime() - startTick);
+            }
+        }
+
+        @Override
+        protected void doEnqueue(final Callback<Void> callback) {
+            final long startTick = System.nanoTime();
+            delegate.enqueue(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    metrics.senderRequest(System.nanoTime() - startTick);
+                    callback.onSuccess(value);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    metrics.senderRequest(System.nanoTime() - startTick);
+                    callback.onError(t);
+                }
+            });
+        }
+
+        @Override
+        protected void doCancel() {
+            delegate.cancel();
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new MeteredCall(delegate.clone());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// bounded, preallocated, lock-free multi-producer single-consumer queue
+//
+// producers claim a slot by CAS on the producer index and then publish the element into the slot,
+// the consumer waits for a claimed slot to be published (which happens almost immediately) and
+// then releases it by clearing the slot and advancing the consumer index
+//
+// the producer and consumer indexes are each padded out to their own cache line (same as
+// StripedIdGenerator), so that the consumer advancing does not invalidate the line that producers
+// CAS on (and vice versa)
+class MpscRingBuffer<E> {
+
+    // 8 longs = 64 bytes = typical cache line
+    private static final int PRODUCER_INDEX = 8;
+    private static final int CONSUMER_INDEX = 16;
+    private static final int INDEXES_LENGTH = 24;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLongArray indexes = new AtomicLongArray(INDEXES_LENGTH);
+
+    MpscRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity - 1, 1)) << 1;
+        buffer = new AtomicReferenceArray<E>(capacity);
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // returns false (without blocking) if full
+    boolean offer(E element) {
+        while (true) {
+            long producerIndex = indexes.get(PRODUCER_INDEX);
+            if (producerIndex - indexes.get(CONSUMER_INDEX) > mask) {
+                return false;
+            }
+            if (indexes.compareAndSet(PRODUCER_INDEX, producerIndex, producerIndex + 1)) {
+                buffer.lazySet((int) producerIndex & mask, element);
+                return true;
+            }
+        }
+    }
+
+    // must only be called by the single consumer thread
+    @Nullable
+    E poll() {
+        long consumerIndex = indexes.get(CONSUMER_INDEX);
+        int offset = (int) consumerIndex & mask;
+        E element = buffer.get(offset);
+        if (element == null) {
+            if (consumerIndex == indexes.get(PRODUCER_INDEX)) {
+                return null;
+            }
+            // slot claimed by a producer but not yet published
+            do {
+                element = buffer.get(offset);
+            } while (element == null);
+        }
+        buffer.lazySet(offset, null);
+        indexes.lazySet(CONSUMER_INDEX, consumerIndex + 1);
+        return element;
+    }
+
+    int size() {
+        long size = indexes.get(PRODUCER_INDEX) - indexes.get(CONSUMER_INDEX);
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+}
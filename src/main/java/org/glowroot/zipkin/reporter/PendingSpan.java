@@ -0,0 +1,28 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+// a span that has ended, but has not been materialized yet (its message supplier has not been
+// evaluated and it has not been encoded), so that the work can be done off the application thread
+// (see SpanHandoff), and skipped entirely if the span is dropped
+//
+// implementations must not be modified after they are handed off, so anything that can still
+// change once the span has been handed off (e.g. a query span's row count) must be copied into
+// fields that are only written before the handoff, since writeTo() runs on the handoff thread
+public interface PendingSpan {
+
+    void writeTo(SpanRecord record);
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.Collections.newSetFromMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// ended spans are handed off from application threads to a single background thread, which
+// evaluates their message suppliers, encodes them and passes them on to the reporter, so that
+// ending a span costs the application thread little more than adding it to an array
+//
+// each application thread collects its ended spans into a small thread-local batch, and only
+// publishes the batch as a whole (through a lock-free ring buffer, see MpscRingBuffer) when it is
+// full, or when a root span or aux thread context ends (see flush), which amortizes the cross-core
+// traffic over the batch
+//
+// the handoff thread also periodically sweeps the batches of threads that have gone idle with
+// spans still in them (e.g. a thread that only ended an async span), without any lock, see Batch
+//
+// the application thread never blocks, batches are dropped (without their spans ever being
+// materialized) when the background thread falls behind and the ring buffer is full
+public class SpanHandoff implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanHandoff.class);
+
+    // spans in the batch of an idle thread are published after one to two sweep intervals
+    private static final long SWEEP_INTERVAL_NANOS = MILLISECONDS.toNanos(500);
+
+    private final SpanRecordEncoder spanEncoder;
+    private final Reporter<byte[]> reporter;
+    private final int batchSize;
+    private final MpscRingBuffer<PendingSpan[]> ringBuffer;
+    private final WaitStrategy waitStrategy;
+    private final AgentMetrics metrics;
+
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+    // batches that may contain spans, so that the handoff thread can sweep them
+    private final Set<Batch> activeBatches = newSetFromMap(new ConcurrentHashMap<Batch, Boolean>());
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    // the ring buffer holds max pending spans / batch size batches, rounded up to a power of 2
+    public SpanHandoff(SpanRecordEncoder spanEncoder, Reporter<byte[]> reporter,
+            int maxPendingSpans, int batchSize, WaitStrategy waitStrategy, AgentMetrics metrics) {
+        this.spanEncoder = spanEncoder;
+        this.reporter = reporter;
+        this.batchSize = batchSize;
+        ringBuffer = new MpscRingBuffer<PendingSpan[]>(Math.max(maxPendingSpans / batchSize, 1));
+        this.waitStrategy = waitStrategy;
+        this.metrics = metrics;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SpanHandoff.this.run();
+            }
+        }, "Zipkin-Agent-Span-Handoff");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void offer(PendingSpan span) {
+        batches.get().add(span);
+    }
+
+    // publishes the current thread's batch, called when a root span or an aux thread context ends
+    public void flush() {
+        batches.get().flush();
+    }
+
+    public int getPendingBatches() {
+        return ringBuffer.size();
+    }
+
+    // in batches
+    public int getCapacity() {
+        return ringBuffer.capacity();
+    }
+
+    public long getThreadId() {
+        return thread.getId();
+    }
+
+    // publishes all batches, and reports the spans that are already published before returning
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the array may have trailing nulls (after count spans), see Batch.flush()
+    private void publish(PendingSpan[] spans, int count) {
+        if (!ringBuffer.offer(spans)) {
+            metrics.spansDroppedQueueFull(count);
+        }
+    }
+
+    private void run() {
+        int idleCount = 0;
+        long lastSweepTick = System.nanoTime();
+        while (!closed) {
+            PendingSpan[] spans = ringBuffer.poll();
+            if (spans == null) {
+                idleCount = waitStrategy.idle(idleCount);
+            } else {
+                report(spans);
+                idleCount = 0;
+            }
+            long currentTick = System.nanoTime();
+            if (currentTick - lastSweepTick >= SWEEP_INTERVAL_NANOS) {
+                for (Batch batch : activeBatches) {
+                    batch.sweep();
+                }
+                lastSweepTick = currentTick;
+            }
+        }
+        for (Batch batch : activeBatches) {
+            batch.drain();
+        }
+        PendingSpan[] spans;
+        while ((spans = ringBuffer.poll()) != null) {
+            report(spans);
+        }
+    }
+
+    private void report(PendingSpan[] spans) {
+        for (PendingSpan span : spans) {
+            if (span == null) {
+                break;
+            }
+            byte[] encodedSpan;
+            try {
+                encodedSpan = spanEncoder.encode(span);
+            } catch (Throwable t) {
+                // e.g. a message supplier that throws, which should not stop the other spans
+                logger.error(t.getMessage(), t);
+                metrics.spanDroppedEncodingError();
+                continue;
+            }
+            metrics.bytesEncoded(encodedSpan.length);
+            try {
+                reporter.report(encodedSpan);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    // the owner thread appends to the current segment with a plain array store followed by a
+    // volatile store of the size, and the handoff thread (which never writes to the array) claims
+    // and copies spans up to the size it reads, spans are published by whichever thread claims them
+    // first (see Segment.claim), so they are never published twice
+    //
+    // when the handoff thread finds that a batch has not changed since the last sweep, it
+    // unregisters the batch and retires its segment, and the owner thread re-registers the batch
+    // (on a new segment) once it sees that, both sides write then read (the retired flag and the
+    // size, or the retired flag and the current segment), so at least one of them sees the other's
+    // write, and no span is left behind in an unregistered batch
+    private class Batch {
+
+        // written only by the owner thread, null until the first span is added
+        private volatile @Nullable Segment current;
+
+        // only accessed by the handoff thread
+        private @Nullable Segment lastSweptSegment;
+        private int lastSweptSize;
+
+        private void add(PendingSpan span) {
+            Segment segment = current;
+            if (segment == null) {
+                segment = new Segment(batchSize);
+                current = segment;
+                activeBatches.add(this);
+            }
+            int size = segment.size;
+            segment.spans[size++] = span;
+            segment.size = size;
+            if (segment.retired) {
+                renew(segment);
+            } else if (size == segment.spans.length) {
+                publishOwned(segment, size);
+                replace(segment, new Segment(batchSize));
+            }
+        }
+
+        private void flush() {
+            Segment segment = current;
+            if (segment == null || segment.size == 0) {
+                return;
+            }
+            publishOwned(segment, segment.size);
+            // release the references so the spans can be collected once reported
+            replace(segment, new Segment(batchSize));
+        }
+
+        // called by the owner thread once no more spans will be added to the segment, which
+        // means the array itself can be published when none of its spans have been claimed yet
+        private void publishOwned(Segment segment, int size) {
+            int start = segment.claim(size);
+            if (start == 0) {
+                publish(segment.spans, size);
+            } else if (start != -1) {
+                publish(Arrays.copyOfRange(segment.spans, start, size), size - start);
+            }
+        }
+
+        // called by the owner thread when the handoff thread has swept the batch, the spans that
+        // the handoff thread did not claim are carried over to the new segment
+        private void renew(Segment retired) {
+            Segment segment = new Segment(batchSize);
+            int size = retired.size;
+            int start = retired.claim(size);
+            if (start != -1) {
+                System.arraycopy(retired.spans, start, segment.spans, 0, size - start);
+                segment.size = size - start;
+            }
+            current = segment;
+            activeBatches.add(this);
+            if (segment.size == segment.spans.length) {
+                publishOwned(segment, segment.size);
+                replace(segment, new Segment(batchSize));
+            }
+        }
+
+        private void replace(Segment segment, Segment next) {
+            current = next;
+            if (segment.retired) {
+                activeBatches.add(this);
+            }
+        }
+
+        // called by the handoff thread, batches that have been added to since the last sweep are
+        // left alone, since their threads are still active (and will flush soon enough)
+        private void sweep() {
+            Segment segment = current;
+            if (segment == null) {
+                return;
+            }
+            int size = segment.size;
+            if (segment != lastSweptSegment || size != lastSweptSize) {
+                lastSweptSegment = segment;
+                lastSweptSize = size;
+                return;
+            }
+            lastSweptSegment = null;
+            // the thread re-registers the batch if it adds to it again, and if the thread has
+            // died, this allows the batch to be collected
+            activeBatches.remove(this);
+            segment.retired = true;
+            drain(segment);
+            if (current != segment) {
+                // the owner thread moved on to a new segment without seeing the retired flag
+                activeBatches.add(this);
+            }
+        }
+
+        // called by the handoff thread
+        private void drain() {
+            Segment segment = current;
+            if (segment != null) {
+                drain(segment);
+            }
+        }
+
+        private void drain(Segment segment) {
+            int size = segment.size;
+            int start = segment.claim(size);
+            if (start != -1) {
+                // the owner thread may still be adding to the array, so it is copied
+                publish(Arrays.copyOfRange(segment.spans, start, size), size - start);
+            }
+        }
+    }
+
+    private static class Segment {
+
+        private static final AtomicIntegerFieldUpdater<Segment> claimedUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(Segment.class, "claimed");
+
+        private final PendingSpan[] spans;
+        // written only by the owner thread
+        private volatile int size;
+        // spans before this index have been claimed for publishing
+        private volatile int claimed;
+        // written only by the handoff thread
+        private volatile boolean retired;
+
+        private Segment(int batchSize) {
+            spans = new PendingSpan[batchSize];
+        }
+
+        // returns the start of the claimed range (which ends at size), or -1 if there is nothing
+        // left to claim
+        private int claim(int size) {
+            while (true) {
+                int start = claimed;
+                if (start >= size) {
+                    return -1;
+                }
+                if (claimedUpdater.compareAndSet(this, start, size)) {
+                    return start;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// mutable span fields that are encoded directly into the wire format (see SpanRecordEncoder),
+// instead of going through zipkin2.Span.Builder and zipkin2.Span
+//
+// each thread reuses a single instance, see acquire() and release()
+public class SpanRecord {
+
+    private static final ThreadLocal<SpanRecord> threadLocal = new ThreadLocal<SpanRecord>() {
+        @Override
+        protected SpanRecord initialValue() {
+            return new SpanRecord();
+        }
+    };
+
+    long traceIdHigh;
+    long traceId;
+    long parentId;
+    long id;
+    @Nullable String name;
+    long timestamp;
+    long duration;
+
+    String[] tagKeys = new String[8];
+    String[] tagValues = new String[8];
+    int tagCount;
+
+    private boolean inUse;
+
+    private SpanRecord() {}
+
+    public static SpanRecord acquire() {
+        SpanRecord record = threadLocal.get();
+        if (record.inUse) {
+            // re-entrant use on the same thread, e.g. a span ended from within a message supplier
+            record = new SpanRecord();
+        }
+        record.inUse = true;
+        return record;
+    }
+
+    public void release() {
+        // don't retain references to application strings
+        name = null;
+        Arrays.fill(tagKeys, 0, tagCount, null);
+        Arrays.fill(tagValues, 0, tagCount, null);
+        tagCount = 0;
+        inUse = false;
+    }
+
+    public SpanRecord ids(long traceIdHigh, long traceId, long parentId, long id) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceId = traceId;
+        this.parentId = parentId;
+        this.id = id;
+        return this;
+    }
+
+    // same semantics as zipkin2.Span.Builder.name(), which lowercases the name (toLowerCase()
+    // returns the same instance when there is nothing to lowercase)
+    public SpanRecord name(@Nullable String name) {
+        this.name = name == null || name.isEmpty() ? null : name.toLowerCase(Locale.ROOT);
+        return this;
+    }
+
+    public SpanRecord timestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    public SpanRecord duration(long duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    // same semantics as zipkin2.Span.Builder.putTag(), the last value for a given key wins
+    //
+    // tags are kept sorted by key (insertion sort, there are only ever a handful), since
+    // zipkin2.Span keeps them in a TreeMap, and SpanRecordEncoder writes them in this order
+    public SpanRecord putTag(String key, String value) {
+        int i = 0;
+        while (i < tagCount) {
+            int cmp = tagKeys[i].compareTo(key);
+            if (cmp == 0) {
+                tagValues[i] = value;
+                return this;
+            }
+            if (cmp > 0) {
+                break;
+            }
+            i++;
+        }
+        if (tagCount == tagKeys.length) {
+            tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+            tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+        }
+        System.arraycopy(tagKeys, i, tagKeys, i + 1, tagCount - i);
+        System.arraycopy(tagValues, i, tagValues, i + 1, tagCount - i);
+        tagKeys[i] = key;
+        tagValues[i] = value;
+        tagCount++;
+        return this;
+    }
+}
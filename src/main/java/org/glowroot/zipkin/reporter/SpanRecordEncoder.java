@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import zipkin2.codec.Encoding;
+
+// encodes a SpanRecord into the same bytes that zipkin2.codec.SpanBytesEncoder would produce for
+// the equivalent zipkin2.Span (tags in key order, see SpanRecord.putTag()), which can then be
+// reported as is (see EncodedSpanEncoder)
+public abstract class SpanRecordEncoder {
+
+    public static final SpanRecordEncoder JSON_V2 = new JsonV2();
+
+    public static final SpanRecordEncoder PROTO3 = new Proto3();
+
+    // tag and max varint length of the field 1 (repeated Span) prefix of ListOfSpans
+    private static final int PROTO3_PREFIX_MAX_BYTES = 6;
+
+    public byte[] encode(PendingSpan span) {
+        SpanRecord record = SpanRecord.acquire();
+        try {
+            span.writeTo(record);
+            return encode(record);
+        } finally {
+            record.release();
+        }
+    }
+
+    public abstract byte[] encode(SpanRecord record);
+
+    public abstract Encoding encoding();
+
+    public static SpanRecordEncoder forEncoding(Encoding encoding) {
+        switch (encoding) {
+            case JSON:
+                return JSON_V2;
+            case PROTO3:
+                return PROTO3;
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+    }
+
+    private static class JsonV2 extends SpanRecordEncoder {
+
+        @Override
+        public byte[] encode(SpanRecord record) {
+            WriteBuffer b = WriteBuffer.get();
+            b.writeAscii("{\"traceId\":\"");
+            if (record.traceIdHigh != 0) {
+                b.writeLowerHex(record.traceIdHigh);
+            }
+            b.writeLowerHex(record.traceId);
+            if (record.parentId != 0) {
+                b.writeAscii("\",\"parentId\":\"");
+                b.writeLowerHex(record.parentId);
+            }
+            b.writeAscii("\",\"id\":\"");
+            b.writeLowerHex(record.id);
+            b.writeByte('"');
+            if (record.name != null) {
+                b.writeAscii(",\"name\":\"");
+                b.writeJsonEscaped(record.name);
+                b.writeByte('"');
+            }
+            if (record.timestamp != 0) {
+                b.writeAscii(",\"timestamp\":");
+                b.writeAsciiLong(record.timestamp);
+            }
+            if (record.duration != 0) {
+                b.writeAscii(",\"duration\":");
+                b.writeAsciiLong(record.duration);
+            }
+            if (record.tagCount != 0) {
+                b.writeAscii(",\"tags\":{");
+                for (int i = 0; i < record.tagCount; i++) {
+                    if (i != 0) {
+                        b.writeByte(',');
+                    }
+                    b.writeByte('"');
+                    b.writeJsonEscaped(record.tagKeys[i]);
+                    b.writeAscii("\":\"");
+                    b.writeJsonEscaped(record.tagValues[i]);
+                    b.writeByte('"');
+                }
+                b.writeByte('}');
+            }
+            b.writeByte('}');
+            return b.toByteArray(0);
+        }
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+    }
+
+    // see zipkin.proto3, each span is encoded as a single entry of ListOfSpans so that the bytes
+    // can be concatenated into a message
+    private static class Proto3 extends SpanRecordEncoder {
+
+        @Override
+        public byte[] encode(SpanRecord record) {
+            WriteBuffer b = WriteBuffer.get();
+            // the length of the span isn't known until it's written, so space is reserved for the
+            // prefix, which is then written immediately before the span
+            b.skip(PROTO3_PREFIX_MAX_BYTES);
+            b.writeByte(0x0a); // field 1 (trace_id), wire type 2
+            if (record.traceIdHigh != 0) {
+                b.writeByte(16);
+                b.writeLongBigEndian(record.traceIdHigh);
+            } else {
+                b.writeByte(8);
+            }
+            b.writeLongBigEndian(record.traceId);
+            if (record.parentId != 0) {
+                b.writeByte(0x12); // field 2 (parent_id), wire type 2
+                b.writeByte(8);
+                b.writeLongBigEndian(record.parentId);
+            }
+            b.writeByte(0x1a); // field 3 (id), wire type 2
+            b.writeByte(8);
+            b.writeLongBigEndian(record.id);
+            if (record.name != null) {
+                b.writeByte(0x2a); // field 5 (name), wire type 2
+                writeString(b, record.name);
+            }
+            if (record.timestamp != 0) {
+                b.writeByte(0x31); // field 6 (timestamp), wire type 1
+                b.writeLongLittleEndian(record.timestamp);
+            }
+            if (record.duration != 0) {
+                b.writeByte(0x38); // field 7 (duration), wire type 0
+                b.writeVarint(record.duration);
+            }
+            for (int i = 0; i < record.tagCount; i++) {
+                String key = record.tagKeys[i];
+                String value = record.tagValues[i];
+                int keySize = WriteBuffer.utf8SizeInBytes(key);
+                int valueSize = WriteBuffer.utf8SizeInBytes(value);
+                b.writeByte(0x5a); // field 11 (tags), wire type 2
+                b.writeVarint(1 + WriteBuffer.varintSizeInBytes(keySize) + keySize + 1
+                        + WriteBuffer.varintSizeInBytes(valueSize) + valueSize);
+                b.writeByte(0x0a); // map entry key
+                b.writeVarint(keySize);
+                b.writeUtf8(key);
+                b.writeByte(0x12); // map entry value
+                b.writeVarint(valueSize);
+                b.writeUtf8(value);
+            }
+            int start = b.writeVarintBefore(PROTO3_PREFIX_MAX_BYTES,
+                    b.pos() - PROTO3_PREFIX_MAX_BYTES);
+            start = b.writeByteBefore(start, 0x0a); // ListOfSpans field 1, wire type 2
+            return b.toByteArray(start);
+        }
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.PROTO3;
+        }
+
+        private static void writeString(WriteBuffer b, String s) {
+            b.writeVarint(WriteBuffer.utf8SizeInBytes(s));
+            b.writeUtf8(s);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// bounded FIFO of encoded span messages, stored in a memory-mapped file so that spooled messages
+// do not take up heap, and so that they survive a restart of the monitored JVM
+//
+// file layout:
+//
+// header:  magic (int), data capacity (int), head (int), tail (int), count (int)
+// data:    circular buffer of records, each record is
+//          record length (int), span count (int), then for each span: length (int), bytes
+//
+// records are never split across the end of the data region, when a record does not fit before
+// the end, a WRAP marker is written (if there is room for it) and the record is written at the
+// start of the data region instead
+class SpanSpool {
+
+    private static final int MAGIC = 0x5a53504c; // "ZSPL"
+
+    private static final int HEADER_SIZE = 20;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+
+    private static final int WRAP = -1;
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int head;
+    private int tail;
+    private int count;
+
+    SpanSpool(File file, int capacity) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        FileChannel channel = this.file.getChannel();
+        lock = channel.tryLock();
+        if (lock == null) {
+            this.file.close();
+            throw new IOException("Spool file is locked by another process: " + file);
+        }
+        this.capacity = capacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(CAPACITY_OFFSET) == capacity) {
+            // resume spool from previous run
+            head = buffer.getInt(HEAD_OFFSET);
+            tail = buffer.getInt(TAIL_OFFSET);
+            count = buffer.getInt(COUNT_OFFSET);
+        }
+        if (head < 0 || head > capacity || tail < 0 || tail > capacity || count < 0) {
+            // corrupt header
+            head = 0;
+            tail = 0;
+            count = 0;
+        }
+        if (count == 0) {
+            // new file, or the capacity was re-configured, or nothing left to resume
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            writeHeader();
+        }
+    }
+
+    // returns false if there is not enough room
+    synchronized boolean offer(List<byte[]> encodedSpans) {
+        int recordLength = 8;
+        for (byte[] encodedSpan : encodedSpans) {
+            recordLength += 4 + encodedSpan.length;
+        }
+        int pos = reserve(recordLength);
+        if (pos == -1) {
+            return false;
+        }
+        buffer.putInt(HEADER_SIZE + pos, recordLength);
+        buffer.putInt(HEADER_SIZE + pos + 4, encodedSpans.size());
+        int offset = HEADER_SIZE + pos + 8;
+        for (byte[] encodedSpan : encodedSpans) {
+            buffer.putInt(offset, encodedSpan.length);
+            buffer.position(offset + 4);
+            buffer.put(encodedSpan);
+            offset += 4 + encodedSpan.length;
+        }
+        tail = pos + recordLength;
+        count++;
+        writeHeader();
+        return true;
+    }
+
+    // returns the oldest message without removing it
+    synchronized @Nullable List<byte[]> peek() {
+        if (count == 0) {
+            return null;
+        }
+        skipWrap();
+        int spanCount = buffer.getInt(HEADER_SIZE + head + 4);
+        List<byte[]> encodedSpans = new ArrayList<byte[]>(spanCount);
+        int offset = HEADER_SIZE + head + 8;
+        for (int i = 0; i < spanCount; i++) {
+            byte[] encodedSpan = new byte[buffer.getInt(offset)];
+            buffer.position(offset + 4);
+            buffer.get(encodedSpan);
+            encodedSpans.add(encodedSpan);
+            offset += 4 + encodedSpan.length;
+        }
+        return encodedSpans;
+    }
+
+    // removes the oldest message
+    synchronized void remove() {
+        if (count == 0) {
+            return;
+        }
+        skipWrap();
+        head += buffer.getInt(HEADER_SIZE + head);
+        count--;
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        }
+        writeHeader();
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized void close() throws IOException {
+        buffer.force();
+        lock.release();
+        file.close();
+    }
+
+    // returns the position to write the record at, or -1 if there is not enough room
+    private int reserve(int recordLength) {
+        if (count == 0) {
+            return recordLength <= capacity ? 0 : -1;
+        }
+        if (tail > head) {
+            if (capacity - tail >= recordLength) {
+                return tail;
+            }
+            if (head >= recordLength) {
+                // no room before the end, wrap around to the start
+                if (capacity - tail >= 4) {
+                    buffer.putInt(HEADER_SIZE + tail, WRAP);
+                }
+                return 0;
+            }
+            return -1;
+        }
+        // tail has wrapped around behind head (or tail == head which means full)
+        return head - tail >= recordLength ? tail : -1;
+    }
+
+    private void skipWrap() {
+        if (capacity - head < 4 || buffer.getInt(HEADER_SIZE + head) == WRAP) {
+            head = 0;
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(HEAD_OFFSET, head);
+        buffer.putInt(TAIL_OFFSET, tail);
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+// when the collector is slow or down, messages are spilled to a memory-mapped spool file instead of
+// being dropped (or being held on heap by AsyncReporter while it waits on the sender), and a
+// background thread drains the spool in order once the collector recovers
+//
+// once anything is in the spool, new messages are appended to the spool as well (instead of going
+// directly to the delegate sender) so that messages are delivered in order
+//
+// only transient failures (IOException, e.g. connection refused, or a 5xx, 408 or 429 response,
+// see TransientResponseInterceptor) are spooled and retried, and each spooled message is retried
+// at most maxRetries times, so that a message the collector rejects (e.g. 400) cannot block the
+// spool behind it forever
+public class SpoolingSender extends Sender {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolingSender.class);
+
+    private final Sender delegate;
+    private final SpanSpool spool;
+    private final long retryIntervalMillis;
+    private final int maxRetries;
+    private final AgentMetrics metrics;
+
+    private final Thread drainThread;
+    private final Object drainLock = new Object();
+
+    private volatile boolean closed;
+
+    public SpoolingSender(Sender delegate, File spoolFile, int spoolMaxBytes,
+            long retryIntervalMillis, int maxRetries, AgentMetrics metrics) throws IOException {
+        this.delegate = delegate;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.maxRetries = maxRetries;
+        this.metrics = metrics;
+        spool = new SpanSpool(spoolFile, spoolMaxBytes);
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Zipkin-Agent-Spool-Drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @Override
+    public Encoding encoding() {
+        return delegate.encoding();
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return delegate.messageMaxBytes();
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return delegate.messageSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public int messageSizeInBytes(int encodedSizeInBytes) {
+        return delegate.messageSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        return new SpoolingCall(encodedSpans);
+    }
+
+    @Override
+    public CheckResult check() {
+        return delegate.check();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        drainThread.interrupt();
+        try {
+            drainThread.join(retryIntervalMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+        spool.close();
+    }
+
+    int spooledMessageCount() {
+        return spool.size();
+    }
+
+    private void send(List<byte[]> encodedSpans) throws IOException {
+        if (!spool.isEmpty()) {
+            spill(encodedSpans, null);
+            return;
+        }
+        try {
+            delegate.sendSpans(encodedSpans).execute();
+        } catch (IOException e) {
+            spill(encodedSpans, e);
+        } catch (RuntimeException e) {
+            if (!isTransient(e)) {
+                // retrying would only fail the same way, the caller (AsyncReporter) records this
+                // as dropped spans
+                throw e;
+            }
+            spill(encodedSpans, e);
+        }
+    }
+
+    private void spill(List<byte[]> encodedSpans, @Nullable Exception sendFailure)
+            throws IOException {
+        if (!spool.offer(encodedSpans)) {
+            // the caller (AsyncReporter) records this as dropped spans
+            if (sendFailure instanceof IOException) {
+                throw (IOException) sendFailure;
+            }
+            throw new IOException("Spool is full", sendFailure);
+        }
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+
+    private void drain() {
+        // failed attempts to send the message at the head of the spool
+        int failures = 0;
+        while (!closed) {
+            try {
+                List<byte[]> encodedSpans = spool.peek();
+                if (encodedSpans == null) {
+                    synchronized (drainLock) {
+                        if (spool.isEmpty()) {
+                            drainLock.wait();
+                        }
+                    }
+                    continue;
+                }
+                try {
+                    delegate.sendSpans(encodedSpans).execute();
+                    spool.remove();
+                    failures = 0;
+                } catch (Exception e) {
+                    failures++;
+                    if (!isTransient(e)) {
+                        drop(encodedSpans, "rejected by the collector", e);
+                        failures = 0;
+                    } else if (failures >= maxRetries) {
+                        drop(encodedSpans, "still failing after " + failures + " retries", e);
+                        failures = 0;
+                    } else {
+                        if (failures == 1) {
+                            logger.warn("Collector unavailable, retrying spooled messages every"
+                                    + " {} ms: {}", retryIntervalMillis, e.getMessage());
+                        }
+                        logger.debug(e.getMessage(), e);
+                        Thread.sleep(retryIntervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+                return;
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private void drop(List<byte[]> encodedSpans, String reason, Exception e) {
+        spool.remove();
+        metrics.spansDroppedSpool(encodedSpans.size());
+        logger.warn("Dropped spooled message of {} spans, {}: {}", encodedSpans.size(), reason,
+                e.getMessage(), e);
+    }
+
+    private static boolean isTransient(Throwable t) {
+        return t instanceof IOException;
+    }
+
+    private class SpoolingCall extends Call.Base<Void> {
+
+        private final List<byte[]> encodedSpans;
+
+        private SpoolingCall(List<byte[]> encodedSpans) {
+            this.encodedSpans = encodedSpans;
+        }
+
+        @Override
+        protected Void doExecute() throws IOException {
+            send(encodedSpans);
+            return null;
+        }
+
+        @Override
+        protected void doEnqueue(Callback<Void> callback) {
+            try {
+                send(encodedSpans);
+                callback.onSuccess(null);
+            } catch (Throwable t) {
+                Call.propagateIfFatal(t);
+                callback.onError(t);
+            }
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new SpoolingCall(encodedSpans);
+        }
+    }
+
+    // zipkin's okhttp sender reports every non-2xx response as a RuntimeException (without the
+    // status code), so responses worth retrying are turned into IOException before they reach it
+    public static class TransientResponseInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Response response = chain.proceed(chain.request());
+            int code = response.code();
+            if (code >= 500 || code == 408 || code == 429) {
+                response.close();
+                throw new IOException("Collector responded with " + code);
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.List;
+
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Reporter;
+
+// AsyncReporter sends each message synchronously from a single flush thread, so in order to have
+// multiple messages in flight to the collector, spans are spread across multiple AsyncReporters
+// (each with its own flush thread)
+//
+// spans are only ever reported from the span handoff thread (see SpanHandoff), so they are assigned
+// round robin without any synchronization
+public class StripedReporter<S> implements Reporter<S>, Flushable, Closeable {
+
+    private final AsyncReporter<S>[] reporters;
+
+    private int next;
+
+    @SuppressWarnings("unchecked")
+    public StripedReporter(List<AsyncReporter<S>> reporters) {
+        this.reporters = reporters.toArray(new AsyncReporter[reporters.size()]);
+    }
+
+    @Override
+    public void report(S span) {
+        reporters[next].report(span);
+        if (++next == reporters.length) {
+            next = 0;
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (AsyncReporter<S> reporter : reporters) {
+            reporter.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (AsyncReporter<S> reporter : reporters) {
+            reporter.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.concurrent.locks.LockSupport;
+
+// how the SpanHandoff thread waits when there are no spans to process
+//
+// producers (application threads) never signal the handoff thread, since that would put a
+// syscall back on the application thread, so the handoff thread polls
+public enum WaitStrategy {
+
+    // lowest latency, but burns a core
+    SPIN {
+        @Override
+        int idle(int idleCount) {
+            return idleCount + 1;
+        }
+    },
+
+    YIELD {
+        @Override
+        int idle(int idleCount) {
+            Thread.yield();
+            return idleCount + 1;
+        }
+    },
+
+    // spins briefly, then yields, then parks, same as the disruptor SleepingWaitStrategy, except
+    // that the park time doubles while idle (up to about 1ms), so that an idle handoff thread
+    // wakes up about a thousand times a second instead of tens of thousands of times
+    SLEEP {
+        @Override
+        int idle(int idleCount) {
+            if (idleCount < 100) {
+                // spin
+            } else if (idleCount < 200) {
+                Thread.yield();
+            } else {
+                int shift = Math.min(idleCount - 200, MAX_SLEEP_SHIFT);
+                LockSupport.parkNanos(MIN_SLEEP_NANOS << shift);
+                if (shift == MAX_SLEEP_SHIFT) {
+                    return idleCount;
+                }
+            }
+            return idleCount + 1;
+        }
+    };
+
+    // the minimum park time is in practice tens of microseconds anyway
+    private static final long MIN_SLEEP_NANOS = 1000;
+
+    // 1us << 10 is about 1ms
+    private static final int MAX_SLEEP_SHIFT = 10;
+
+    // called with 0 after each span is processed, returns the next idle count
+    abstract int idle(int idleCount);
+}
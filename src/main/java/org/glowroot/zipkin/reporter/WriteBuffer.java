@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.Arrays;
+
+import org.glowroot.zipkin.util.HexCodec;
+
+// growable byte buffer that is reused by each thread for encoding spans, so that the only
+// allocation per encoded span is the final (exactly sized) byte array
+//
+// string handling is derived from zipkin2.internal.WriteBuffer and zipkin2.internal.JsonEscaper
+final class WriteBuffer {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // spans larger than this are not retained after encoding, so that a single huge span (e.g. a
+    // long query) doesn't permanently increase the memory held by each thread
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] HEX_DIGITS =
+            {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private static final ThreadLocal<WriteBuffer> threadLocal = new ThreadLocal<WriteBuffer>() {
+        @Override
+        protected WriteBuffer initialValue() {
+            return new WriteBuffer();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int pos;
+
+    private WriteBuffer() {}
+
+    static WriteBuffer get() {
+        WriteBuffer writeBuffer = threadLocal.get();
+        writeBuffer.pos = 0;
+        if (writeBuffer.buf.length > MAX_RETAINED_CAPACITY) {
+            writeBuffer.buf = new byte[INITIAL_CAPACITY];
+        }
+        return writeBuffer;
+    }
+
+    int pos() {
+        return pos;
+    }
+
+    void skip(int length) {
+        ensureCapacity(length);
+        pos += length;
+    }
+
+    byte[] toByteArray(int from) {
+        return Arrays.copyOfRange(buf, from, pos);
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) b;
+    }
+
+    // only for string constants that are known to be ascii
+    void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    void writeAsciiLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        if (v < 0) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        int digits = asciiSizeInBytes(v);
+        int end = pos + digits;
+        int i = end;
+        do {
+            buf[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        pos = end;
+    }
+
+    void writeLowerHex(long v) {
+        ensureCapacity(16);
+        HexCodec.writeHexLong(buf, pos, v);
+        pos += 16;
+    }
+
+    void writeLongBigEndian(long v) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    void writeLongLittleEndian(long v) {
+        ensureCapacity(8);
+        for (int shift = 0; shift < 64; shift += 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    void writeVarint(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    // writes the varint so that it ends immediately before the given position, and returns the
+    // position where it starts
+    int writeVarintBefore(int end, int v) {
+        int start = end - varintSizeInBytes(v);
+        int i = start;
+        while ((v & ~0x7f) != 0) {
+            buf[i++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[i] = (byte) v;
+        return start;
+    }
+
+    int writeByteBefore(int end, int b) {
+        buf[end - 1] = (byte) b;
+        return end - 1;
+    }
+
+    void writeUtf8(String s) {
+        int length = s.length();
+        ensureCapacity(length * 3);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else {
+                i = writeUtf8NonAscii(s, i, c);
+            }
+        }
+    }
+
+    void writeJsonEscaped(String s) {
+        int length = s.length();
+        // worst case is a 6 char unicode escape for each char
+        ensureCapacity(length * 6);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c == '\u2028' || c == '\u2029') {
+                    // valid json, but not valid javascript
+                    writeUnicodeEscape(c);
+                } else {
+                    i = writeUtf8NonAscii(s, i, c);
+                }
+            } else if (c == '"' || c == '\\') {
+                buf[pos++] = '\\';
+                buf[pos++] = (byte) c;
+            } else if (c >= 0x20) {
+                buf[pos++] = (byte) c;
+            } else if (c == '\n') {
+                buf[pos++] = '\\';
+                buf[pos++] = 'n';
+            } else if (c == '\r') {
+                buf[pos++] = '\\';
+                buf[pos++] = 'r';
+            } else if (c == '\t') {
+                buf[pos++] = '\\';
+                buf[pos++] = 't';
+            } else if (c == '\b') {
+                buf[pos++] = '\\';
+                buf[pos++] = 'b';
+            } else if (c == '\f') {
+                buf[pos++] = '\\';
+                buf[pos++] = 'f';
+            } else {
+                writeUnicodeEscape(c);
+            }
+        }
+    }
+
+    static int utf8SizeInBytes(String s) {
+        int length = s.length();
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                size += 3;
+            } else if (isSurrogatePair(s, i, c)) {
+                size += 4;
+                i++;
+            } else {
+                // malformed surrogate is replaced with '?'
+                size++;
+            }
+        }
+        return size;
+    }
+
+    static int varintSizeInBytes(long v) {
+        int size = 1;
+        while ((v & ~0x7fL) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    private int writeUtf8NonAscii(String s, int i, char c) {
+        if (c < 0x800) {
+            buf[pos++] = (byte) (0xc0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+            buf[pos++] = (byte) (0xe0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (isSurrogatePair(s, i, c)) {
+            int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+            buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+            buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            return i + 1;
+        } else {
+            buf[pos++] = '?';
+        }
+        return i;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        buf[pos++] = HEX_DIGITS[(c >> 12) & 0xf];
+        buf[pos++] = HEX_DIGITS[(c >> 8) & 0xf];
+        buf[pos++] = HEX_DIGITS[(c >> 4) & 0xf];
+        buf[pos++] = HEX_DIGITS[c & 0xf];
+    }
+
+    private void ensureCapacity(int length) {
+        if (pos + length > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + length));
+        }
+    }
+
+    private static boolean isSurrogatePair(String s, int i, char c) {
+        return Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private static int asciiSizeInBytes(long v) {
+        int size = 1;
+        while (v >= 10) {
+            size++;
+            v /= 10;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+import java.io.Closeable;
+import java.util.Locale;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// keeps the agent's overhead within a budget when traffic spikes, instead of letting it grow with
+// the traffic
+//
+// every interval, the load (spans started per second, fill of the handoff and reporter queues, and
+// cpu time of the span handoff thread) is compared against the budget, and while it is over budget
+// the throttle level is raised one step at a time:
+//
+// level 1: query spans are no longer started
+// level 2: local spans are no longer started either
+// level 3+: the head sampling probability is halved for each additional level
+//
+// the level is lowered one step at a time once the load has stayed under half of the budget for
+// several intervals, since lowering a sampling level doubles the sampled traffic, this keeps the
+// governor from oscillating between two levels
+//
+// upstream sampling decisions are still honored, dropping part of a trace that other services
+// report would leave broken traces behind
+public class OverheadGovernor implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverheadGovernor.class);
+
+    public static final int QUERY_SPANS_DISABLED = 1;
+    public static final int LOCAL_SPANS_DISABLED = 2;
+
+    // sampling is reduced down to 1/1024 of the configured sampling
+    private static final int MAX_LEVEL = LOCAL_SPANS_DISABLED + 10;
+
+    private static final double RESTORE_LOAD = 0.5;
+    private static final int RESTORE_INTERVALS = 5;
+
+    private static final double NANOS_PER_SECOND = SECONDS.toNanos(1);
+
+    private final AgentMetrics metrics;
+    // each budget is ignored if <= 0
+    private final double maxSpansPerSecond;
+    private final double maxQueueFill;
+    private final double maxCpuPercent;
+    private final int handoffCapacity;
+    private final int reporterCapacity;
+
+    private volatile int level;
+
+    // guarded by this
+    private long lastTick;
+    private long lastSpansStarted;
+    private double lastCpuTimeMillis;
+    private int restoreIntervals;
+
+    private volatile @Nullable Thread thread;
+
+    private volatile boolean closed;
+
+    // handoffCapacity is in batches, see SpanHandoff.getCapacity()
+    public OverheadGovernor(AgentMetrics metrics, double maxSpansPerSecond, double maxQueueFill,
+            double maxCpuPercent, int handoffCapacity, int reporterCapacity) {
+        this.metrics = metrics;
+        this.maxSpansPerSecond = maxSpansPerSecond;
+        this.maxQueueFill = maxQueueFill;
+        this.maxCpuPercent = maxCpuPercent;
+        this.handoffCapacity = handoffCapacity;
+        this.reporterCapacity = reporterCapacity;
+        lastTick = System.nanoTime();
+        lastSpansStarted = getSpansStarted();
+        lastCpuTimeMillis = metrics.getHandoffThreadCpuTimeMillis();
+    }
+
+    public boolean isQuerySpansEnabled() {
+        return level < QUERY_SPANS_DISABLED;
+    }
+
+    public boolean isLocalSpansEnabled() {
+        return level < LOCAL_SPANS_DISABLED;
+    }
+
+    // applied on top of the configured sampler
+    public boolean isSampled(long traceId) {
+        int shift = level - LOCAL_SPANS_DISABLED;
+        if (shift <= 0) {
+            return true;
+        }
+        // trace ids are random, and ProbabilisticSampler only depends on the value mod 10000, so
+        // the top bits give an (almost) independent probability of 1 / 2^shift
+        return traceId >>> (64 - shift) == 0;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void start(final long intervalMillis) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OverheadGovernor.this.run(intervalMillis);
+            }
+        }, "Zipkin-Agent-Overhead-Governor");
+        thread.setDaemon(true);
+        thread.start();
+        this.thread = thread;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // evaluates the load since the previous update, and adjusts the level by at most one step
+    public synchronized void update(long currentTick) {
+        long elapsedNanos = currentTick - lastTick;
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        long spansStarted = getSpansStarted();
+        double cpuTimeMillis = metrics.getHandoffThreadCpuTimeMillis();
+        double load = 0;
+        if (maxSpansPerSecond > 0) {
+            double spansPerSecond =
+                    (spansStarted - lastSpansStarted) * NANOS_PER_SECOND / elapsedNanos;
+            load = Math.max(load, spansPerSecond / maxSpansPerSecond);
+        }
+        if (maxQueueFill > 0) {
+            double queueFill = Math.max(fill(metrics.getHandoffQueueDepth(), handoffCapacity),
+                    fill(metrics.getReporterQueuedSpans(), reporterCapacity));
+            load = Math.max(load, queueFill / maxQueueFill);
+        }
+        // cpu time is -1 if thread cpu time measurement is not supported
+        if (maxCpuPercent > 0 && cpuTimeMillis >= 0 && lastCpuTimeMillis >= 0) {
+            double cpuPercent = (cpuTimeMillis - lastCpuTimeMillis) * 100
+                    / (elapsedNanos / (double) MILLISECONDS.toNanos(1));
+            load = Math.max(load, cpuPercent / maxCpuPercent);
+        }
+        lastTick = currentTick;
+        lastSpansStarted = spansStarted;
+        lastCpuTimeMillis = cpuTimeMillis;
+
+        if (load > 1) {
+            restoreIntervals = 0;
+            if (level < MAX_LEVEL) {
+                level++;
+                logger.warn("agent overhead over budget (load {}), throttling to level {}",
+                        format(load), level);
+            }
+        } else if (load < RESTORE_LOAD && level > 0) {
+            if (++restoreIntervals >= RESTORE_INTERVALS) {
+                restoreIntervals = 0;
+                level--;
+                logger.info("agent overhead back under budget (load {}), restoring to level {}",
+                        format(load), level);
+            }
+        } else {
+            restoreIntervals = 0;
+        }
+    }
+
+    private long getSpansStarted() {
+        return metrics.getIncomingSpansStarted() + metrics.getOutgoingSpansStarted()
+                + metrics.getLocalSpansStarted() + metrics.getQuerySpansStarted();
+    }
+
+    private void run(long intervalMillis) {
+        while (!closed) {
+            try {
+                MILLISECONDS.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                // closed
+                return;
+            }
+            try {
+                update(System.nanoTime());
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private static double fill(long queued, int capacity) {
+        return capacity <= 0 ? 0 : queued / (double) capacity;
+    }
+
+    private static String format(double load) {
+        return String.format(Locale.ENGLISH, "%.2f", load);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+// the decision is a function of the trace id (which is already random), so no random number needs
+// to be generated, and there is no shared state to contend on
+//
+// the decision only depends on the trace id mod 10000, which leaves the top bits of the trace id
+// independent for OverheadGovernor.isSampled(), so probabilities are in increments of 0.0001
+//
+// a second decision on the same trace (e.g. the tail sampling baseline, which only sees traces that
+// passed the head sampler) needs to be independent of the first, see createIndependent()
+//
+// see brave.sampler.BoundarySampler
+class ProbabilisticSampler extends Sampler {
+
+    private static final long SALT = 0x5a49504b494e4147L;
+
+    private final long boundary;
+    private final boolean mixed;
+
+    private ProbabilisticSampler(double probability, boolean mixed) {
+        boundary = (long) (probability * 10000);
+        this.mixed = mixed;
+    }
+
+    static Sampler create(double probability) {
+        return create(probability, false);
+    }
+
+    // the decision is made on a mix of all bits of the trace id, so it is independent of create()
+    static Sampler createIndependent(double probability) {
+        return create(probability, true);
+    }
+
+    private static Sampler create(double probability, boolean mixed) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException(
+                    "Sampling probability must be between 0.0 and 1.0: " + probability);
+        }
+        if (probability == 0) {
+            return NEVER_SAMPLE;
+        }
+        if (probability < 0.0001) {
+            // would otherwise silently never sample
+            throw new IllegalArgumentException(
+                    "Sampling probability must be 0.0 or at least 0.0001: " + probability);
+        }
+        if (probability == 1) {
+            return ALWAYS_SAMPLE;
+        }
+        return new ProbabilisticSampler(probability, mixed);
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        long t = Math.abs(mixed ? mix(traceId) : traceId ^ SALT);
+        // Math.abs(Long.MIN_VALUE) is Long.MIN_VALUE, and Long.MIN_VALUE % 10000 is negative
+        return t % 10000 < boundary && t != Long.MIN_VALUE;
+    }
+
+    // murmur3 fmix64
+    private static long mix(long traceId) {
+        long h = traceId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
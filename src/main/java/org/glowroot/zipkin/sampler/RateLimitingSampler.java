@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// samples at most N traces per second
+//
+// see brave.sampler.RateLimitingSampler
+class RateLimitingSampler extends Sampler {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int tracesPerSecond;
+
+    private final AtomicInteger usage = new AtomicInteger();
+    private final AtomicLong nextReset;
+
+    RateLimitingSampler(int tracesPerSecond) {
+        this.tracesPerSecond = tracesPerSecond;
+        nextReset = new AtomicLong(System.nanoTime() + NANOS_PER_SECOND);
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        long now = System.nanoTime();
+        long updateAt = nextReset.get();
+        if (now - updateAt >= 0) {
+            // only one thread wins the race to reset the usage for the new interval
+            if (nextReset.compareAndSet(updateAt, now + NANOS_PER_SECOND)) {
+                usage.set(0);
+            }
+        }
+        // checking before incrementing avoids the counter growing without bound (and eventually
+        // overflowing) under sustained load
+        if (usage.get() >= tracesPerSecond) {
+            return false;
+        }
+        return usage.incrementAndGet() <= tracesPerSecond;
+    }
+}
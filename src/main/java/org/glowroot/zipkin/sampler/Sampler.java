@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+// head sampling decision, made once per trace when the root span starts
+//
+// implementations must be thread safe and must not allocate
+public abstract class Sampler {
+
+    public static final Sampler ALWAYS_SAMPLE = new Sampler() {
+        @Override
+        public boolean isSampled(long traceId) {
+            return true;
+        }
+    };
+
+    public static final Sampler NEVER_SAMPLE = new Sampler() {
+        @Override
+        public boolean isSampled(long traceId) {
+            return false;
+        }
+    };
+
+    public abstract boolean isSampled(long traceId);
+
+    // tracesPerSecond <= 0 means no rate limit
+    public static Sampler create(double probability, int tracesPerSecond) {
+        Sampler sampler = ProbabilisticSampler.create(probability);
+        if (tracesPerSecond <= 0) {
+            return sampler;
+        }
+        final Sampler rateLimitingSampler = new RateLimitingSampler(tracesPerSecond);
+        if (sampler == ALWAYS_SAMPLE) {
+            return rateLimitingSampler;
+        }
+        final Sampler probabilisticSampler = sampler;
+        return new Sampler() {
+            @Override
+            public boolean isSampled(long traceId) {
+                // rate limit is only consumed by traces that pass the probabilistic sampler
+                return probabilisticSampler.isSampled(traceId)
+                        && rateLimitingSampler.isSampled(traceId);
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// finished spans are buffered per trace (see TraceBuffer) and the keep/discard decision is made
+// when the root span ends, based on whether any span in the trace had an error, whether any span
+// exceeded the duration threshold, or else a random baseline
+//
+// memory is bounded by a global limit on buffered spans and on pending traces, when either limit is
+// exceeded the oldest pending traces are evicted (and discarded, unless they already contain an
+// error, in which case they are kept early), pending traces are ordered by when they started, so
+// finding the oldest does not require a scan
+public class TailSampler {
+
+    private final boolean keepErrors;
+    private final long durationThresholdMicros;
+    private final Sampler baselineSampler;
+    private final int maxBufferedSpans;
+    private final int maxSpansPerTrace;
+    private final int maxPendingTraces;
+
+    // keyed by sequence number, see TraceBuffer.getSequence()
+    private final ConcurrentSkipListMap<Long, TraceBuffer> pendingTraces =
+            new ConcurrentSkipListMap<Long, TraceBuffer>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicInteger pendingTraceCount = new AtomicInteger();
+    private final AtomicInteger bufferedSpanCount = new AtomicInteger();
+
+    private final Object evictionLock = new Object();
+
+    public TailSampler(boolean keepErrors, long durationThresholdMicros,
+            double baselineProbability, int maxBufferedSpans, int maxSpansPerTrace,
+            int maxPendingTraces) {
+        this.keepErrors = keepErrors;
+        this.durationThresholdMicros = durationThresholdMicros;
+        // only traces that passed the head sampler get here, so the baseline decision must not
+        // reuse the head sampler's decision function
+        baselineSampler = ProbabilisticSampler.createIndependent(baselineProbability);
+        this.maxBufferedSpans = maxBufferedSpans;
+        this.maxSpansPerTrace = maxSpansPerTrace;
+        this.maxPendingTraces = maxPendingTraces;
+    }
+
+    public TraceBuffer newTraceBuffer(long traceId) {
+        TraceBuffer traceBuffer =
+                new TraceBuffer(this, traceId, nextSequence.getAndIncrement());
+        pendingTraces.put(traceBuffer.getSequence(), traceBuffer);
+        if (pendingTraceCount.incrementAndGet() > maxPendingTraces) {
+            evict();
+        }
+        return traceBuffer;
+    }
+
+    int getMaxSpansPerTrace() {
+        return maxSpansPerTrace;
+    }
+
+    int getBufferedSpanCount() {
+        return bufferedSpanCount.get();
+    }
+
+    int getPendingTraceCount() {
+        return pendingTraceCount.get();
+    }
+
+    boolean shouldKeep(long traceId, boolean error, long maxDurationMicros) {
+        return keepErrors && error || maxDurationMicros >= durationThresholdMicros
+                || baselineSampler.isSampled(traceId);
+    }
+
+    boolean shouldKeepOnEviction(boolean error) {
+        return keepErrors && error;
+    }
+
+    void onSpanBuffered() {
+        if (bufferedSpanCount.incrementAndGet() > maxBufferedSpans) {
+            evict();
+        }
+    }
+
+    void onTraceComplete(TraceBuffer traceBuffer, int releasedSpanCount) {
+        if (pendingTraces.remove(traceBuffer.getSequence(), traceBuffer)) {
+            pendingTraceCount.decrementAndGet();
+        }
+        bufferedSpanCount.addAndGet(-releasedSpanCount);
+    }
+
+    private void evict() {
+        // only one thread needs to evict at a time, this is not on the hot path since it only
+        // happens when memory limits are exceeded
+        synchronized (evictionLock) {
+            while (bufferedSpanCount.get() > maxBufferedSpans
+                    || pendingTraceCount.get() > maxPendingTraces) {
+                Map.Entry<Long, TraceBuffer> oldest = pendingTraces.firstEntry();
+                if (oldest == null) {
+                    return;
+                }
+                // removes it from pending traces, see onTraceComplete()
+                oldest.getValue().evict();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.util.Global;
+
+// finished spans of a single trace, held until the root span ends (see TailSampler)
+//
+// the spans are held unmaterialized, so that the spans of discarded traces are never encoded
+//
+// spans can be added from multiple threads (e.g. aux threads), and spans that finish after the
+// decision has been made (e.g. async spans) follow the decision
+//
+// the root span is passed to complete() instead of add(), and one slot is reserved for it so that
+// it is never dropped by the per-trace span limit, since it is always the last span to end
+public class TraceBuffer {
+
+    private enum State {
+        PENDING, KEPT, DISCARDED
+    }
+
+    private final TailSampler tailSampler;
+    private final long traceId;
+    // order in which the trace started, relative to other traces (see TailSampler)
+    private final long sequence;
+
+    // all guarded by this
+    private @Nullable List<PendingSpan> spans;
+    private boolean error;
+    private long maxDurationMicros;
+    private State state = State.PENDING;
+
+    TraceBuffer(TailSampler tailSampler, long traceId, long sequence) {
+        this.tailSampler = tailSampler;
+        this.traceId = traceId;
+        this.sequence = sequence;
+    }
+
+    public void add(PendingSpan span, long durationMicros, boolean error) {
+        boolean kept;
+        synchronized (this) {
+            if (state == State.DISCARDED) {
+                Global.getMetrics().spansDroppedSampling(1);
+                return;
+            }
+            kept = state == State.KEPT;
+            if (!kept) {
+                this.error |= error;
+                maxDurationMicros = Math.max(maxDurationMicros, durationMicros);
+                if (spans == null) {
+                    spans = new ArrayList<PendingSpan>();
+                }
+                if (spans.size() >= tailSampler.getMaxSpansPerTrace() - 1) {
+                    Global.getMetrics().spansDroppedSampling(1);
+                    return;
+                }
+                spans.add(span);
+            }
+        }
+        if (kept) {
+            Global.report(span);
+        } else {
+            // called outside of synchronized block since it can evict other traces
+            tailSampler.onSpanBuffered();
+        }
+    }
+
+    // called when the root span ends
+    public void complete(PendingSpan rootSpan, long durationMicros, boolean error) {
+        List<PendingSpan> keptSpans;
+        int releasedSpanCount;
+        boolean keptOnEviction = false;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                // already evicted, the root span follows the decision
+                releasedSpanCount = 0;
+                keptSpans = null;
+                keptOnEviction = state == State.KEPT;
+            } else {
+                this.error |= error;
+                maxDurationMicros = Math.max(maxDurationMicros, durationMicros);
+                releasedSpanCount = spans == null ? 0 : spans.size();
+                if (tailSampler.shouldKeep(traceId, this.error, maxDurationMicros)) {
+                    state = State.KEPT;
+                    keptSpans = spans == null ? new ArrayList<PendingSpan>() : spans;
+                    keptSpans.add(rootSpan);
+                } else {
+                    state = State.DISCARDED;
+                    keptSpans = null;
+                }
+                spans = null;
+            }
+        }
+        tailSampler.onTraceComplete(this, releasedSpanCount);
+        if (keptSpans == null) {
+            if (keptOnEviction) {
+                Global.report(rootSpan);
+            } else {
+                Global.getMetrics().spansDroppedSampling(releasedSpanCount + 1);
+            }
+        }
+        report(keptSpans);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    // called by TailSampler when memory limits are exceeded
+    void evict() {
+        List<PendingSpan> keptSpans;
+        int releasedSpanCount;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                // already complete, but not yet removed from pending traces
+                releasedSpanCount = 0;
+                keptSpans = null;
+            } else {
+                releasedSpanCount = spans == null ? 0 : spans.size();
+                if (tailSampler.shouldKeepOnEviction(error)) {
+                    state = State.KEPT;
+                    keptSpans = spans;
+                } else {
+                    state = State.DISCARDED;
+                    keptSpans = null;
+                }
+                spans = null;
+            }
+        }
+        tailSampler.onTraceComplete(this, releasedSpanCount);
+        if (keptSpans == null) {
+            Global.getMetrics().spansDroppedSampling(releasedSpanCount);
+        }
+        report(keptSpans);
+    }
+
+    private static void report(@Nullable List<PendingSpan> spans) {
+        if (spans != null) {
+            for (PendingSpan span : spans) {
+                Global.report(span);
+            }
+        }
+    }
+}
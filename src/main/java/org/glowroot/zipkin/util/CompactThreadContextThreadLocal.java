@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+
+// thread context storage for services that run very large numbers of threads (e.g. virtual
+// threads), see threadContextStorage in AgentConfig
+//
+// ThreadContextThreadLocal gives every thread that ever runs instrumented code its own holder (and
+// thread local entry, and thread local map), and keeps it for the life of the thread, even though
+// almost all of those threads have no active span at any given time. This instead keeps only the
+// thread contexts that are active, in a map keyed by thread, and hands out a single holder that
+// resolves the calling thread on each call, so a thread with no active span has no per-thread state
+// at all.
+//
+// the flip side is that a holder must only be used by the thread that obtained it, which is already
+// the case since thread contexts are always started and ended by the thread that owns them
+public class CompactThreadContextThreadLocal extends ThreadContextThreadLocal {
+
+    // an entry is only left behind if a thread dies in the middle of a span, which instrumentation
+    // guards against by ending spans in finally blocks
+    private final ConcurrentMap<Thread, ThreadContextPlus> threadContexts =
+            new ConcurrentHashMap<Thread, ThreadContextPlus>();
+
+    private final Holder holder = new CurrentThreadHolder();
+
+    @Override
+    public @Nullable ThreadContextPlus get() {
+        return threadContexts.get(Thread.currentThread());
+    }
+
+    @Override
+    public Holder getHolder() {
+        return holder;
+    }
+
+    // threads that currently have an active thread context
+    public int getThreadContextCount() {
+        return threadContexts.size();
+    }
+
+    private class CurrentThreadHolder extends Holder {
+
+        @Override
+        public @Nullable ThreadContextPlus get() {
+            return threadContexts.get(Thread.currentThread());
+        }
+
+        @Override
+        public void set(@Nullable ThreadContextPlus threadContext) {
+            if (threadContext == null) {
+                threadContexts.remove(Thread.currentThread());
+            } else {
+                threadContexts.put(Thread.currentThread(), threadContext);
+            }
+        }
+    }
+}
@@ -15,54 +15,186 @@
  */
 package org.glowroot.zipkin.util;
 
-import java.util.Random;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.propagation.B3Propagation;
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.reporter.SpanHandoff;
+import org.glowroot.zipkin.reporter.SpanRecordEncoder;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.sampler.TailSampler;
 
-import zipkin2.Span;
 import zipkin2.reporter.Reporter;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 // global state used instead of passing these to various classes (e.g. ThreadContextImpl) in order
 // to reduce memory footprint
 public class Global {
 
-    private static final ThreadContextThreadLocal threadContextThreadLocal =
+    // must not change once the engine has been created, see MainEntryPoint
+    private static volatile ThreadContextThreadLocal threadContextThreadLocal =
             new ThreadContextThreadLocal();
 
-    private static volatile Reporter<Span> reporter = new Reporter<Span>() {
+    private static final AgentMetrics metrics = new AgentMetrics();
+
+    // spans are reported already encoded, see SpanRecordEncoder
+    private static volatile Reporter<byte[]> reporter = new Reporter<byte[]>() {
         @Override
-        public void report(Span span) {}
+        public void report(byte[] encodedSpan) {}
     };
 
-    // TODO use ThreadLocalRandom on Java 7
-    private static final Random random = new Random();
+    private static volatile SpanRecordEncoder spanEncoder = SpanRecordEncoder.JSON_V2;
+
+    // null to materialize and report spans inline on the thread that ends them
+    private static volatile @Nullable SpanHandoff spanHandoff;
+
+    private static volatile IdGenerator idGenerator = new ThreadLocalIdGenerator(false);
+
+    private static volatile Sampler sampler = Sampler.ALWAYS_SAMPLE;
+
+    private static volatile @Nullable TailSampler tailSampler;
+
+    private static volatile @Nullable OverheadGovernor overheadGovernor;
+
+    private static volatile B3Propagation propagation = B3Propagation.MULTI_HEADER;
+
+    // negative to disable local spans
+    private static volatile long localSpanThresholdNanos = MILLISECONDS.toNanos(100);
+
+    private static volatile boolean queryAggregation;
+
+    private static volatile @Nullable QueryNormalizer queryNormalizer;
+
+    private static volatile boolean timerAggregation;
+
+    public static AgentMetrics getMetrics() {
+        return metrics;
+    }
 
     public static ThreadContextThreadLocal getThreadContextThreadLocal() {
         return threadContextThreadLocal;
     }
 
+    public static void setThreadContextThreadLocal(
+            ThreadContextThreadLocal threadContextThreadLocal) {
+        Global.threadContextThreadLocal = threadContextThreadLocal;
+    }
+
     public static ThreadContextThreadLocal.Holder getThreadContextHolder() {
         return threadContextThreadLocal.getHolder();
     }
 
-    public static void report(Span span) {
-        reporter.report(span);
+    public static void report(PendingSpan span) {
+        SpanHandoff spanHandoff = Global.spanHandoff;
+        if (spanHandoff == null) {
+            byte[] encodedSpan = spanEncoder.encode(span);
+            metrics.bytesEncoded(encodedSpan.length);
+            reporter.report(encodedSpan);
+        } else {
+            spanHandoff.offer(span);
+        }
+    }
+
+    // hands off the spans that the current thread has batched, see SpanHandoff
+    public static void flushSpans() {
+        SpanHandoff spanHandoff = Global.spanHandoff;
+        if (spanHandoff != null) {
+            spanHandoff.flush();
+        }
     }
 
-    public static void setReporter(Reporter<Span> reporter) {
+    public static void setReporter(Reporter<byte[]> reporter) {
         Global.reporter = reporter;
     }
 
-    public static long currentTimeMicros() {
-        return System.currentTimeMillis() * 1000;
+    public static void setSpanEncoder(SpanRecordEncoder spanEncoder) {
+        Global.spanEncoder = spanEncoder;
+    }
+
+    public static void setSpanHandoff(@Nullable SpanHandoff spanHandoff) {
+        Global.spanHandoff = spanHandoff;
+    }
+
+    public static Sampler getSampler() {
+        return sampler;
+    }
+
+    public static void setSampler(Sampler sampler) {
+        Global.sampler = sampler;
+    }
+
+    public static @Nullable TailSampler getTailSampler() {
+        return tailSampler;
+    }
+
+    public static void setTailSampler(@Nullable TailSampler tailSampler) {
+        Global.tailSampler = tailSampler;
     }
 
-    // TODO is avoiding 0 necessary? See brave.Tracer.nextId()
+    public static @Nullable OverheadGovernor getOverheadGovernor() {
+        return overheadGovernor;
+    }
+
+    public static void setOverheadGovernor(@Nullable OverheadGovernor overheadGovernor) {
+        Global.overheadGovernor = overheadGovernor;
+    }
+
+    public static B3Propagation getPropagation() {
+        return propagation;
+    }
+
+    public static void setPropagation(B3Propagation propagation) {
+        Global.propagation = propagation;
+    }
+
+    public static long getLocalSpanThresholdNanos() {
+        return localSpanThresholdNanos;
+    }
+
+    public static void setLocalSpanThresholdNanos(long localSpanThresholdNanos) {
+        Global.localSpanThresholdNanos = localSpanThresholdNanos;
+    }
+
+    public static boolean isQueryAggregation() {
+        return queryAggregation;
+    }
+
+    public static void setQueryAggregation(boolean queryAggregation) {
+        Global.queryAggregation = queryAggregation;
+    }
+
+    public static String getQueryName(String queryText) {
+        QueryNormalizer queryNormalizer = Global.queryNormalizer;
+        return queryNormalizer == null ? queryText : queryNormalizer.getName(queryText);
+    }
+
+    public static void setQueryNormalizer(@Nullable QueryNormalizer queryNormalizer) {
+        Global.queryNormalizer = queryNormalizer;
+    }
+
+    public static boolean isTimerAggregation() {
+        return timerAggregation;
+    }
+
+    public static void setTimerAggregation(boolean timerAggregation) {
+        Global.timerAggregation = timerAggregation;
+    }
+
+    public static void setIdGenerator(IdGenerator idGenerator) {
+        Global.idGenerator = idGenerator;
+    }
+
+    // 0 is reserved to mean "no id", see brave.Tracer.nextId()
     public static long nextId() {
-        long nextId = random.nextLong();
-        while (nextId == 0L) {
-            nextId = random.nextLong();
-        }
-        return nextId;
+        return idGenerator.nextId();
+    }
+
+    // returns 0 unless 128-bit trace ids are enabled
+    public static long nextTraceIdHigh() {
+        return idGenerator.nextTraceIdHigh();
     }
 }
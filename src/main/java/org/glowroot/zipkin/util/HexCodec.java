@@ -15,12 +15,30 @@
  */
 package org.glowroot.zipkin.util;
 
-// methods copied from brave.internal.HexCodec
+import java.nio.ByteBuffer;
+
+// methods copied from brave.internal.HexCodec, with variants that encode and decode directly into
+// and out of bytes so that ids never need to be materialized as strings on the export path
 public class HexCodec {
 
     private static final char[] HEX_DIGITS =
             {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
+    private static final byte[] HEX_DIGIT_BYTES =
+            {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    // -1 for bytes that are not lower hex digits
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < HEX_DIGIT_BYTES.length; i++) {
+            HEX_VALUES[HEX_DIGIT_BYTES[i]] = (byte) i;
+        }
+    }
+
     /** Inspired by {@code okio.Buffer.writeLong} */
     public static String toLowerHex(long v) {
         char[] data = new char[16];
@@ -40,6 +58,97 @@ public class HexCodec {
         writeHexByte(data, pos + 14, (byte) (v & 0xff));
     }
 
+    /** Writes 16 lower hex ascii bytes. */
+    public static void writeHexLong(byte[] data, int pos, long v) {
+        for (int i = 0; i < 16; i++) {
+            data[pos + i] = HEX_DIGIT_BYTES[(int) (v >>> (60 - 4 * i)) & 0xf];
+        }
+    }
+
+    /** Writes 16 lower hex ascii bytes at the buffer's current position. */
+    public static void writeHexLong(ByteBuffer buffer, long v) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGIT_BYTES[(int) (v >>> shift) & 0xf]);
+        }
+    }
+
+    /**
+     * Parses 1 to 16 lower hex ascii bytes, returning 0 if the range is empty, too long or
+     * contains anything other than lower hex digits (0 is never a valid id).
+     */
+    public static long lowerHexToUnsignedLong(byte[] data, int beginIndex, int endIndex) {
+        int length = endIndex - beginIndex;
+        if (length < 1 || length > 16) {
+            return 0;
+        }
+        long result = 0;
+        for (int i = beginIndex; i < endIndex; i++) {
+            int digit = hexValue(data[i]);
+            if (digit == -1) {
+                return 0;
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /** Same as above, but using the absolute indexes of the buffer. */
+    public static long lowerHexToUnsignedLong(ByteBuffer buffer, int beginIndex, int endIndex) {
+        int length = endIndex - beginIndex;
+        if (length < 1 || length > 16) {
+            return 0;
+        }
+        long result = 0;
+        for (int i = beginIndex; i < endIndex; i++) {
+            int digit = hexValue(buffer.get(i));
+            if (digit == -1) {
+                return 0;
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /** Same as above, for header values. */
+    public static long lowerHexToUnsignedLong(CharSequence lowerHex, int beginIndex,
+            int endIndex) {
+        int length = endIndex - beginIndex;
+        if (length < 1 || length > 16) {
+            return 0;
+        }
+        long result = 0;
+        for (int i = beginIndex; i < endIndex; i++) {
+            char c = lowerHex.charAt(i);
+            int digit = c < 128 ? HEX_VALUES[c] : -1;
+            if (digit == -1) {
+                return 0;
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /**
+     * Whether the range is non-empty and only contains lower hex digits, for the high half of a
+     * 128-bit trace id, which (unlike the other ids) can legitimately be 0.
+     */
+    public static boolean isLowerHex(CharSequence lowerHex, int beginIndex, int endIndex) {
+        if (beginIndex >= endIndex) {
+            return false;
+        }
+        for (int i = beginIndex; i < endIndex; i++) {
+            char c = lowerHex.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b) {
+        return b < 0 ? -1 : HEX_VALUES[b];
+    }
+
     private static void writeHexByte(char[] data, int pos, byte b) {
         data[pos + 0] = HEX_DIGITS[(b >> 4) & 0xf];
         data[pos + 1] = HEX_DIGITS[b & 0xf];
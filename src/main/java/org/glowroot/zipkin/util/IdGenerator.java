@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+// implementations must not contend on shared state across threads (java.util.Random CAS-spins on a
+// single seed) and must not allocate per call
+public abstract class IdGenerator {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final boolean traceId128Bit;
+
+    protected IdGenerator(boolean traceId128Bit) {
+        this.traceId128Bit = traceId128Bit;
+    }
+
+    /** Returns a random non-zero id. */
+    public abstract long nextId();
+
+    /**
+     * Returns the high 64 bits of a new trace id, or 0 if 128-bit trace ids are not enabled.
+     *
+     * <p>Same layout as brave.Tracer, the high 32 bits are epoch seconds so the ids are compatible
+     * with Amazon X-Ray.
+     */
+    public long nextTraceIdHigh() {
+        if (!traceId128Bit) {
+            return 0;
+        }
+        long epochSeconds = System.currentTimeMillis() / 1000;
+        return (epochSeconds & 0xffffffffL) << 32 | (nextId() & 0xffffffffL);
+    }
+
+    public boolean isTraceId128Bit() {
+        return traceId128Bit;
+    }
+
+    public static IdGenerator create(String type, boolean traceId128Bit) {
+        if (type.equals("striped")) {
+            return new StripedIdGenerator(traceId128Bit);
+        } else if (type.equals("threadLocal")) {
+            return new ThreadLocalIdGenerator(traceId128Bit);
+        } else {
+            throw new IllegalArgumentException("Unexpected id generator type: " + type);
+        }
+    }
+
+    // seeds are mixed from a process-wide counter and nanoTime so that separate JVMs (and separate
+    // stripes/threads in the same JVM) do not start from the same sequence
+    static long newSeed(long salt) {
+        return mix64(System.nanoTime() ^ System.currentTimeMillis() ^ (salt * GOLDEN_GAMMA));
+    }
+
+    // SplitMix64 step, see java.util.SplittableRandom
+    static long nextNonZero(long state) {
+        long id = mix64(state);
+        // the mix function is a bijection, so only a single state in the sequence maps to 0
+        return id == 0 ? mix64(state + GOLDEN_GAMMA) : id;
+    }
+
+    static long advance(long state) {
+        return state + GOLDEN_GAMMA;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// maps raw query text (e.g. unparameterized sql) to a low cardinality span name, by stripping
+// literals (replaced with ?), comments and redundant whitespace, and collapsing IN lists
+//
+// the number of distinct names is capped, beyond which new names are folded into a single overflow
+// name, so that a badly behaved application cannot flood the span storage with names
+public class QueryNormalizer {
+
+    public static final String OVERFLOW_NAME = "(other queries)";
+
+    // very long query texts (e.g. generated batch inserts) are not cached since the cache retains
+    // the raw text as its key
+    private static final int MAX_CACHED_QUERY_LENGTH = 10000;
+
+    private static final Pattern IN_LIST =
+            Pattern.compile("\\b(in) ?\\( ?\\?(?: ?, ?\\?)* ?\\)", Pattern.CASE_INSENSITIVE);
+
+    private final ConcurrentLruCache<String, String> cache;
+
+    private final int maxNames;
+    private final ConcurrentMap<String, Boolean> names = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger nameCount = new AtomicInteger();
+
+    public QueryNormalizer(int maxCacheSize, int maxNames) {
+        cache = new ConcurrentLruCache<String, String>(maxCacheSize);
+        this.maxNames = maxNames;
+    }
+
+    public String getName(String queryText) {
+        if (queryText.length() > MAX_CACHED_QUERY_LENGTH) {
+            return capCardinality(normalize(queryText));
+        }
+        String name = cache.get(queryText);
+        if (name == null) {
+            name = capCardinality(normalize(queryText));
+            cache.put(queryText, name);
+        }
+        return name;
+    }
+
+    private String capCardinality(String name) {
+        if (names.containsKey(name)) {
+            return name;
+        }
+        if (nameCount.get() >= maxNames) {
+            return OVERFLOW_NAME;
+        }
+        if (names.putIfAbsent(name, Boolean.TRUE) == null
+                && nameCount.incrementAndGet() > maxNames) {
+            // lost the race for the last slot
+            names.remove(name);
+            return OVERFLOW_NAME;
+        }
+        return name;
+    }
+
+    static String normalize(String text) {
+        int length = text.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            char next = i + 1 < length ? text.charAt(i + 1) : 0;
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (c == '-' && next == '-') {
+                i = skipLineComment(text, i + 2);
+                pendingSpace = true;
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                i = skipBlockComment(text, i + 2);
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace && sb.length() > 0) {
+                sb.append(' ');
+            }
+            pendingSpace = false;
+            if (c == '\'') {
+                i = skipQuoted(text, i + 1, '\'');
+                sb.append('?');
+            } else if (c == '"' && lastChar(sb) == ':') {
+                // json string value (e.g. mongodb queries), as opposed to a quoted sql identifier
+                i = skipQuoted(text, i + 1, '"');
+                sb.append('?');
+            } else if (c == '"' || c == '`') {
+                int end = skipQuoted(text, i + 1, c);
+                sb.append(text, i, end);
+                i = end;
+            } else if (isDigit(c) || c == '$' && isDigit(next)) {
+                i = skipNumber(text, c == '$' ? i + 1 : i);
+                sb.append('?');
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < length && Character.isJavaIdentifierPart(text.charAt(end))) {
+                    end++;
+                }
+                sb.append(text, i, end);
+                i = end;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        if (sb.indexOf("?") == -1) {
+            return sb.toString();
+        }
+        return IN_LIST.matcher(sb).replaceAll("$1 (?)");
+    }
+
+    private static int skipLineComment(String text, int i) {
+        while (i < text.length() && text.charAt(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipBlockComment(String text, int i) {
+        int end = text.indexOf("*/", i);
+        return end == -1 ? text.length() : end + 2;
+    }
+
+    // returns the index after the closing quote, a doubled quote is an escaped quote in sql, and a
+    // backslash escapes the next char in json (and in mysql)
+    private static int skipQuoted(String text, int i, char quote) {
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < length && text.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    // integers, decimals, exponents and hex literals
+    private static int skipNumber(String text, int i) {
+        int length = text.length();
+        if (text.charAt(i) == '0' && i + 1 < length
+                && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(text.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isDigit(c) || c == '.') {
+                i++;
+            } else if ((c == 'e' || c == 'E') && i + 1 < length) {
+                char next = text.charAt(i + 1);
+                if (isDigit(next)) {
+                    i++;
+                } else if ((next == '+' || next == '-') && i + 2 < length
+                        && isDigit(text.charAt(i + 2))) {
+                    i += 2;
+                } else {
+                    return i;
+                }
+            } else {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private static char lastChar(StringBuilder sb) {
+        int i = sb.length() - 1;
+        if (i >= 0 && sb.charAt(i) == ' ') {
+            i--;
+        }
+        return i >= 0 ? sb.charAt(i) : 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
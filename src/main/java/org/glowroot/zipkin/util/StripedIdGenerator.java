@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// no per-thread state, which is preferable over ThreadLocalIdGenerator when there are very large
+// numbers of short-lived threads
+//
+// threads are spread over a fixed number of stripes by thread id, each stripe is padded out to its
+// own cache line so that updates to one stripe do not invalidate its neighbors
+class StripedIdGenerator extends IdGenerator {
+
+    // 8 longs = 64 bytes = typical cache line
+    private static final int PADDING_SHIFT = 3;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+
+    StripedIdGenerator(boolean traceId128Bit) {
+        this(traceId128Bit, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    StripedIdGenerator(boolean traceId128Bit, int minStripes) {
+        super(traceId128Bit);
+        int numStripes = Integer.highestOneBit(Math.max(minStripes - 1, 1)) << 1;
+        mask = numStripes - 1;
+        stripes = new AtomicLongArray(numStripes << PADDING_SHIFT);
+        for (int i = 0; i < numStripes; i++) {
+            stripes.set(i << PADDING_SHIFT, newSeed(i + 1));
+        }
+    }
+
+    @Override
+    public long nextId() {
+        int index = stripeIndex(Thread.currentThread().getId()) << PADDING_SHIFT;
+        while (true) {
+            long current = stripes.get(index);
+            if (stripes.compareAndSet(index, current, advance(current))) {
+                return nextNonZero(current);
+            }
+        }
+    }
+
+    private int stripeIndex(long threadId) {
+        // spread sequential thread ids across stripes
+        int h = (int) (threadId ^ (threadId >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & mask;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// each thread advances its own SplitMix64 sequence, so there is no shared state to contend on after
+// the first id generated on a thread
+class ThreadLocalIdGenerator extends IdGenerator {
+
+    private static final AtomicLong threadCounter = new AtomicLong();
+
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(newSeed(threadCounter.incrementAndGet()));
+        }
+    };
+
+    ThreadLocalIdGenerator(boolean traceId128Bit) {
+        super(traceId128Bit);
+    }
+
+    @Override
+    public long nextId() {
+        State s = state.get();
+        long current = s.value;
+        s.value = advance(current);
+        return nextNonZero(current);
+    }
+
+    private static class State {
+
+        private long value;
+
+        private State(long value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+// wall clock time is only read once per trace (when the root span starts), and all timestamps in
+// the trace are derived from System.nanoTime() offsets from that anchor, which gives microsecond
+// precision durations (instead of millisecond precision from System.currentTimeMillis()) and makes
+// the spans in a trace immune to wall clock adjustments while the trace is in progress
+//
+// see also brave.internal.recorder.TickClock
+public class TraceClock {
+
+    private final long baseEpochMicros;
+    private final long baseTickNanos;
+
+    public TraceClock() {
+        baseEpochMicros = System.currentTimeMillis() * 1000;
+        baseTickNanos = System.nanoTime();
+    }
+
+    public long toEpochMicros(long tickNanos) {
+        return baseEpochMicros + (tickNanos - baseTickNanos) / 1000;
+    }
+}
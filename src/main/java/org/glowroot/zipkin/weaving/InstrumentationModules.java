@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.glowroot.zipkin.config.AgentConfig;
+
+// which instrumentation modules are enabled, see AgentConfig
+public class InstrumentationModules {
+
+    private static final String PROPERTY_PREFIX = "instrumentation.";
+
+    private final boolean enabledByDefault;
+    // modules that are not enabledByDefault
+    private final Map<String, Boolean> overrides;
+
+    InstrumentationModules(boolean enabledByDefault, Map<String, Boolean> overrides) {
+        this.enabledByDefault = enabledByDefault;
+        this.overrides = overrides;
+    }
+
+    public static InstrumentationModules create(AgentConfig config) {
+        boolean enabledByDefault = config.getBooleanProperty("instrumentationDefault", true);
+        Map<String, Boolean> overrides = new HashMap<String, Boolean>();
+        for (String module : config.getPropertyNames(PROPERTY_PREFIX)) {
+            // validates the value up front, instead of failing on a class loading thread
+            boolean enabled = config.getBooleanProperty(PROPERTY_PREFIX + module, enabledByDefault);
+            if (enabled != enabledByDefault) {
+                overrides.put(module, enabled);
+            }
+        }
+        return new InstrumentationModules(enabledByDefault, overrides);
+    }
+
+    boolean isEnabled(String module) {
+        Boolean enabled = overrides.get(module);
+        return enabled == null ? enabledByDefault : enabled;
+    }
+
+    boolean isAllEnabled() {
+        return enabledByDefault && overrides.isEmpty();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// the instrumentation that is passed to the engine, so that the transformers the engine registers
+// can be wrapped (see MeteredTransformer)
+//
+// this is a dynamic proxy rather than a delegating class, since Instrumentation has gained methods
+// in later jdks (e.g. redefineModule in 9) that the engine may call reflectively
+public class MeteredInstrumentation {
+
+    private MeteredInstrumentation() {}
+
+    public static Instrumentation create(Instrumentation instrumentation,
+            InstrumentationModules modules, WeavingCost weavingCost,
+            @Nullable WeavingCache weavingCache) {
+        return (Instrumentation) Proxy.newProxyInstance(
+                MeteredInstrumentation.class.getClassLoader(),
+                new Class<?>[] {Instrumentation.class},
+                new Handler(instrumentation, modules, weavingCost, weavingCache));
+    }
+
+    private static class Handler implements InvocationHandler {
+
+        private final Instrumentation instrumentation;
+        private final InstrumentationModules modules;
+        private final WeavingCost weavingCost;
+        private final @Nullable WeavingCache weavingCache;
+
+        private final Map<ClassFileTransformer, MeteredTransformer> transformers =
+                new ConcurrentHashMap<ClassFileTransformer, MeteredTransformer>();
+
+        private Handler(Instrumentation instrumentation, InstrumentationModules modules,
+                WeavingCost weavingCost, @Nullable WeavingCache weavingCache) {
+            this.instrumentation = instrumentation;
+            this.modules = modules;
+            this.weavingCost = weavingCost;
+            this.weavingCache = weavingCache;
+        }
+
+        @Override
+        public @Nullable Object invoke(Object proxy, Method method, @Nullable Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (args != null && args.length > 0 && args[0] instanceof ClassFileTransformer) {
+                ClassFileTransformer transformer = (ClassFileTransformer) args[0];
+                if (name.equals("addTransformer")) {
+                    MeteredTransformer meteredTransformer =
+                            new MeteredTransformer(transformer, modules, weavingCost,
+                                    weavingCache);
+                    transformers.put(transformer, meteredTransformer);
+                    args[0] = meteredTransformer;
+                } else if (name.equals("removeTransformer")) {
+                    MeteredTransformer meteredTransformer = transformers.remove(transformer);
+                    if (meteredTransformer != null) {
+                        args[0] = meteredTransformer;
+                    }
+                }
+            }
+            try {
+                return method.invoke(instrumentation, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
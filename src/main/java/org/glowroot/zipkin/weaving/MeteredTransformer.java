@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// wraps the engine's weaving transformer, in order to time it, attribute the time to the
+// instrumentation modules whose advice ended up in each woven class, to discard the weaving of
+// classes that a disabled module instruments, and to skip the engine for classes that the
+// WeavingCache knows it will not weave
+class MeteredTransformer implements ClassFileTransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeteredTransformer.class);
+
+    private final ClassFileTransformer delegate;
+    private final InstrumentationModules modules;
+    private final WeavingCost weavingCost;
+    private final @Nullable WeavingCache weavingCache;
+
+    MeteredTransformer(ClassFileTransformer delegate, InstrumentationModules modules,
+            WeavingCost weavingCost, @Nullable WeavingCache weavingCache) {
+        this.delegate = delegate;
+        this.modules = modules;
+        this.weavingCost = weavingCost;
+        this.weavingCache = weavingCache;
+    }
+
+    @Override
+    public byte /*@Nullable*/ [] transform(@Nullable ClassLoader loader, @Nullable String className,
+            @Nullable Class<?> classBeingRedefined, @Nullable ProtectionDomain protectionDomain,
+            byte[] classfileBuffer) throws IllegalClassFormatException {
+        long startTick = System.nanoTime();
+        // retransformed classes always go through the engine, e.g. so that they can be re-woven
+        // after instrumentation is reconfigured
+        WeavingCache weavingCache = null;
+        long cacheKey = 0;
+        if (this.weavingCache != null && className != null && classBeingRedefined == null
+                && !isInstrumentation(className)) {
+            weavingCache = this.weavingCache;
+            cacheKey = WeavingCache.key(className, classfileBuffer);
+            if (weavingCache.isNotWoven(cacheKey)) {
+                weavingCost.classFromCache(System.nanoTime() - startTick);
+                return null;
+            }
+        }
+        byte[] transformed = delegate.transform(loader, className, classBeingRedefined,
+                protectionDomain, classfileBuffer);
+        long nanos = System.nanoTime() - startTick;
+        if (weavingCache != null && (transformed == null || transformed == classfileBuffer)) {
+            weavingCache.addNotWoven(cacheKey);
+        }
+        if (transformed == null || transformed == classfileBuffer || isInstrumentation(className)) {
+            weavingCost.classInspected(nanos);
+            return transformed;
+        }
+        Set<String> wovenModules;
+        try {
+            wovenModules = ModuleReferences.find(transformed);
+        } catch (Throwable t) {
+            // the woven class is still returned, it is only the attribution that failed
+            logger.debug(t.getMessage(), t);
+            weavingCost.classInspected(nanos);
+            return transformed;
+        }
+        weavingCost.classWoven(wovenModules, nanos);
+        if (modules.isAllEnabled()) {
+            return transformed;
+        }
+        List<String> disabledModules = new ArrayList<String>();
+        List<String> lostModules = new ArrayList<String>();
+        for (String module : wovenModules) {
+            if (modules.isEnabled(module)) {
+                lostModules.add(module);
+            } else {
+                disabledModules.add(module);
+            }
+        }
+        if (disabledModules.isEmpty()) {
+            return transformed;
+        }
+        for (String module : disabledModules) {
+            weavingCost.classSkipped(module);
+        }
+        if (!lostModules.isEmpty()) {
+            // woven code cannot be partially removed, so a class that is also instrumented by
+            // enabled modules is left unwoven as well
+            for (String module : lostModules) {
+                weavingCost.classLost(module);
+            }
+            logger.warn("{} is left unwoven because it is instrumented by disabled module(s) {},"
+                    + " so it is also missing the instrumentation of enabled module(s) {}",
+                    className, disabledModules, lostModules);
+        }
+        return null;
+    }
+
+    // e.g. advice classes, which reference their own module
+    private static boolean isInstrumentation(@Nullable String className) {
+        return className != null && className.startsWith(ModuleReferences.PACKAGE_PREFIX);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// finds the instrumentation modules that a woven class references (e.g. the advice classes whose
+// static methods the weaver inlined calls to), by scanning the class file's constant pool for
+// utf8 entries under org/glowroot/xyzzy/instrumentation/<module>/
+//
+// see https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-4.html#jvms-4.4
+class ModuleReferences {
+
+    static final String PACKAGE_PREFIX = "org/glowroot/xyzzy/instrumentation/";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] PREFIX_BYTES = PACKAGE_PREFIX.getBytes(UTF_8);
+
+    // the instrumentation api is used by all modules
+    private static final String API_MODULE = "api";
+
+    private ModuleReferences() {}
+
+    static Set<String> find(byte[] classBytes) {
+        Set<String> modules = null;
+        int count = readUnsignedShort(classBytes, 8);
+        int offset = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = classBytes[offset] & 0xff;
+            switch (tag) {
+                case 1: // utf8
+                    int length = readUnsignedShort(classBytes, offset + 1);
+                    String module = findModule(classBytes, offset + 3, length);
+                    if (module != null) {
+                        if (modules == null) {
+                            modules = new TreeSet<String>();
+                        }
+                        modules.add(module);
+                    }
+                    offset += 3 + length;
+                    break;
+                case 5: // long
+                case 6: // double
+                    // takes two constant pool entries
+                    i++;
+                    offset += 9;
+                    break;
+                case 3: // integer
+                case 4: // float
+                case 9: // field ref
+                case 10: // method ref
+                case 11: // interface method ref
+                case 12: // name and type
+                case 17: // dynamic
+                case 18: // invoke dynamic
+                    offset += 5;
+                    break;
+                case 15: // method handle
+                    offset += 4;
+                    break;
+                case 7: // class
+                case 8: // string
+                case 16: // method type
+                case 19: // module
+                case 20: // package
+                    offset += 3;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected constant pool tag: " + tag);
+            }
+        }
+        if (modules == null) {
+            return Collections.emptySet();
+        }
+        return modules;
+    }
+
+    // class names can appear on their own (e.g. "org/..."), or inside descriptors (e.g.
+    // "Lorg/...;"), but in both cases the module is only ever referenced at the start of the entry
+    // or right after an 'L'
+    private static @Nullable String findModule(byte[] bytes, int start, int length) {
+        int end = start + length;
+        int prefixStart;
+        if (startsWith(bytes, start, end)) {
+            prefixStart = start;
+        } else if (length > 0 && bytes[start] == 'L' && startsWith(bytes, start + 1, end)) {
+            prefixStart = start + 1;
+        } else {
+            return null;
+        }
+        int moduleStart = prefixStart + PREFIX_BYTES.length;
+        for (int i = moduleStart; i < end; i++) {
+            if (bytes[i] == '/') {
+                String module = new String(bytes, moduleStart, i - moduleStart, UTF_8);
+                return module.equals(API_MODULE) ? null : module;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end) {
+        if (end - start < PREFIX_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < PREFIX_BYTES.length; i++) {
+            if (bytes[start + i] != PREFIX_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// remembers, across restarts, the classes that the engine inspected and decided not to weave, which
+// is the vast majority of classes, so that they can skip the engine's analysis on the next start
+//
+// woven classes are not cached, since the engine can define generated classes in the class loader
+// as a side effect of weaving, which replaying the woven bytes would skip
+//
+// each class is keyed by a 64-bit hash of its name and bytes, and the cache as a whole is keyed by
+// a fingerprint of the agent jar and of the jars on the application class path, so that changing
+// either one (e.g. a library upgrade that puts an existing class under a newly instrumented
+// supertype) starts over with an empty cache
+//
+// several applications (or deployments of the same application) can share an agent installation,
+// each with its own fingerprint, so the files of other fingerprints are kept until they have not
+// been used for MAX_UNUSED_MILLIS, or until there are more than MAX_FINGERPRINTS fingerprints (the
+// least recently used are deleted first)
+//
+// files under the cache directory:
+//
+// <fingerprint>.index     magic (int), count (int), then the sorted keys (long each), this is
+//                         memory-mapped read-only and binary searched
+// <fingerprint>-*.journal keys (long each) added by a single run, merged into the index on the next
+//                         start
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int MAGIC = 0x5a574341; // "ZWCA"
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String LOCK_FILE_NAME = "merge.lock";
+
+    // including the current one
+    static final int MAX_FINGERPRINTS = 8;
+    static final long MAX_UNUSED_MILLIS = DAYS.toMillis(30);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File dir;
+    private final String fingerprint;
+    private final int maxEntries;
+
+    private final @Nullable MappedByteBuffer index;
+    private final int indexCount;
+
+    private int journalCount;
+    // lazily created, so that a warm start where every class is a hit does not leave an empty
+    // journal behind
+    private @Nullable OutputStream journal;
+    private boolean journalFailed;
+
+    private WeavingCache(File dir, String fingerprint, int maxEntries,
+            @Nullable MappedByteBuffer index) {
+        this.dir = dir;
+        this.fingerprint = fingerprint;
+        this.maxEntries = maxEntries;
+        this.index = index;
+        indexCount = index == null ? 0 : index.getInt(4);
+    }
+
+    public static WeavingCache open(File dir, String fingerprint, int maxEntries)
+            throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File indexFile = new File(dir, fingerprint + INDEX_SUFFIX);
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+        try {
+            // another JVM using the same agent installation may be merging at the same time, in
+            // which case this one just uses the index as it is
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock != null) {
+                try {
+                    deleteStaleFiles(dir, fingerprint);
+                    merge(dir, fingerprint, indexFile, maxEntries);
+                    // marks the index as used, see deleteStaleFiles()
+                    if (indexFile.exists() && !indexFile.setLastModified(
+                            System.currentTimeMillis())) {
+                        logger.debug("Could not update last modified time of {}", indexFile);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } finally {
+            lockFile.close();
+        }
+        return new WeavingCache(dir, fingerprint, maxEntries, mapIndex(indexFile));
+    }
+
+    static long key(String className, byte[] classBytes) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < className.length(); i++) {
+            hash = (hash ^ className.charAt(i)) * FNV_PRIME;
+        }
+        for (byte b : classBytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        // the length also goes into the key, which makes a collision between two versions of the
+        // same class (which would leave the newer one unwoven) even less likely
+        return hash ^ ((long) classBytes.length << 32);
+    }
+
+    // returns true if the class was inspected and not woven in a previous run
+    boolean isNotWoven(long key) {
+        MappedByteBuffer index = this.index;
+        if (index == null) {
+            return false;
+        }
+        int low = 0;
+        int high = indexCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = index.getLong(HEADER_SIZE + mid * 8);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // written straight through (no buffering), so that the keys survive the JVM being killed, this
+    // is a tiny cost compared to the engine's analysis of the class that was just done
+    synchronized void addNotWoven(long key) {
+        if (journalFailed || journalCount >= maxEntries) {
+            return;
+        }
+        try {
+            if (journal == null) {
+                journal = new FileOutputStream(File.createTempFile(fingerprint + "-",
+                        JOURNAL_SUFFIX, dir));
+            }
+            byte[] bytes = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (key >>> (56 - i * 8));
+            }
+            journal.write(bytes);
+            journalCount++;
+        } catch (IOException e) {
+            logger.warn("Weaving cache journal could not be written: {}", e.getMessage(), e);
+            journalFailed = true;
+        }
+    }
+
+    int size() {
+        return indexCount;
+    }
+
+    synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        journalFailed = true;
+    }
+
+    // the cache is only valid for the exact agent jar and application class path that it was
+    // built with
+    public static String fingerprint(File agentJarFile, @Nullable String classPath) {
+        List<File> files = new ArrayList<File>();
+        files.add(agentJarFile);
+        if (classPath != null) {
+            for (String path : classPath.split(File.pathSeparator)) {
+                if (!path.isEmpty()) {
+                    files.add(new File(path));
+                }
+            }
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            for (int i = 0; i < path.length(); i++) {
+                hash = (hash ^ path.charAt(i)) * FNV_PRIME;
+            }
+            hash = (hash ^ file.length()) * FNV_PRIME;
+            hash = (hash ^ file.lastModified()) * FNV_PRIME;
+        }
+        return String.format(Locale.ENGLISH, "%016x", hash);
+    }
+
+    // e.g. the index and journals of a previous agent version, or of a previous deployment of the
+    // application, a fingerprint's last use is when its index was last opened (by a JVM that got
+    // the merge lock), or when its journal was last written
+    private static void deleteStaleFiles(File dir, String fingerprint) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Map<String, Long> lastUsed = new HashMap<String, Long>();
+        for (File file : files) {
+            String other = getFingerprint(file.getName());
+            if (other != null && !other.equals(fingerprint)) {
+                Long used = lastUsed.get(other);
+                long lastModified = file.lastModified();
+                if (used == null || lastModified > used) {
+                    lastUsed.put(other, lastModified);
+                }
+            }
+        }
+        List<String> others = new ArrayList<String>(lastUsed.keySet());
+        // most recently used first
+        Collections.sort(others, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                return lastUsed.get(right).compareTo(lastUsed.get(left));
+            }
+        });
+        long now = System.currentTimeMillis();
+        Set<String> stale = new HashSet<String>();
+        for (int i = 0; i < others.size(); i++) {
+            String other = others.get(i);
+            if (i >= MAX_FINGERPRINTS - 1 || now - lastUsed.get(other) > MAX_UNUSED_MILLIS) {
+                stale.add(other);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        for (File file : files) {
+            String other = getFingerprint(file.getName());
+            if (other != null && stale.contains(other)) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
+    // the fingerprint is always 16 hex chars, see fingerprint()
+    private static @Nullable String getFingerprint(String fileName) {
+        if (fileName.length() > 16 && (fileName.endsWith(INDEX_SUFFIX)
+                || fileName.endsWith(INDEX_SUFFIX + ".tmp") || fileName.endsWith(JOURNAL_SUFFIX))) {
+            return fileName.substring(0, 16);
+        }
+        return null;
+    }
+
+    private static void merge(File dir, String fingerprint, File indexFile, int maxEntries)
+            throws IOException {
+        File[] journalFiles = dir.listFiles();
+        List<File> journals = new ArrayList<File>();
+        if (journalFiles != null) {
+            for (File file : journalFiles) {
+                String name = file.getName();
+                if (name.startsWith(fingerprint) && name.endsWith(JOURNAL_SUFFIX)) {
+                    journals.add(file);
+                }
+            }
+        }
+        if (journals.isEmpty()) {
+            return;
+        }
+        long[] keys = readIndex(indexFile);
+        int count = keys.length;
+        for (File journal : journals) {
+            // a trailing partial key is from a JVM that was killed in the middle of a write
+            int journalCount = (int) (journal.length() / 8);
+            keys = Arrays.copyOf(keys, count + journalCount);
+            DataInputStream in = new DataInputStream(new FileInputStream(journal));
+            try {
+                for (int i = 0; i < journalCount; i++) {
+                    keys[count++] = in.readLong();
+                }
+            } finally {
+                in.close();
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int distinctCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[distinctCount++] = keys[i];
+            }
+        }
+        if (distinctCount > maxEntries) {
+            // keys of classes that no longer exist are never removed, so the cache starts over
+            // once it fills up
+            logger.debug("Weaving cache is full, starting over");
+            distinctCount = 0;
+        }
+        // the index is written to the side and then swapped in, so that a JVM that is starting up
+        // at the same time either maps the old index or the new one
+        File tmpFile = new File(dir, fingerprint + INDEX_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(distinctCount);
+            for (int i = 0; i < distinctCount; i++) {
+                out.writeLong(keys[i]);
+            }
+        } finally {
+            out.close();
+        }
+        deleteIfExists(indexFile);
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+        }
+        for (File journal : journals) {
+            deleteIfExists(journal);
+        }
+    }
+
+    private static long[] readIndex(File indexFile) throws IOException {
+        MappedByteBuffer index = mapIndex(indexFile);
+        if (index == null) {
+            return new long[0];
+        }
+        long[] keys = new long[index.getInt(4)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = index.getLong(HEADER_SIZE + i * 8);
+        }
+        return keys;
+    }
+
+    private static @Nullable MappedByteBuffer mapIndex(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            long length = file.length();
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer index =
+                    file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int count = index.getInt(4);
+            if (index.getInt(0) != MAGIC || count < 0 || HEADER_SIZE + count * 8L != length) {
+                logger.debug("Ignoring corrupt weaving cache index: {}", indexFile);
+                return null;
+            }
+            return index;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            // e.g. on windows, where a file cannot be deleted while another JVM has it mapped
+            logger.debug("Could not delete {}", file);
+        }
+    }
+}
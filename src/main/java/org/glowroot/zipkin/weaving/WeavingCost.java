@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// class load and weaving time per instrumentation module, so that modules that cost more than
+// they are worth for a given service can be disabled (see InstrumentationModules)
+//
+// only updated while classes are being loaded, so plain atomics are enough
+public class WeavingCost implements WeavingCostMXBean {
+
+    private final AtomicLong classesInspected = new AtomicLong();
+    private final AtomicLong inspectionNanos = new AtomicLong();
+    private final AtomicLong classesFromCache = new AtomicLong();
+    private final AtomicLong cacheNanos = new AtomicLong();
+
+    private final ConcurrentMap<String, ModuleCost> modules =
+            new ConcurrentHashMap<String, ModuleCost>();
+
+    void classInspected(long nanos) {
+        classesInspected.incrementAndGet();
+        inspectionNanos.addAndGet(nanos);
+    }
+
+    void classFromCache(long nanos) {
+        classesFromCache.incrementAndGet();
+        cacheNanos.addAndGet(nanos);
+    }
+
+    void classWoven(Set<String> wovenModules, long nanos) {
+        classInspected(nanos);
+        if (wovenModules.isEmpty()) {
+            return;
+        }
+        long nanosPerModule = nanos / wovenModules.size();
+        for (String module : wovenModules) {
+            ModuleCost moduleCost = getModuleCost(module);
+            moduleCost.classesWoven.incrementAndGet();
+            moduleCost.weavingNanos.addAndGet(nanosPerModule);
+        }
+    }
+
+    void classSkipped(String module) {
+        getModuleCost(module).classesSkipped.incrementAndGet();
+    }
+
+    void classLost(String module) {
+        getModuleCost(module).classesLost.incrementAndGet();
+    }
+
+    @Override
+    public long getClassesInspected() {
+        return classesInspected.get();
+    }
+
+    @Override
+    public double getInspectionTimeMillis() {
+        return toMillis(inspectionNanos.get());
+    }
+
+    @Override
+    public long getClassesFromCache() {
+        return classesFromCache.get();
+    }
+
+    @Override
+    public double getCacheTimeMillis() {
+        return toMillis(cacheNanos.get());
+    }
+
+    @Override
+    public Map<String, Long> getClassesWovenByModule() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, ModuleCost> entry : modules.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().classesWoven.get());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getWeavingTimeMillisByModule() {
+        Map<String, Double> map = new TreeMap<String, Double>();
+        for (Map.Entry<String, ModuleCost> entry : modules.entrySet()) {
+            map.put(entry.getKey(), toMillis(entry.getValue().weavingNanos.get()));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassesSkippedByModule() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, ModuleCost> entry : modules.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().classesSkipped.get());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassesLostByModule() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, ModuleCost> entry : modules.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().classesLost.get());
+        }
+        return map;
+    }
+
+    @Override
+    public String getReport() {
+        List<Map.Entry<String, ModuleCost>> entries =
+                new ArrayList<Map.Entry<String, ModuleCost>>(modules.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, ModuleCost>>() {
+            @Override
+            public int compare(Map.Entry<String, ModuleCost> left,
+                    Map.Entry<String, ModuleCost> right) {
+                long leftNanos = left.getValue().weavingNanos.get();
+                long rightNanos = right.getValue().weavingNanos.get();
+                return leftNanos < rightNanos ? 1 : leftNanos == rightNanos ? 0 : -1;
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "%-30s %14s %12s %15s %12s%n", "module",
+                "classes woven", "weaving ms", "classes skipped", "classes lost"));
+        for (Map.Entry<String, ModuleCost> entry : entries) {
+            ModuleCost moduleCost = entry.getValue();
+            sb.append(String.format(Locale.ENGLISH, "%-30s %14d %12.1f %15d %12d%n",
+                    entry.getKey(), moduleCost.classesWoven.get(),
+                    toMillis(moduleCost.weavingNanos.get()), moduleCost.classesSkipped.get(),
+                    moduleCost.classesLost.get()));
+        }
+        sb.append(String.format(Locale.ENGLISH, "%-30s %14d %12.1f%n", "(all classes inspected)",
+                classesInspected.get(), toMillis(inspectionNanos.get())));
+        sb.append(String.format(Locale.ENGLISH, "%-30s %14d %12.1f%n", "(classes from cache)",
+                classesFromCache.get(), toMillis(cacheNanos.get())));
+        return sb.toString();
+    }
+
+    private ModuleCost getModuleCost(String module) {
+        ModuleCost moduleCost = modules.get(module);
+        if (moduleCost == null) {
+            moduleCost = new ModuleCost();
+            ModuleCost existing = modules.putIfAbsent(module, moduleCost);
+            if (existing != null) {
+                moduleCost = existing;
+            }
+        }
+        return moduleCost;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    private static class ModuleCost {
+
+        private final AtomicLong classesWoven = new AtomicLong();
+        private final AtomicLong weavingNanos = new AtomicLong();
+        private final AtomicLong classesSkipped = new AtomicLong();
+        private final AtomicLong classesLost = new AtomicLong();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.util.Map;
+
+// see WeavingCost
+public interface WeavingCostMXBean {
+
+    // classes passed through the weaver, whether or not they were woven
+    long getClassesInspected();
+
+    // time spent in the weaver across all classes, including the checks for classes that do not
+    // end up being woven
+    double getInspectionTimeMillis();
+
+    // classes that the weaving cache knew would not be woven, and so skipped the weaver (these are
+    // not included in the classes inspected)
+    long getClassesFromCache();
+
+    // time spent hashing and looking up the classes that were found in the weaving cache (for the
+    // other classes, this is included in the inspection time)
+    double getCacheTimeMillis();
+
+    Map<String, Long> getClassesWovenByModule();
+
+    // time spent weaving the classes that a module instruments, split evenly between modules when
+    // several instrument the same class
+    Map<String, Double> getWeavingTimeMillisByModule();
+
+    // classes left unwoven because the module is disabled
+    Map<String, Long> getClassesSkippedByModule();
+
+    // classes left unwoven even though the module is enabled, because another module that
+    // instruments the same class is disabled
+    Map<String, Long> getClassesLostByModule();
+
+    // all of the above as a table, sorted by weaving time
+    String getReport();
+}
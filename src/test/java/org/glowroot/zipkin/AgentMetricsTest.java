@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import zipkin2.reporter.ReporterMetrics;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+//
+// the metrics are process-wide, so the tests assert on deltas
+public class AgentMetricsTest extends BaseTest {
+
+    @Test
+    public void testSpansStartedAndReported() {
+        // given
+        AgentMetrics metrics = Global.getMetrics();
+        long incomingStarted = metrics.getIncomingSpansStarted();
+        long incomingReported = metrics.getIncomingSpansReported();
+        long outgoingStarted = metrics.getOutgoingSpansStarted();
+        long outgoingReported = metrics.getOutgoingSpansReported();
+        long queryStarted = metrics.getQuerySpansStarted();
+        long queryReported = metrics.getQuerySpansReported();
+        long bytesEncoded = metrics.getBytesEncoded();
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan("HTTP", "GET /x", "GET /x").end();
+        startQuerySpan("SQL", "select 1").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(metrics.getIncomingSpansStarted() - incomingStarted).isEqualTo(1);
+        assertThat(metrics.getIncomingSpansReported() - incomingReported).isEqualTo(1);
+        assertThat(metrics.getOutgoingSpansStarted() - outgoingStarted).isEqualTo(1);
+        assertThat(metrics.getOutgoingSpansReported() - outgoingReported).isEqualTo(1);
+        assertThat(metrics.getQuerySpansStarted() - queryStarted).isEqualTo(1);
+        assertThat(metrics.getQuerySpansReported() - queryReported).isEqualTo(1);
+        assertThat(metrics.getBytesEncoded()).isGreaterThan(bytesEncoded);
+    }
+
+    @Test
+    public void testTracesNotSampled() {
+        // given
+        Global.setSampler(Sampler.NEVER_SAMPLE);
+        AgentMetrics metrics = Global.getMetrics();
+        long tracesNotSampled = metrics.getTracesNotSampled();
+
+        // when
+        startIncomingSpan("A", "B", "C").end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(metrics.getTracesNotSampled() - tracesNotSampled).isEqualTo(1);
+    }
+
+    @Test
+    public void testReporterMetrics() {
+        // given
+        AgentMetrics metrics = new AgentMetrics();
+        ReporterMetrics reporterMetrics = metrics.forReporter(0);
+
+        // when
+        reporterMetrics.incrementSpans(3);
+        reporterMetrics.incrementSpanBytes(300);
+        reporterMetrics.incrementMessages();
+        reporterMetrics.incrementMessageBytes(302);
+        reporterMetrics.incrementMessages();
+        reporterMetrics.incrementMessagesDropped(new IOException());
+
+        // then
+        assertThat(metrics.getReporterSpans()).isEqualTo(3);
+        assertThat(metrics.getReporterSpanBytes()).isEqualTo(300);
+        assertThat(metrics.getMessagesSent()).isEqualTo(2);
+        assertThat(metrics.getBytesSent()).isEqualTo(302);
+        assertThat(metrics.getMessagesDropped()).isEqualTo(1);
+    }
+}
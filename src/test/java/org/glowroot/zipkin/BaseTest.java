@@ -21,12 +21,19 @@ import java.util.concurrent.Executors;
 import org.junit.After;
 import org.junit.Before;
 
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
 import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
 import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.propagation.B3Propagation;
+import org.glowroot.zipkin.sampler.Sampler;
 import org.glowroot.zipkin.util.Global;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 public abstract class BaseTest {
 
     private static final TimerName DUMMY_TIMER_NAME = ImmutableTimerNameImpl.of("dummy", false);
@@ -40,6 +47,16 @@ public abstract class BaseTest {
         agent = new AgentImpl();
         reporter = new MockReporter();
         Global.setReporter(reporter);
+        Global.setSpanHandoff(null);
+        Global.setSampler(Sampler.ALWAYS_SAMPLE);
+        Global.setTailSampler(null);
+        Global.setOverheadGovernor(null);
+        Global.setLocalSpanThresholdNanos(MILLISECONDS.toNanos(100));
+        Global.setQueryAggregation(false);
+        Global.setQueryNormalizer(null);
+        Global.setTimerAggregation(false);
+        Global.setPropagation(B3Propagation.MULTI_HEADER);
+        Global.setThreadContextThreadLocal(new ThreadContextThreadLocal());
         executor = Executors.newCachedThreadPool();
     }
 
@@ -55,6 +72,16 @@ public abstract class BaseTest {
                 0, 0);
     }
 
+    protected Span startLocalSpan(String message) {
+        return Global.getThreadContextHolder().get().startLocalSpan(MessageSupplier.create(message),
+                DUMMY_TIMER_NAME);
+    }
+
+    protected QuerySpan startQuerySpan(String queryType, String queryText) {
+        return Global.getThreadContextHolder().get().startQuerySpan(queryType, queryText,
+                QueryMessageSupplier.create(""), DUMMY_TIMER_NAME);
+    }
+
     protected Span startOutgoingSpan(String type, String text, String message) {
         return Global.getThreadContextHolder().get().startOutgoingSpan(type, text,
                 MessageSupplier.create(message), DUMMY_TIMER_NAME);
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.impl.NopTransactionService;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.util.Global;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class LocalSpanTest extends BaseTest {
+
+    @Test
+    public void testFastLocalSpan() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startLocalSpan("fast").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("c");
+    }
+
+    @Test
+    public void testSlowLocalSpan() throws Exception {
+        // given
+        Global.setLocalSpanThresholdNanos(MILLISECONDS.toNanos(10));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span localSpan = startLocalSpan("slow");
+        Thread.sleep(20);
+        localSpan.end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        zipkin2.Span localZipkinSpan = reporter.getSpans().get(0);
+        assertThat(localZipkinSpan.name()).isEqualTo("slow");
+        assertThat(localZipkinSpan.durationAsLong()).isGreaterThanOrEqualTo(10000);
+        // local spans have no type tag
+        assertThat(localZipkinSpan.tags()).isEmpty();
+    }
+
+    @Test
+    public void testFastLocalSpanWithError() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startLocalSpan("fast").endWithError(new IllegalStateException("boom"));
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).tags().get("error")).contains("boom");
+    }
+
+    @Test
+    public void testLocalSpansDisabled() {
+        // given
+        Global.setLocalSpanThresholdNanos(-1);
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span localSpan = startLocalSpan("disabled");
+        localSpan.end();
+        span.end();
+
+        // then
+        assertThat(localSpan).isSameAs(NopTransactionService.LOCAL_SPAN);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.glowroot.zipkin;
 
+import java.util.List;
+
 import org.junit.Test;
 
 import org.glowroot.xyzzy.instrumentation.api.Span;
@@ -64,4 +66,32 @@ public class MainThreadTest extends BaseTest {
         // then
         assertThat(reporter.getSpans()).hasSize(11);
     }
+
+    @Test
+    public void testWithSubMillisecondOutgoingSpan() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+
+        Span serviceCallEntry = startOutgoingSpan("X", "Y", "Z");
+        long startNanos = System.nanoTime();
+        while (System.nanoTime() - startNanos < 200000) {
+            // busy wait for 200 microseconds
+        }
+        serviceCallEntry.end();
+
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(2);
+        zipkin2.Span outgoingSpan = spans.get(0);
+        zipkin2.Span incomingSpan = spans.get(1);
+        assertThat(outgoingSpan.durationAsLong()).isGreaterThanOrEqualTo(200);
+        assertThat(outgoingSpan.timestampAsLong())
+                .isGreaterThanOrEqualTo(incomingSpan.timestampAsLong());
+        // + 1 allows for truncation of timestamp and duration to microseconds
+        assertThat(outgoingSpan.timestampAsLong() + outgoingSpan.durationAsLong())
+                .isLessThanOrEqualTo(
+                        incomingSpan.timestampAsLong() + incomingSpan.durationAsLong() + 1);
+    }
 }
@@ -19,15 +19,16 @@ import java.util.List;
 
 import com.google.common.collect.Lists;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.reporter.Reporter;
 
-class MockReporter implements Reporter<Span> {
+class MockReporter implements Reporter<byte[]> {
 
     private final List<Span> spans = Lists.newArrayList();
 
     @Override
-    public void report(Span span) {
-        spans.add(span);
+    public void report(byte[] encodedSpan) {
+        spans.add(SpanBytesDecoder.JSON_V2.decodeOne(encodedSpan));
     }
 
     List<Span> getSpans() {
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class NestingTest extends BaseTest {
+
+    @Test
+    public void testNestedOutgoingSpans() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span outer = startOutgoingSpan("X", "Y", "outer");
+        Span inner = startOutgoingSpan("X", "Y", "inner");
+        Global.getThreadContextHolder().get()
+                .startQuerySpan("SQL", "select 1", QueryMessageSupplier.create(""), null).end();
+        inner.end();
+        startOutgoingSpan("X", "Y", "sibling").end();
+        outer.end();
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(5);
+        zipkin2.Span query = spans.get(0);
+        zipkin2.Span innerSpan = spans.get(1);
+        zipkin2.Span sibling = spans.get(2);
+        zipkin2.Span outerSpan = spans.get(3);
+        zipkin2.Span root = spans.get(4);
+        assertThat(root.parentId()).isNull();
+        assertThat(outerSpan.parentId()).isEqualTo(root.id());
+        assertThat(innerSpan.parentId()).isEqualTo(outerSpan.id());
+        assertThat(query.parentId()).isEqualTo(innerSpan.id());
+        assertThat(sibling.parentId()).isEqualTo(outerSpan.id());
+        assertThat(root.id()).isNotEqualTo(outerSpan.id());
+        assertThat(outerSpan.id()).isNotEqualTo(innerSpan.id());
+        for (zipkin2.Span zipkinSpan : spans) {
+            assertThat(zipkinSpan.traceId()).isEqualTo(root.traceId());
+        }
+    }
+
+    @Test
+    public void testSpanEndedOutOfOrder() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span outer = startOutgoingSpan("X", "Y", "outer");
+        // never ended
+        startOutgoingSpan("X", "Y", "inner");
+        outer.end();
+        startOutgoingSpan("X", "Y", "next").end();
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(3);
+        zipkin2.Span next = spans.get(1);
+        zipkin2.Span root = spans.get(2);
+        assertThat(next.parentId()).isEqualTo(root.id());
+    }
+
+    @Test
+    public void testDeepNesting() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span[] outgoingSpans = new Span[100];
+        for (int i = 0; i < outgoingSpans.length; i++) {
+            outgoingSpans[i] = startOutgoingSpan("X", "Y", "Z" + i);
+        }
+        for (int i = outgoingSpans.length - 1; i >= 0; i--) {
+            outgoingSpans[i].end();
+        }
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(101);
+        for (int i = 0; i < spans.size() - 1; i++) {
+            assertThat(spans.get(i).parentId()).isEqualTo(spans.get(i + 1).id());
+        }
+    }
+
+    @Test
+    public void testFastLocalSpanWithChild() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span localSpan = startLocalSpan("local");
+        startOutgoingSpan("X", "Y", "Z").end();
+        localSpan.end();
+        span.end();
+
+        // then
+        // the local span is reported even though it is fast, since otherwise its child would be
+        // orphaned
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(3);
+        assertThat(spans.get(0).parentId()).isEqualTo(spans.get(1).id());
+        assertThat(spans.get(1).name()).isEqualTo("local");
+        assertThat(spans.get(1).parentId()).isEqualTo(spans.get(2).id());
+    }
+
+    @Test
+    public void testAuxThreadSpansParentedToActiveSpan() throws Exception {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span outer = startOutgoingSpan("X", "Y", "outer");
+        final AuxThreadContext auxThreadContext =
+                Global.getThreadContextHolder().get().createAuxThreadContext();
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Span auxSpan = auxThreadContext.start();
+                startOutgoingSpan("X", "Y", "aux").end();
+                auxSpan.end();
+            }
+        });
+        future.get();
+        outer.end();
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(3);
+        assertThat(spans.get(0).name()).isEqualTo("aux");
+        assertThat(spans.get(0).parentId()).isEqualTo(spans.get(1).id());
+        assertThat(spans.get(0).traceId()).isEqualTo(spans.get(2).traceId());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.propagation.Getter;
+import org.glowroot.zipkin.propagation.Setter;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class PropagationTest extends BaseTest {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("test", false);
+
+    private static final Getter<Map<String, String>> GETTER = new Getter<Map<String, String>>() {
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+            return carrier.get(key);
+        }
+    };
+
+    private static final Setter<Map<String, String>> SETTER = new Setter<Map<String, String>>() {
+        @Override
+        public void put(Map<String, String> carrier, String key, String value) {
+            carrier.put(key, value);
+        }
+    };
+
+    @Test
+    public void testContinueIncomingTrace() {
+        // given
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("b3", "64fe8b2a57d3eff7-e457b5a2e4d86bd1-1");
+
+        // when
+        Span span = startIncomingSpan(requestHeaders);
+        Map<String, String> outgoingHeaders = new HashMap<String, String>();
+        Propagation.startOutgoingSpan("http", "GET /", SETTER, outgoingHeaders,
+                MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(2);
+        zipkin2.Span outgoing = spans.get(0);
+        zipkin2.Span root = spans.get(1);
+        assertThat(root.traceId()).isEqualTo("64fe8b2a57d3eff7");
+        assertThat(root.parentId()).isEqualTo("e457b5a2e4d86bd1");
+        assertThat(outgoing.traceId()).isEqualTo("64fe8b2a57d3eff7");
+        assertThat(outgoingHeaders.get("X-B3-TraceId")).isEqualTo("64fe8b2a57d3eff7");
+        assertThat(outgoingHeaders.get("X-B3-SpanId")).isEqualTo(outgoing.id());
+        assertThat(outgoingHeaders.get("X-B3-ParentSpanId")).isEqualTo(root.id());
+        assertThat(outgoingHeaders.get("X-B3-Sampled")).isEqualTo("1");
+    }
+
+    @Test
+    public void testUpstreamSamplingDecisionHonored() {
+        // given
+        Global.setSampler(Sampler.ALWAYS_SAMPLE);
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("X-B3-TraceId", "64fe8b2a57d3eff7");
+        requestHeaders.put("X-B3-SpanId", "e457b5a2e4d86bd1");
+        requestHeaders.put("X-B3-Sampled", "0");
+
+        // when
+        Span span = startIncomingSpan(requestHeaders);
+        Map<String, String> outgoingHeaders = new HashMap<String, String>();
+        Propagation.startOutgoingSpan("http", "GET /", SETTER, outgoingHeaders,
+                MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(outgoingHeaders).hasSize(1);
+        assertThat(outgoingHeaders.get("X-B3-Sampled")).isEqualTo("0");
+    }
+
+    @Test
+    public void testNoIncomingHeaders() {
+        // when
+        startIncomingSpan(new HashMap<String, String>()).end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).parentId()).isNull();
+    }
+
+    @Test
+    public void testAsyncOutgoingSpan() {
+        // given
+        Span span = startIncomingSpan(new HashMap<String, String>());
+
+        // when
+        Map<String, String> outgoingHeaders = new HashMap<String, String>();
+        Propagation.startAsyncOutgoingSpan("http", "GET /", SETTER, outgoingHeaders,
+                MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+
+        // then
+        List<zipkin2.Span> spans = reporter.getSpans();
+        assertThat(spans).hasSize(2);
+        assertThat(outgoingHeaders.get("X-B3-TraceId")).isEqualTo(spans.get(1).traceId());
+        assertThat(outgoingHeaders.get("X-B3-SpanId")).isEqualTo(spans.get(0).id());
+    }
+
+    @Test
+    public void testOutgoingSpanOutsideOfTrace() {
+        // when
+        Map<String, String> outgoingHeaders = new HashMap<String, String>();
+        Propagation.startOutgoingSpan("http", "GET /", SETTER, outgoingHeaders,
+                MessageSupplier.create("GET /"), TIMER_NAME).end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(outgoingHeaders).isEmpty();
+    }
+
+    private Span startIncomingSpan(Map<String, String> requestHeaders) {
+        return Propagation.startIncomingSpan("Web", "/", GETTER, requestHeaders,
+                MessageSupplier.create("GET /"), TIMER_NAME);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.util.Global;
+import org.glowroot.zipkin.util.QueryNormalizer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class QueryAggregationTest extends BaseTest {
+
+    @Test
+    public void testQueriesNotAggregatedByDefault() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 3; i++) {
+            startQuerySpan("SQL", "select 1").end();
+        }
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(4);
+    }
+
+    @Test
+    public void testRepeatedQueriesAggregated() {
+        // given
+        Global.setQueryAggregation(true);
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 3; i++) {
+            startQuerySpan("SQL", "select 1").end();
+        }
+        startQuerySpan("SQL", "select 2").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        zipkin2.Span rootSpan = getSpan("c");
+        zipkin2.Span querySpan = getSpan("select 1");
+        assertThat(querySpan.parentId()).isEqualTo(rootSpan.id());
+        assertThat(querySpan.tags().get("query.count")).isEqualTo("3");
+        assertThat(querySpan.tags()).containsKey("query.duration.total");
+        assertThat(querySpan.tags()).containsKey("query.duration.min");
+        assertThat(querySpan.tags()).containsKey("query.duration.max");
+        // a query executed only once is reported as a normal query span
+        assertThat(getSpan("select 2").tags()).doesNotContainKey("query.count");
+    }
+
+    @Test
+    public void testQueriesAggregatedPerParentSpan() throws Exception {
+        // given
+        Global.setQueryAggregation(true);
+        Global.setLocalSpanThresholdNanos(MILLISECONDS.toNanos(0));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span localSpan = startLocalSpan("local");
+        startQuerySpan("SQL", "select 1").end();
+        startQuerySpan("SQL", "select 1").end();
+        localSpan.end();
+        startQuerySpan("SQL", "select 1").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(4);
+        zipkin2.Span localZipkinSpan = getSpan("local");
+        // the aggregate is reported when its parent span ends, before the parent span itself
+        zipkin2.Span aggregatedSpan = reporter.getSpans().get(0);
+        assertThat(aggregatedSpan.parentId()).isEqualTo(localZipkinSpan.id());
+        assertThat(aggregatedSpan.tags().get("query.count")).isEqualTo("2");
+        assertThat(reporter.getSpans().get(1)).isEqualTo(localZipkinSpan);
+        zipkin2.Span querySpan = reporter.getSpans().get(3);
+        assertThat(querySpan.parentId()).isEqualTo(getSpan("c").id());
+        assertThat(querySpan.tags()).doesNotContainKey("query.count");
+    }
+
+    @Test
+    public void testNormalizedQueriesAggregated() {
+        // given
+        Global.setQueryAggregation(true);
+        Global.setQueryNormalizer(new QueryNormalizer(100, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 3; i++) {
+            startQuerySpan("SQL", "select * from t where id = " + i).end();
+        }
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        zipkin2.Span querySpan = getSpan("select * from t where id = ?");
+        assertThat(querySpan.tags().get("query.count")).isEqualTo("3");
+    }
+
+    @Test
+    public void testQueryWithErrorNotAggregated() {
+        // given
+        Global.setQueryAggregation(true);
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startQuerySpan("SQL", "select 1").end();
+        startQuerySpan("SQL", "select 1").endWithError(new IllegalStateException("boom"));
+        startQuerySpan("SQL", "select 1").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans().get(0).tags().get("error")).contains("boom");
+        assertThat(getSpan("select 1").tags()).doesNotContainKey("error");
+    }
+
+    private zipkin2.Span getSpan(String name) {
+        for (zipkin2.Span span : reporter.getSpans()) {
+            if (name.equals(span.name()) && !span.tags().containsKey("error")) {
+                return span;
+            }
+        }
+        throw new AssertionError("span not found: " + name);
+    }
+}
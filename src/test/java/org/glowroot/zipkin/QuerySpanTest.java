@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class QuerySpanTest extends BaseTest {
+
+    @Test
+    public void testRowsAndFetchTime() throws Exception {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+        // the engine ends the query span when executeQuery() returns, before ResultSet.next()
+        querySpan.end();
+        for (int i = 0; i < 3; i++) {
+            Timer timer = querySpan.extend();
+            Thread.sleep(1);
+            querySpan.incrementCurrRow();
+            timer.stop();
+        }
+        // the last ResultSet.next() returns false
+        querySpan.extend().stop();
+        querySpan.rowNavigationAttempted();
+        span.end();
+
+        // then
+        // the query span is held until its parent span ends, so it is reported after it
+        zipkin2.Span zipkinSpan = reporter.getSpans().get(1);
+        assertThat(zipkinSpan.tags().get("query.rows")).isEqualTo("3");
+        assertThat(Long.parseLong(zipkinSpan.tags().get("query.fetch.duration")))
+                .isGreaterThanOrEqualTo(3000);
+    }
+
+    @Test
+    public void testNoRows() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+        querySpan.end();
+        querySpan.rowNavigationAttempted();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans().get(1).tags().get("query.rows")).isEqualTo("0");
+    }
+
+    @Test
+    public void testNoRowNavigation() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startQuerySpan("SQL", "update t set x = 1").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans().get(1).tags()).doesNotContainKey("query.rows");
+        assertThat(reporter.getSpans().get(1).tags()).doesNotContainKey("query.fetch.duration");
+    }
+
+    @Test
+    public void testSetCurrRow() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+        querySpan.end();
+        querySpan.setCurrRow(10);
+        querySpan.setCurrRow(5);
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans().get(1).tags().get("query.rows")).isEqualTo("10");
+    }
+
+    @Test
+    public void testReportedWhenNextQueryStarts() {
+        // given
+        Span span = startIncomingSpan("A", "B", "C");
+        QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+        querySpan.end();
+        querySpan.incrementCurrRow();
+
+        // when
+        startQuerySpan("SQL", "select 2");
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).tags().get("query.rows")).isEqualTo("1");
+        // rows navigated after the span has been reported are not tracked
+        querySpan.incrementCurrRow();
+        span.end();
+        assertThat(reporter.getSpans().get(0).tags().get("query.rows")).isEqualTo("1");
+    }
+
+    @Test
+    public void testReportedWhenParentSpanEnds() {
+        // given
+        Span span = startIncomingSpan("A", "B", "C");
+        Span outgoingSpan = startOutgoingSpan("HTTP", "GET /", "GET /");
+        QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+        querySpan.end();
+        querySpan.incrementCurrRow();
+
+        // when
+        outgoingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("select 1");
+        span.end();
+    }
+
+    @Test
+    public void testAggregatedRows() {
+        // given
+        Global.setQueryAggregation(true);
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 2; i++) {
+            QuerySpan querySpan = startQuerySpan("SQL", "select 1");
+            querySpan.end();
+            querySpan.incrementCurrRow();
+            querySpan.incrementCurrRow();
+        }
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        // the aggregate is reported when the root span ends, after the root span itself
+        assertThat(reporter.getSpans().get(1).tags().get("query.rows")).isEqualTo("4");
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.model.NopSpan;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class SamplingTest extends BaseTest {
+
+    @Test
+    public void testUnsampledTrace() throws Exception {
+        // given
+        Global.setSampler(Sampler.NEVER_SAMPLE);
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        ThreadContextThreadLocal.Holder threadContextHolder = Global.getThreadContextHolder();
+        ThreadContextPlus threadContext = threadContextHolder.get();
+        assertThat(threadContext.isInTransaction()).isTrue();
+
+        Span outgoingSpan = startOutgoingSpan("X", "Y", "Z");
+        outgoingSpan.end();
+        threadContext.startQuerySpan("SQL", "select 1", QueryMessageSupplier.create(""), null)
+                .end();
+
+        final AuxThreadContext auxThreadContext = threadContext.createAuxThreadContext();
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Span auxSpan = auxThreadContext.start();
+                // a no-op thread context is installed so that an incoming span on the aux thread
+                // does not start a new trace
+                assertThat(Global.getThreadContextHolder().get()).isNotNull();
+                startOutgoingSpan("X", "Y", "Z").end();
+                auxSpan.end();
+                assertThat(Global.getThreadContextHolder().get()).isNull();
+            }
+        });
+        future.get();
+
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(threadContextHolder.get()).isNull();
+        // spans within unsampled traces are shared no-op instances
+        assertThat(outgoingSpan).isSameAs(NopSpan.INSTANCE);
+    }
+
+    @Test
+    public void testProbabilisticSampling() {
+        // given
+        Global.setSampler(Sampler.create(0.5, 0));
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            startIncomingSpan("A", "B", "C").end();
+        }
+
+        // then
+        assertThat(reporter.getSpans().size()).isBetween(350, 650);
+    }
+
+    @Test
+    public void testLowestProbabilitySampling() {
+        // given
+        Sampler sampler = Sampler.create(0.0001, 0);
+        Random random = new Random(0);
+
+        // when
+        int sampled = 0;
+        for (int i = 0; i < 1000000; i++) {
+            if (sampler.isSampled(random.nextLong())) {
+                sampled++;
+            }
+        }
+
+        // then
+        assertThat(sampled).isBetween(50, 150);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProbabilityBelowPrecision() {
+        // when
+        Sampler.create(0.00005, 0);
+    }
+
+    @Test
+    public void testRateLimitedSampling() {
+        // given
+        Global.setSampler(Sampler.create(1.0, 10));
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            startIncomingSpan("A", "B", "C").end();
+        }
+
+        // then
+        // allowing for the loop taking longer than a second
+        assertThat(reporter.getSpans().size()).isBetween(10, 20);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.reporter.SpanHandoff;
+import org.glowroot.zipkin.reporter.SpanRecordEncoder;
+import org.glowroot.zipkin.reporter.WaitStrategy;
+import org.glowroot.zipkin.util.Global;
+
+// simulates the method calls that the engine makes (same as the tests, see BaseTest), measuring the
+// overhead that the agent adds to the application thread
+//
+// run with the gc profiler (which is the default in the benchmark profile) to get bytes allocated
+// per op (gc.alloc.rate.norm)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpanLifecycleBenchmark {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("benchmark", false);
+
+    private static final MessageSupplier MESSAGE_SUPPLIER = MessageSupplier.create("message");
+    private static final QueryMessageSupplier QUERY_MESSAGE_SUPPLIER =
+            QueryMessageSupplier.create("jdbc execution: ");
+
+    private static final Exception EXCEPTION = new Exception("benchmark");
+
+    // without handoff, spans are encoded on the application thread when they end (see
+    // SpanRecordEncoder), so this includes the cost of encoding each span
+    @Param({"JSON_V2", "PROTO3"})
+    public String encoding;
+
+    // with handoff, spans are encoded on the handoff thread (see SpanHandoff), and since the
+    // benchmark ends spans faster than they can be encoded, many are dropped on a full queue
+    @Param({"false", "true"})
+    public boolean handoff;
+
+    private SpanHandoff spanHandoff;
+
+    private AgentImpl agent;
+    private ThreadContextThreadLocal.Holder threadContextHolder;
+
+    private org.glowroot.xyzzy.instrumentation.api.Span rootSpan;
+    private ThreadContextPlus threadContext;
+
+    private ThreadContextPlus auxParentThreadContext;
+
+    @Setup
+    public void setup() {
+        if (encoding.equals("PROTO3")) {
+            Global.setSpanEncoder(SpanRecordEncoder.PROTO3);
+        } else {
+            Global.setSpanEncoder(SpanRecordEncoder.JSON_V2);
+        }
+        Global.setReporter(new NopReporter());
+        if (handoff) {
+            spanHandoff = new SpanHandoff(encoding.equals("PROTO3") ? SpanRecordEncoder.PROTO3
+                    : SpanRecordEncoder.JSON_V2, new NopReporter(), 10000, 8, WaitStrategy.SLEEP,
+                    Global.getMetrics());
+            Global.setSpanHandoff(spanHandoff);
+        }
+        agent = new AgentImpl();
+        threadContextHolder = Global.getThreadContextHolder();
+
+        // captured and then detached from this thread so that each aux thread context start()
+        // below goes through the path of a real (new) aux thread
+        startIncomingSpan();
+        auxParentThreadContext = threadContextHolder.get();
+        threadContextHolder.set(null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (spanHandoff != null) {
+            Global.setSpanHandoff(null);
+            spanHandoff.close();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        rootSpan = startIncomingSpan();
+        threadContext = threadContextHolder.get();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        rootSpan.end();
+    }
+
+    @Benchmark
+    public void incomingSpan() {
+        // the iteration level root span needs to be detached in order to start a new root span
+        threadContextHolder.set(null);
+        startIncomingSpan().end();
+        threadContextHolder.set(threadContext);
+    }
+
+    @Benchmark
+    public void incomingSpanWithError() {
+        threadContextHolder.set(null);
+        startIncomingSpan().endWithError(EXCEPTION);
+        threadContextHolder.set(threadContext);
+    }
+
+    // below the local span threshold, so not reported
+    @Benchmark
+    public void localSpan() {
+        threadContext.startLocalSpan(MESSAGE_SUPPLIER, TIMER_NAME).end();
+    }
+
+    @Benchmark
+    public void outgoingSpan() {
+        threadContext.startOutgoingSpan("http", "GET /", MESSAGE_SUPPLIER, TIMER_NAME).end();
+    }
+
+    @Benchmark
+    public void outgoingSpanWithError() {
+        threadContext.startOutgoingSpan("http", "GET /", MESSAGE_SUPPLIER, TIMER_NAME)
+                .endWithError(EXCEPTION);
+    }
+
+    @Benchmark
+    public void querySpan() {
+        threadContext.startQuerySpan("SQL", "select 1", QUERY_MESSAGE_SUPPLIER, TIMER_NAME).end();
+    }
+
+    @Benchmark
+    public void querySpanWithError() {
+        threadContext.startQuerySpan("SQL", "select 1", QUERY_MESSAGE_SUPPLIER, TIMER_NAME)
+                .endWithError(EXCEPTION);
+    }
+
+    @Benchmark
+    public void auxThreadContext() {
+        threadContextHolder.set(null);
+        org.glowroot.xyzzy.instrumentation.api.Span auxSpan =
+                auxParentThreadContext.createAuxThreadContext().start();
+        threadContextHolder.get()
+                .startOutgoingSpan("http", "GET /", MESSAGE_SUPPLIER, TIMER_NAME).end();
+        auxSpan.end();
+        threadContextHolder.set(threadContext);
+    }
+
+    // a typical request: incoming span with a few outgoing and query spans
+    @Benchmark
+    public void request() {
+        threadContextHolder.set(null);
+        org.glowroot.xyzzy.instrumentation.api.Span span = startIncomingSpan();
+        ThreadContextPlus requestThreadContext = threadContextHolder.get();
+        for (int i = 0; i < 5; i++) {
+            requestThreadContext
+                    .startQuerySpan("SQL", "select 1", QUERY_MESSAGE_SUPPLIER, TIMER_NAME).end();
+        }
+        requestThreadContext.startOutgoingSpan("http", "GET /", MESSAGE_SUPPLIER, TIMER_NAME)
+                .end();
+        span.end();
+        threadContextHolder.set(threadContext);
+    }
+
+    private org.glowroot.xyzzy.instrumentation.api.Span startIncomingSpan() {
+        return agent.startIncomingSpan("Web", "/benchmark", MESSAGE_SUPPLIER, TIMER_NAME,
+                threadContextHolder, 0, 0);
+    }
+
+    private static class NopReporter implements Reporter<byte[]> {
+
+        // written so that the encoding is not eliminated as dead code
+        private volatile int totalBytes;
+
+        @Override
+        public void report(byte[] encodedSpan) {
+            totalBytes += encodedSpan.length;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.zipkin.config.AgentConfig;
+
+// cold start of the agent's own initialization (everything in MainEntryPoint.start except for
+// weaving, which lives in the engine), one invocation per fresh JVM
+//
+// run with "-prof cl" to also report the number of classes loaded, e.g. the http reporter only
+// loads the classes needed to validate its configuration, since the okhttp client and the
+// AsyncReporter threads are only created once the first span is reported (see LazyReporter)
+//
+// the mbeans are registered from a background thread (see
+// MainEntryPoint.registerMBeansInBackground), so they are not part of the startup cost
+//
+// the real time-to-premain-return (including the engine) is logged by the agent at startup
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    @Param({"console", "http"})
+    public String reporter;
+
+    @Setup
+    public void setup() {
+        // in the agent, logging is already initialized (see MainEntryPointUtil.initLogging) by the
+        // time MainEntryPoint.start() is called
+        LoggerFactory.getLogger(StartupBenchmark.class).debug("setup");
+    }
+
+    @Benchmark
+    public void start() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("reporter", reporter);
+        AgentConfig config = AgentConfig.create(properties);
+        MainEntryPoint.initTracing(config);
+        MainEntryPoint.initReporting(config, new File(System.getProperty("java.io.tmpdir")));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.reporter.PendingSpan;
+import org.glowroot.zipkin.reporter.SpanRecord;
+import org.glowroot.zipkin.sampler.Sampler;
+import org.glowroot.zipkin.sampler.TailSampler;
+import org.glowroot.zipkin.sampler.TraceBuffer;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class TailSamplingTest extends BaseTest {
+
+    @Test
+    public void testDiscardFastTrace() {
+        // given
+        Global.setTailSampler(new TailSampler(true, 60000000, 0.0, 1000, 100, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan("X", "Y", "Z").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void testKeepErrorTrace() {
+        // given
+        Global.setTailSampler(new TailSampler(true, 60000000, 0.0, 1000, 100, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan("X", "Y", "Z").endWithError(new IllegalStateException("boom"));
+        // nothing is reported until the root span ends
+        assertThat(reporter.getSpans()).isEmpty();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void testKeepErrorMessageTrace() {
+        // given
+        Global.setTailSampler(new TailSampler(true, 60000000, 0.0, 1000, 100, 100));
+
+        // when
+        // e.g. an error status, which is reported without a throwable
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan("X", "Y", "Z").endWithError("status 500");
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).tags()).containsEntry("error", "status 500");
+    }
+
+    @Test
+    public void testKeepSlowTrace() throws Exception {
+        // given
+        Global.setTailSampler(new TailSampler(true, 10000, 0.0, 1000, 100, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        Span outgoingSpan = startOutgoingSpan("X", "Y", "Z");
+        Thread.sleep(20);
+        outgoingSpan.end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void testMaxSpansPerTrace() {
+        // given
+        Global.setTailSampler(new TailSampler(true, 60000000, 1.0, 1000, 5, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 10; i++) {
+            startOutgoingSpan("X", "Y", "Z").end();
+        }
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(5);
+    }
+
+    @Test
+    public void testKeepRootSpanWhenMaxSpansPerTraceExceeded() {
+        // given
+        Global.setTailSampler(new TailSampler(true, 60000000, 0.0, 1000, 5, 100));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        for (int i = 0; i < 10; i++) {
+            startOutgoingSpan("X", "Y", "Z").end();
+        }
+        span.endWithError(new IllegalStateException("boom"));
+
+        // then
+        // 4 outgoing spans, plus the root span in the slot reserved for it
+        assertThat(reporter.getSpans()).hasSize(5);
+        zipkin2.Span rootZipkinSpan = reporter.getSpans().get(4);
+        assertThat(rootZipkinSpan.parentId()).isNull();
+        assertThat(rootZipkinSpan.tags().get("error")).contains("boom");
+    }
+
+    @Test
+    public void testEvictOldestTraceWhenMaxBufferedSpansExceeded() {
+        // given
+        TailSampler tailSampler = new TailSampler(true, 60000000, 1.0, 2, 100, 100);
+        TraceBuffer first = tailSampler.newTraceBuffer(1);
+        TraceBuffer second = tailSampler.newTraceBuffer(2);
+
+        // when
+        first.add(newSpan(1), 1, false);
+        second.add(newSpan(2), 1, false);
+        second.add(newSpan(2), 1, false);
+        first.complete(newSpan(1), 1, false);
+        second.complete(newSpan(2), 1, false);
+
+        // then
+        // first trace was evicted (and discarded) to make room for the second
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans().get(0).traceId()).isEqualTo("0000000000000002");
+    }
+
+    @Test
+    public void testKeepErrorTraceOnEviction() {
+        // given
+        TailSampler tailSampler = new TailSampler(true, 60000000, 0.0, 100, 100, 1);
+        TraceBuffer first = tailSampler.newTraceBuffer(1);
+        first.add(newSpan(1), 1, true);
+
+        // when
+        tailSampler.newTraceBuffer(2);
+
+        // then
+        // first trace was evicted, but kept early since it contains an error
+        assertThat(reporter.getSpans()).hasSize(1);
+        // spans that finish after eviction follow the decision
+        first.add(newSpan(1), 1, false);
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void testBaselineIndependentOfHeadSampling() {
+        // given
+        Global.setSampler(Sampler.create(0.5, 0));
+        Global.setTailSampler(new TailSampler(true, 60000000, 0.1, 1000, 100, 100));
+
+        // when
+        for (int i = 0; i < 10000; i++) {
+            startIncomingSpan("A", "B", "C").end();
+        }
+
+        // then
+        // 0.5 * 0.1 of all traces, instead of 0.5 * 0.2 if the decisions were correlated
+        assertThat(reporter.getSpans().size()).isBetween(400, 600);
+    }
+
+    @Test
+    public void testEvictInStartOrder() {
+        // given
+        TailSampler tailSampler = new TailSampler(true, 60000000, 0.0, 100, 100, 2);
+        for (int i = 1; i <= 2; i++) {
+            tailSampler.newTraceBuffer(i).add(newSpan(i), 1, true);
+        }
+
+        // when
+        for (int i = 3; i <= 4; i++) {
+            tailSampler.newTraceBuffer(i).add(newSpan(i), 1, true);
+        }
+
+        // then
+        // evicted (and kept early since they contain errors) in the order they started
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).traceId()).isEqualTo("0000000000000001");
+        assertThat(reporter.getSpans().get(1).traceId()).isEqualTo("0000000000000002");
+    }
+
+    private static PendingSpan newSpan(final long traceId) {
+        return new PendingSpan() {
+            @Override
+            public void writeTo(SpanRecord record) {
+                record.ids(0, traceId, 0, traceId).duration(1);
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.util.CompactThreadContextThreadLocal;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class ThreadContextStorageTest extends BaseTest {
+
+    private CompactThreadContextThreadLocal threadContextThreadLocal;
+
+    @Before
+    public void beforeEachWithCompactStorage() {
+        threadContextThreadLocal = new CompactThreadContextThreadLocal();
+        Global.setThreadContextThreadLocal(threadContextThreadLocal);
+    }
+
+    @Test
+    public void testWithAuxThread() throws Exception {
+        // when
+        Span incomingSpan = startIncomingSpan("A", "B", "C");
+
+        ThreadContextPlus threadContext = Global.getThreadContextHolder().get();
+        final AuxThreadContext auxThreadContext = threadContext.createAuxThreadContext();
+
+        Future<Integer> future = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                Span auxSpan = auxThreadContext.start();
+                Span outgoingSpan = startOutgoingSpan("X", "Y", "Z");
+                int threadContextCount = threadContextThreadLocal.getThreadContextCount();
+                outgoingSpan.end();
+                auxSpan.end();
+                return threadContextCount;
+            }
+        });
+        int threadContextCount = future.get();
+
+        incomingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(threadContextCount).isEqualTo(2);
+        assertThat(threadContextThreadLocal.getThreadContextCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testThreadContextsAreNotShared() throws Exception {
+        // given
+        Span incomingSpan = startIncomingSpan("A", "B", "C");
+
+        // when
+        Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return Global.getThreadContextHolder().get() == null
+                        && threadContextThreadLocal.get() == null;
+            }
+        });
+
+        // then
+        assertThat(future.get()).isTrue();
+        assertThat(threadContextThreadLocal.get()).isNotNull();
+        incomingSpan.end();
+        assertThat(threadContextThreadLocal.get()).isNull();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.zipkin.metrics.AgentMetrics;
+import org.glowroot.zipkin.sampler.OverheadGovernor;
+import org.glowroot.zipkin.util.Global;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class ThrottlingTest extends BaseTest {
+
+    @Test
+    public void testQuerySpansThrottled() {
+        // given
+        Global.setOverheadGovernor(createGovernor(OverheadGovernor.QUERY_SPANS_DISABLED));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startQuerySpan("SQL", "select 1").end();
+        startOutgoingSpan("HTTP", "GET /x", "GET /x").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("get /x");
+    }
+
+    @Test
+    public void testLocalSpansThrottled() throws Exception {
+        // given
+        Global.setLocalSpanThresholdNanos(0);
+        Global.setOverheadGovernor(createGovernor(OverheadGovernor.LOCAL_SPANS_DISABLED));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startLocalSpan("local").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("c");
+    }
+
+    @Test
+    public void testSamplingThrottled() {
+        // given
+        Global.setOverheadGovernor(createGovernor(OverheadGovernor.LOCAL_SPANS_DISABLED + 10));
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            startIncomingSpan("A", "B", "C").end();
+        }
+
+        // then
+        // 1/1024 sampled
+        assertThat(reporter.getSpans().size()).isLessThan(10);
+    }
+
+    // the governor is pushed up to the given level by a full reporter queue
+    private static OverheadGovernor createGovernor(int level) {
+        AgentMetrics metrics = new AgentMetrics();
+        OverheadGovernor governor = new OverheadGovernor(metrics, 0, 0.5, 0, 1024, 100);
+        metrics.forReporter(0).updateQueuedSpans(100);
+        long tick = System.nanoTime();
+        for (int i = 0; i < level; i++) {
+            tick += SECONDS.toNanos(1);
+            governor.update(tick);
+        }
+        assertThat(governor.getLevel()).isEqualTo(level);
+        return governor;
+    }
+}
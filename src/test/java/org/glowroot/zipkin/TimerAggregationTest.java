@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.util.Global;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the tests simulate the method calls that the engine makes, and then validate that the reporter
+// collected the expected spans
+public class TimerAggregationTest extends BaseTest {
+
+    private static final TimerName ROOT_TIMER_NAME =
+            ImmutableTimerNameImpl.of("http request", false);
+    private static final TimerName TIMER_NAME =
+            ImmutableTimerNameImpl.of("template render", false);
+    private static final TimerName QUERY_TIMER_NAME =
+            ImmutableTimerNameImpl.of("jdbc query", false);
+
+    @Before
+    public void beforeEachTimerAggregationTest() {
+        Global.setTimerAggregation(true);
+    }
+
+    @Test
+    public void testTimersOnRootSpan() throws Exception {
+        // when
+        Span span = startRootSpan();
+        ThreadContextPlus threadContext = Global.getThreadContextHolder().get();
+        for (int i = 0; i < 3; i++) {
+            Timer timer = threadContext.startTimer(TIMER_NAME);
+            Thread.sleep(1);
+            timer.stop();
+        }
+        QuerySpan querySpan = threadContext.startQuerySpan("SQL", "select 1",
+                QueryMessageSupplier.create(""), QUERY_TIMER_NAME);
+        querySpan.end();
+        // e.g. jdbc ResultSet.next() after the statement has executed
+        querySpan.extend().stop();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        // the query span is held until the root span ends, so it is reported after it
+        Map<String, String> tags = reporter.getSpans().get(0).tags();
+        assertThat(tags.get("timer.http request.count")).isEqualTo("1");
+        assertThat(tags.get("timer.template render.count")).isEqualTo("3");
+        assertThat(Long.parseLong(tags.get("timer.template render.duration")))
+                .isGreaterThanOrEqualTo(3000);
+        // extending the query span adds time, not executions
+        assertThat(tags.get("timer.jdbc query.count")).isEqualTo("1");
+        // child spans do not carry the breakdown
+        assertThat(reporter.getSpans().get(1).tags()).doesNotContainKey("timer.jdbc query.count");
+    }
+
+    @Test
+    public void testSpanTimerExtended() {
+        // when
+        Span span = startRootSpan();
+        Span outgoingSpan = Global.getThreadContextHolder().get().startOutgoingSpan("HTTP",
+                "GET /x", MessageSupplier.create("GET /x"), TIMER_NAME);
+        outgoingSpan.end();
+        outgoingSpan.extend().stop();
+        span.end();
+
+        // then
+        Map<String, String> tags = reporter.getSpans().get(1).tags();
+        assertThat(tags.get("timer.template render.count")).isEqualTo("1");
+    }
+
+    @Test
+    public void testAuxThreadTimersMerged() throws Exception {
+        // given
+        Span span = startRootSpan();
+        final AuxThreadContext auxThreadContext =
+                Global.getThreadContextHolder().get().createAuxThreadContext();
+
+        // when
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Span auxSpan = auxThreadContext.start();
+                Global.getThreadContextHolder().get().startTimer(TIMER_NAME).stop();
+                Global.getThreadContextHolder().get().startTimer(TIMER_NAME).stop();
+                auxSpan.end();
+            }
+        });
+        future.get();
+        Global.getThreadContextHolder().get().startTimer(TIMER_NAME).stop();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).tags().get("timer.template render.count"))
+                .isEqualTo("3");
+    }
+
+    @Test
+    public void testDisabled() {
+        // given
+        Global.setTimerAggregation(false);
+
+        // when
+        Span span = startRootSpan();
+        Global.getThreadContextHolder().get().startTimer(TIMER_NAME).stop();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans().get(0).tags()).isEmpty();
+    }
+
+    private Span startRootSpan() {
+        return agent.startIncomingSpan("Web", "/x", MessageSupplier.create("/x"),
+                ROOT_TIMER_NAME, Global.getThreadContextHolder(), 0, 0);
+    }
+}
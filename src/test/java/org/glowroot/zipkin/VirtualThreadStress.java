@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.zipkin.util.CompactThreadContextThreadLocal;
+import org.glowroot.zipkin.util.Global;
+
+// measures the heap retained per thread by each thread context storage (see threadContextStorage
+// in AgentConfig), while a large number of threads are parked at the same time, each having run
+// instrumented code, and some of them in the middle of a trace
+//
+// java -cp ... org.glowroot.zipkin.VirtualThreadStress [thread count] [one in n threads traced]
+//
+// uses virtual threads on java 21 and later, and falls back to (far fewer) platform threads on
+// older jdks, which is why this is not run as part of the tests
+public class VirtualThreadStress {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("stress", false);
+
+    private static final String[] STORAGES = {"none", "threadLocal", "compact"};
+
+    public static void main(String[] args) throws Exception {
+        ThreadFactory virtualThreadFactory = getVirtualThreadFactory();
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0])
+                : virtualThreadFactory == null ? 10000 : 1000000;
+        int tracedEvery = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        System.out.format(Locale.ENGLISH, "%,d %s threads, one in %d traced%n", threadCount,
+                virtualThreadFactory == null ? "platform" : "virtual", tracedEvery);
+        long baseline = 0;
+        for (String storage : STORAGES) {
+            long heapUsed = run(storage, threadCount, tracedEvery, virtualThreadFactory);
+            if (storage.equals("none")) {
+                // the threads themselves
+                baseline = heapUsed;
+            } else {
+                System.out.format(Locale.ENGLISH, "%-12s %,8.1f bytes retained per thread%n",
+                        storage, (heapUsed - baseline) / (double) threadCount);
+            }
+        }
+    }
+
+    // returns the heap used while all of the threads are parked
+    private static long run(final String storage, int threadCount, final int tracedEvery,
+            @Nullable ThreadFactory virtualThreadFactory) throws Exception {
+        Global.setThreadContextThreadLocal(storage.equals("compact")
+                ? new CompactThreadContextThreadLocal() : new ThreadContextThreadLocal());
+        Span incomingSpan = new AgentImpl().startIncomingSpan("Stress", "stress",
+                MessageSupplier.create("stress"), TIMER_NAME, Global.getThreadContextHolder(),
+                0, 0);
+        final AuxThreadContext auxThreadContext =
+                Global.getThreadContextHolder().get().createAuxThreadContext();
+        final CountDownLatch parked = new CountDownLatch(threadCount);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            final boolean traced = i % tracedEvery == 0;
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    Span auxSpan = null;
+                    if (!storage.equals("none")) {
+                        // what the woven code does on entering any instrumented method
+                        Global.getThreadContextHolder().get();
+                        if (traced) {
+                            auxSpan = auxThreadContext.start();
+                        }
+                    }
+                    parked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (auxSpan != null) {
+                        auxSpan.end();
+                    }
+                }
+            };
+            Thread thread = virtualThreadFactory == null ? new Thread(runnable)
+                    : virtualThreadFactory.newThread(runnable);
+            thread.start();
+            threads.add(thread);
+        }
+        parked.await();
+        long heapUsed = getHeapUsedAfterGc();
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        incomingSpan.end();
+        return heapUsed;
+    }
+
+    private static long getHeapUsedAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Thread.ofVirtual().factory(), only available on java 21 and later
+    private static @Nullable ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+                    .invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
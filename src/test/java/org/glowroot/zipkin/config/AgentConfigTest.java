@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AgentConfigTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testAgentArgs() throws Exception {
+        // when
+        AgentConfig config = AgentConfig.create(
+                "reporter=http, endpoint=http://collector:9411/api/v2/spans,queuedMaxSpans=500",
+                temporaryFolder.getRoot());
+
+        // then
+        assertThat(config.getProperty("reporter")).isEqualTo("http");
+        assertThat(config.getProperty("endpoint"))
+                .isEqualTo("http://collector:9411/api/v2/spans");
+        assertThat(config.getIntProperty("queuedMaxSpans", 10000)).isEqualTo(500);
+        assertThat(config.getIntProperty("queuedMaxBytes")).isNull();
+        assertThat(config.getLongProperty("messageTimeoutMillis", 1000)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testPropertiesFileNextToAgentJar() throws Exception {
+        // given
+        Properties properties = new Properties();
+        properties.setProperty("reporter", "http");
+        properties.setProperty("senderThreads", "4");
+        writeProperties(properties,
+                new File(temporaryFolder.getRoot(), AgentConfig.PROPERTIES_FILE_NAME));
+
+        // when
+        AgentConfig config = AgentConfig.create("senderThreads=2", temporaryFolder.getRoot());
+
+        // then
+        assertThat(config.getProperty("reporter")).isEqualTo("http");
+        // agent args take precedence over the properties file
+        assertThat(config.getIntProperty("senderThreads", 1)).isEqualTo(2);
+    }
+
+    @Test
+    public void testPropertiesFileFromAgentArg() throws Exception {
+        // given
+        Properties properties = new Properties();
+        properties.setProperty("encoding", "PROTO3");
+        File file = temporaryFolder.newFile("custom.properties");
+        writeProperties(properties, file);
+
+        // when
+        AgentConfig config = AgentConfig.create("config=" + file.getAbsolutePath(), null);
+
+        // then
+        assertThat(config.getProperty("encoding", "JSON")).isEqualTo("PROTO3");
+    }
+
+    @Test
+    public void testPropertyNames() throws Exception {
+        // when
+        AgentConfig config = AgentConfig.create("instrumentation.jdbc=false,"
+                + "instrumentation.servlet=true,instrumentationDefault=true", null);
+
+        // then
+        assertThat(config.getPropertyNames("instrumentation.")).containsExactly("jdbc", "servlet");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidValue() throws Exception {
+        AgentConfig.create("queuedMaxSpans=lots", null).getIntProperty("queuedMaxSpans", 10000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAgentArg() throws Exception {
+        AgentConfig.create("reporter", null);
+    }
+
+    private static void writeProperties(Properties properties, File file) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
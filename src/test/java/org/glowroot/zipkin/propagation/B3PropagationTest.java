@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.propagation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class B3PropagationTest {
+
+    private static final Getter<Map<String, String>> GETTER = new Getter<Map<String, String>>() {
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+            return carrier.get(key);
+        }
+    };
+
+    private static final Setter<Map<String, String>> SETTER = new Setter<Map<String, String>>() {
+        @Override
+        public void put(Map<String, String> carrier, String key, String value) {
+            carrier.put(key, value);
+        }
+    };
+
+    @Test
+    public void testExtractSingleHeader() {
+        // when
+        B3Context context = B3Propagation.parseSingleHeader(
+                "80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1-1-05e3ac9a4f6e3b90");
+
+        // then
+        assertThat(context.getTraceIdHigh()).isEqualTo(0x80f198ee56343ba8L);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+        assertThat(context.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_SAMPLED);
+    }
+
+    @Test
+    public void testExtractSingleHeaderWithoutSampled() {
+        // when
+        B3Context context = B3Propagation.parseSingleHeader("64fe8b2a57d3eff7-e457b5a2e4d86bd1");
+
+        // then
+        assertThat(context.getTraceIdHigh()).isEqualTo(0);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+        assertThat(context.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_DEFERRED);
+    }
+
+    @Test
+    public void testExtractSingleHeaderSamplingOnly() {
+        assertThat(B3Propagation.parseSingleHeader("0").getSampling())
+                .isEqualTo(B3Context.SAMPLING_NOT_SAMPLED);
+        assertThat(B3Propagation.parseSingleHeader("0").getTraceId()).isEqualTo(0);
+        assertThat(B3Propagation.parseSingleHeader("d").getSampling())
+                .isEqualTo(B3Context.SAMPLING_SAMPLED);
+    }
+
+    @Test
+    public void testExtractInvalidSingleHeader() {
+        assertThat(B3Propagation.parseSingleHeader("")).isNull();
+        assertThat(B3Propagation.parseSingleHeader("64fe8b2a57d3eff7")).isNull();
+        assertThat(B3Propagation.parseSingleHeader("64fe8b2a57d3eff7-e457b5a2")).isNull();
+        assertThat(B3Propagation.parseSingleHeader("64FE8B2A57D3EFF7-e457b5a2e4d86bd1")).isNull();
+        assertThat(B3Propagation.parseSingleHeader("64fe8b2a57d3eff7-e457b5a2e4d86bd1-")).isNull();
+        assertThat(B3Propagation.parseSingleHeader("64fe8b2a57d3eff7-e457b5a2e4d86bd1x1"))
+                .isNull();
+        assertThat(B3Propagation.parseSingleHeader("0000000000000000-e457b5a2e4d86bd1")).isNull();
+        assertThat(B3Propagation.parseSingleHeader(
+                "80f198ee5634zba864fe8b2a57d3eff7-e457b5a2e4d86bd1")).isNull();
+    }
+
+    @Test
+    public void testExtractSingleHeaderZeroTraceIdHigh() {
+        // when
+        B3Context context = B3Propagation.parseSingleHeader(
+                "000000000000000064fe8b2a57d3eff7-e457b5a2e4d86bd1-1");
+
+        // then
+        assertThat(context.getTraceIdHigh()).isEqualTo(0);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+    }
+
+    @Test
+    public void testExtractMultiHeader() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-B3-TraceId", "80f198ee56343ba864fe8b2a57d3eff7");
+        headers.put("X-B3-SpanId", "e457b5a2e4d86bd1");
+        headers.put("X-B3-ParentSpanId", "05e3ac9a4f6e3b90");
+        headers.put("X-B3-Sampled", "0");
+
+        // when
+        B3Context context = B3Propagation.extract(GETTER, headers);
+
+        // then
+        assertThat(context.getTraceIdHigh()).isEqualTo(0x80f198ee56343ba8L);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+        assertThat(context.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_NOT_SAMPLED);
+    }
+
+    @Test
+    public void testExtractMultiHeaderInvalidTraceIdHigh() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-B3-TraceId", "80f198ee5634zba864fe8b2a57d3eff7");
+        headers.put("X-B3-SpanId", "e457b5a2e4d86bd1");
+
+        // when
+        B3Context context = B3Propagation.extract(GETTER, headers);
+
+        // then
+        assertThat(context).isNull();
+    }
+
+    @Test
+    public void testExtractMultiHeaderWithoutSpanId() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-B3-TraceId", "64fe8b2a57d3eff7");
+        headers.put("X-B3-Sampled", "0");
+
+        // when
+        B3Context context = B3Propagation.extract(GETTER, headers);
+
+        // then
+        assertThat(context.getTraceId()).isEqualTo(0);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_NOT_SAMPLED);
+    }
+
+    @Test
+    public void testExtractMultiHeaderDebug() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-B3-Flags", "1");
+
+        // when
+        B3Context context = B3Propagation.extract(GETTER, headers);
+
+        // then
+        assertThat(context.getTraceId()).isEqualTo(0);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_SAMPLED);
+    }
+
+    @Test
+    public void testExtractNothing() {
+        assertThat(B3Propagation.extract(GETTER, new HashMap<String, String>())).isNull();
+    }
+
+    @Test
+    public void testInjectSingleHeaderRoundTrip() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+
+        // when
+        B3Propagation.SINGLE_HEADER.inject(0x80f198ee56343ba8L, 0x64fe8b2a57d3eff7L,
+                0x05e3ac9a4f6e3b90L, 0xe457b5a2e4d86bd1L, SETTER, headers);
+
+        // then
+        assertThat(headers).hasSize(1);
+        assertThat(headers.get("b3"))
+                .isEqualTo("80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1-1-05e3ac9a4f6e3b90");
+        B3Context context = B3Propagation.extract(GETTER, headers);
+        assertThat(context.getTraceIdHigh()).isEqualTo(0x80f198ee56343ba8L);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+        assertThat(context.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+    }
+
+    @Test
+    public void testInjectMultiHeaderRoundTrip() {
+        // given
+        Map<String, String> headers = new HashMap<String, String>();
+
+        // when
+        B3Propagation.MULTI_HEADER.inject(0, 0x64fe8b2a57d3eff7L, 0, 0xe457b5a2e4d86bd1L, SETTER,
+                headers);
+
+        // then
+        assertThat(headers).hasSize(3);
+        assertThat(headers.get("X-B3-TraceId")).isEqualTo("64fe8b2a57d3eff7");
+        assertThat(headers.get("X-B3-SpanId")).isEqualTo("e457b5a2e4d86bd1");
+        assertThat(headers.get("X-B3-Sampled")).isEqualTo("1");
+        B3Context context = B3Propagation.extract(GETTER, headers);
+        assertThat(context.getTraceId()).isEqualTo(0x64fe8b2a57d3eff7L);
+        assertThat(context.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+        assertThat(context.getSampling()).isEqualTo(B3Context.SAMPLING_SAMPLED);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class LazyReporterTest {
+
+    @Test
+    public void testCreatedOnFirstSpan() {
+        // given
+        TestLazyReporter reporter = new TestLazyReporter(new AgentMetrics(), 0, 0);
+
+        // when
+        reporter.report(new byte[] {1});
+        reporter.report(new byte[] {2});
+
+        // then
+        assertThat(reporter.attempts).isEqualTo(1);
+        assertThat(reporter.reported).hasSize(2);
+    }
+
+    @Test
+    public void testRetriedAfterFailure() {
+        // given
+        AgentMetrics metrics = new AgentMetrics();
+        TestLazyReporter reporter = new TestLazyReporter(metrics, 2, 0);
+
+        // when
+        reporter.report(new byte[] {1});
+        reporter.report(new byte[] {2});
+        reporter.report(new byte[] {3});
+
+        // then
+        assertThat(reporter.attempts).isEqualTo(3);
+        assertThat(reporter.reported).hasSize(1);
+        assertThat(metrics.getSpansDroppedReporter()).isEqualTo(2);
+    }
+
+    @Test
+    public void testNotRetriedBeforeRetryInterval() {
+        // given
+        AgentMetrics metrics = new AgentMetrics();
+        TestLazyReporter reporter = new TestLazyReporter(metrics, 1, 60000);
+
+        // when
+        reporter.report(new byte[] {1});
+        reporter.report(new byte[] {2});
+
+        // then
+        assertThat(reporter.attempts).isEqualTo(1);
+        assertThat(reporter.reported).isEmpty();
+        assertThat(metrics.getSpansDroppedReporter()).isEqualTo(2);
+    }
+
+    @Test
+    public void testReporterThreadCpuTime() throws Exception {
+        // given
+        assumeTrue(ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported());
+        AgentMetrics metrics = new AgentMetrics();
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        LazyReporter reporter = new LazyReporter(metrics, 0) {
+            @Override
+            protected Reporter<byte[]> create() throws Exception {
+                // e.g. an AsyncReporter flush thread
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        burnCpu(50);
+                        busy.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "AsyncReporter{test}");
+                thread.setDaemon(true);
+                thread.start();
+                return new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {}
+                };
+            }
+        };
+
+        // when
+        reporter.report(new byte[] {1});
+        busy.await();
+
+        // then
+        assertThat(metrics.getReporterThreadCpuTimeMillis()).isGreaterThanOrEqualTo(50);
+        release.countDown();
+    }
+
+    private static void burnCpu(long millis) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long end = threadBean.getCurrentThreadCpuTime() + MILLISECONDS.toNanos(millis);
+        while (threadBean.getCurrentThreadCpuTime() < end) {
+            // busy
+        }
+    }
+
+    private static class TestLazyReporter extends LazyReporter {
+
+        private final int failures;
+        private final List<byte[]> reported = new ArrayList<byte[]>();
+        private int attempts;
+
+        private TestLazyReporter(AgentMetrics metrics, int failures, long retryIntervalMillis) {
+            super(metrics, retryIntervalMillis);
+            this.failures = failures;
+        }
+
+        @Override
+        protected Reporter<byte[]> create() {
+            if (attempts++ < failures) {
+                throw new IllegalStateException("unable to create native thread");
+            }
+            return new Reporter<byte[]>() {
+                @Override
+                public void report(byte[] encodedSpan) {
+                    reported.add(encodedSpan);
+                }
+            };
+        }
+    }
+}
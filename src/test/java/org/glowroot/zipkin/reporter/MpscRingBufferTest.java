@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacityRoundedUpToPowerOfTwo() {
+        assertThat(new MpscRingBuffer<Object>(1).capacity()).isEqualTo(2);
+        assertThat(new MpscRingBuffer<Object>(8).capacity()).isEqualTo(8);
+        assertThat(new MpscRingBuffer<Object>(10000).capacity()).isEqualTo(16384);
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        // given
+        MpscRingBuffer<String> ringBuffer = new MpscRingBuffer<String>(4);
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            assertThat(ringBuffer.offer("x" + i)).isTrue();
+        }
+
+        // then
+        assertThat(ringBuffer.offer("y")).isFalse();
+        assertThat(ringBuffer.size()).isEqualTo(4);
+        assertThat(ringBuffer.poll()).isEqualTo("x0");
+        assertThat(ringBuffer.offer("y")).isTrue();
+        assertThat(ringBuffer.poll()).isEqualTo("x1");
+        assertThat(ringBuffer.poll()).isEqualTo("x2");
+        assertThat(ringBuffer.poll()).isEqualTo("x3");
+        assertThat(ringBuffer.poll()).isEqualTo("y");
+        assertThat(ringBuffer.poll()).isNull();
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        // given
+        final MpscRingBuffer<long[]> ringBuffer = new MpscRingBuffer<long[]>(64);
+        final int producers = 8;
+        final int perProducer = 100000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        // when
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < perProducer; j++) {
+                        while (!ringBuffer.offer(new long[] {producer, j})) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] element = ringBuffer.poll();
+            if (element == null) {
+                continue;
+            }
+            // elements from each producer are received in order
+            assertThat(element[1]).isEqualTo(next[(int) element[0]]);
+            next[(int) element[0]]++;
+            received++;
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // then
+        assertThat(ringBuffer.poll()).isNull();
+        for (int i = 0; i < producers; i++) {
+            assertThat(next[i]).isEqualTo(perProducer);
+        }
+    }
+}
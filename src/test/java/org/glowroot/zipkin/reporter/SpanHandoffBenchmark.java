@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// contention between application threads handing off ended spans, measured as the average time
+// of a single offer (including offers that are dropped because the queue is full)
+//
+// ringBuffer is MpscRingBuffer (used by SpanHandoff), arrayBlockingQueue is the previous
+// (lock-guarded) queue, in both cases a single consumer thread drains continuously
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpanHandoffBenchmark {
+
+    private static final Object SPAN = new Object();
+
+    @Param({"ringBuffer", "arrayBlockingQueue"})
+    public String queue;
+
+    private Handoff handoff;
+    private Thread consumer;
+    private volatile boolean closed;
+
+    @Setup
+    public void setup() {
+        if (queue.equals("ringBuffer")) {
+            final MpscRingBuffer<Object> ringBuffer = new MpscRingBuffer<Object>(16384);
+            handoff = new Handoff() {
+                @Override
+                public boolean offer(Object span) {
+                    return ringBuffer.offer(span);
+                }
+
+                @Override
+                public boolean poll() {
+                    return ringBuffer.poll() != null;
+                }
+            };
+        } else {
+            final ArrayBlockingQueue<Object> blockingQueue =
+                    new ArrayBlockingQueue<Object>(16384);
+            handoff = new Handoff() {
+                @Override
+                public boolean offer(Object span) {
+                    return blockingQueue.offer(span);
+                }
+
+                @Override
+                public boolean poll() {
+                    return blockingQueue.poll() != null;
+                }
+            };
+        }
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    handoff.poll();
+                }
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        closed = true;
+        consumer.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean offer_1() {
+        return handoff.offer(SPAN);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean offer_8() {
+        return handoff.offer(SPAN);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean offer_64() {
+        return handoff.offer(SPAN);
+    }
+
+    private interface Handoff {
+        boolean offer(Object span);
+
+        boolean poll();
+    }
+}
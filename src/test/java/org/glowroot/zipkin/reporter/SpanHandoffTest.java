@@ -0,0 +1,324 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanHandoffTest {
+
+    @Test
+    public void testSpansMaterializedOnHandoffThread() {
+        // given
+        final List<String> threadNames = new CopyOnWriteArrayList<String>();
+        final List<byte[]> encodedSpans = new CopyOnWriteArrayList<byte[]>();
+        SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        encodedSpans.add(encodedSpan);
+                    }
+                }, 100, 8, WaitStrategy.SLEEP, new AgentMetrics());
+
+        // when
+        for (int i = 1; i <= 10; i++) {
+            spanHandoff.offer(new TestSpan(i, threadNames));
+        }
+        spanHandoff.close();
+
+        // then
+        assertThat(encodedSpans).hasSize(10);
+        assertThat(SpanBytesDecoder.JSON_V2.decodeOne(encodedSpans.get(0)).name())
+                .isEqualTo("span");
+        assertThat(threadNames).containsOnly("Zipkin-Agent-Span-Handoff");
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        // given
+        final CountDownLatch reporting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reported = new AtomicInteger();
+        AgentMetrics metrics = new AgentMetrics();
+        SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        reporting.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        reported.incrementAndGet();
+                    }
+                }, 2, 1, WaitStrategy.SLEEP, metrics);
+        List<String> threadNames = new CopyOnWriteArrayList<String>();
+        // blocks the handoff thread in the reporter
+        spanHandoff.offer(new TestSpan(1, threadNames));
+        reporting.await();
+
+        // when
+        for (int i = 2; i <= 5; i++) {
+            spanHandoff.offer(new TestSpan(i, threadNames));
+        }
+        release.countDown();
+        spanHandoff.close();
+
+        // then
+        assertThat(metrics.getSpansDroppedQueueFull()).isEqualTo(2);
+        assertThat(reported.get()).isEqualTo(3);
+        // dropped spans are never materialized
+        assertThat(threadNames).hasSize(3);
+    }
+
+    @Test
+    public void testBatchHandedOffWhenFullOrFlushed() throws Exception {
+        // given
+        final List<byte[]> encodedSpans = new CopyOnWriteArrayList<byte[]>();
+        SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        encodedSpans.add(encodedSpan);
+                    }
+                }, 100, 4, WaitStrategy.SLEEP, new AgentMetrics());
+        List<String> threadNames = new CopyOnWriteArrayList<String>();
+
+        // when
+        for (int i = 1; i <= 5; i++) {
+            spanHandoff.offer(new TestSpan(i, threadNames));
+        }
+
+        // then
+        awaitSize(encodedSpans, 4);
+        assertThat(encodedSpans).hasSize(4);
+
+        // and when
+        spanHandoff.flush();
+
+        // then
+        awaitSize(encodedSpans, 5);
+        assertThat(encodedSpans).hasSize(5);
+        spanHandoff.close();
+    }
+
+    @Test
+    public void testIdleThreadBatchSwept() throws Exception {
+        // given
+        final CountDownLatch reported = new CountDownLatch(1);
+        final SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        reported.countDown();
+                    }
+                }, 100, 8, WaitStrategy.SLEEP, new AgentMetrics());
+
+        // when
+        // e.g. a thread that ends an async span and then goes idle, without ever flushing
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                spanHandoff.offer(new TestSpan(1, new CopyOnWriteArrayList<String>()));
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // then
+        assertThat(reported.await(5, SECONDS)).isTrue();
+        spanHandoff.close();
+    }
+
+    @Test
+    public void testThreadsAddingAfterSweep() throws Exception {
+        // given
+        final List<String> spanIds = new CopyOnWriteArrayList<String>();
+        final CountDownLatch swept = new CountDownLatch(12);
+        final SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        spanIds.add(SpanBytesDecoder.JSON_V2.decodeOne(encodedSpan).id());
+                        swept.countDown();
+                    }
+                }, 100, 8, WaitStrategy.SLEEP, new AgentMetrics());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int offset = i * 6;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<String> threadNames = new CopyOnWriteArrayList<String>();
+                    for (int j = 1; j <= 3; j++) {
+                        spanHandoff.offer(new TestSpan(offset + j, threadNames));
+                    }
+                    try {
+                        swept.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    // adds to the batches that the handoff thread has retired
+                    for (int j = 4; j <= 6; j++) {
+                        spanHandoff.offer(new TestSpan(offset + j, threadNames));
+                    }
+                }
+            }));
+        }
+
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        spanHandoff.close();
+
+        // then
+        assertThat(spanIds).hasSize(24);
+        assertThat(new HashSet<String>(spanIds)).hasSize(24);
+    }
+
+    @Test
+    public void testFailingSpanDoesNotStopHandoff() {
+        // given
+        final AtomicInteger reported = new AtomicInteger();
+        AgentMetrics metrics = new AgentMetrics();
+        SpanHandoff spanHandoff =
+                new SpanHandoff(SpanRecordEncoder.JSON_V2, new Reporter<byte[]>() {
+                    @Override
+                    public void report(byte[] encodedSpan) {
+                        reported.incrementAndGet();
+                    }
+                }, 100, 8, WaitStrategy.SLEEP, metrics);
+
+        // when
+        spanHandoff.offer(new PendingSpan() {
+            @Override
+            public void writeTo(SpanRecord record) {
+                throw new IllegalStateException("message supplier failed");
+            }
+        });
+        spanHandoff.offer(new TestSpan(1, new CopyOnWriteArrayList<String>()));
+        spanHandoff.close();
+
+        // then
+        assertThat(reported.get()).isEqualTo(1);
+        assertThat(metrics.getSpansDroppedEncodingError()).isEqualTo(1);
+        assertThat(metrics.getBytesEncoded()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testSpansSpreadAcrossStripes() {
+        // given
+        List<RecordingSender> senders = new ArrayList<RecordingSender>();
+        List<AsyncReporter<byte[]>> reporters = new ArrayList<AsyncReporter<byte[]>>();
+        for (int i = 0; i < 3; i++) {
+            RecordingSender sender = new RecordingSender();
+            senders.add(sender);
+            reporters.add(AsyncReporter.builder(sender)
+                    .messageTimeout(0, MILLISECONDS)
+                    .build(new EncodedSpanEncoder(Encoding.JSON)));
+        }
+        StripedReporter<byte[]> stripedReporter = new StripedReporter<byte[]>(reporters);
+        SpanHandoff spanHandoff = new SpanHandoff(SpanRecordEncoder.JSON_V2, stripedReporter,
+                100, 8, WaitStrategy.SLEEP, new AgentMetrics());
+
+        // when
+        for (int i = 1; i <= 9; i++) {
+            spanHandoff.offer(new TestSpan(i, new CopyOnWriteArrayList<String>()));
+        }
+        spanHandoff.close();
+        stripedReporter.flush();
+
+        // then
+        // all spans are reported from the handoff thread, which must not pin them to one stripe
+        for (RecordingSender sender : senders) {
+            assertThat(sender.encodedSpans).hasSize(3);
+        }
+        stripedReporter.close();
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (list.size() < size && System.nanoTime() < deadline) {
+            MILLISECONDS.sleep(1);
+        }
+    }
+
+    private static class TestSpan implements PendingSpan {
+
+        private final long id;
+        private final List<String> threadNames;
+
+        private TestSpan(long id, List<String> threadNames) {
+            this.id = id;
+            this.threadNames = threadNames;
+        }
+
+        @Override
+        public void writeTo(SpanRecord record) {
+            threadNames.add(Thread.currentThread().getName());
+            record.ids(0, 1, 0, id).name("span").duration(1);
+        }
+    }
+
+    private static class RecordingSender extends Sender {
+
+        private final List<byte[]> encodedSpans = new CopyOnWriteArrayList<byte[]>();
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return 1024 * 1024;
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return Encoding.JSON.listSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            this.encodedSpans.addAll(encodedSpans);
+            return Call.create(null);
+        }
+    }
+}
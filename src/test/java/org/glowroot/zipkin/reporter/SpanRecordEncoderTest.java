@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanRecordEncoderTest {
+
+    private final SpanRecord record = SpanRecord.acquire();
+
+    @After
+    public void afterEach() {
+        record.release();
+    }
+
+    @Test
+    public void testJson() {
+        // given
+        populate(record);
+
+        // when
+        byte[] encodedSpan = SpanRecordEncoder.JSON_V2.encode(record);
+
+        // then
+        // not compared byte for byte with SpanBytesEncoder.JSON_V2, since it pads the output when
+        // its size estimate for escaped strings is too high
+        assertThat(SpanBytesDecoder.JSON_V2.decodeOne(encodedSpan)).isEqualTo(expectedSpan());
+    }
+
+    @Test
+    public void testProto3SameAsZipkin() {
+        // given
+        populate(record);
+
+        // when
+        byte[] encodedSpan = SpanRecordEncoder.PROTO3.encode(record);
+
+        // then
+        assertThat(encodedSpan).isEqualTo(SpanBytesEncoder.PROTO3.encode(expectedSpan()));
+    }
+
+    @Test
+    public void testProto3LargeSpan() {
+        // given
+        // large enough that the length prefix needs more than one byte
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("select 1 union all ");
+        }
+        record.ids(0, 1, 0, 2).name(sb.toString()).timestamp(1).duration(1);
+
+        // when
+        byte[] encodedSpan = SpanRecordEncoder.PROTO3.encode(record);
+
+        // then
+        assertThat(SpanBytesDecoder.PROTO3.decodeOne(encodedSpan).name())
+                .isEqualTo(sb.toString());
+    }
+
+    @Test
+    public void testLastTagValueWins() {
+        // given
+        record.ids(0, 1, 0, 2).putTag("a", "1").putTag("b", "2").putTag("a", "3");
+
+        // when
+        Span span = SpanBytesDecoder.JSON_V2.decodeOne(SpanRecordEncoder.JSON_V2.encode(record));
+
+        // then
+        assertThat(span.tags()).hasSize(2);
+        assertThat(span.tags().get("a")).isEqualTo("3");
+    }
+
+    @Test
+    public void testTagsOutOfOrderSameAsZipkin() {
+        // given
+        record.ids(0, 1, 0, 2).timestamp(1).duration(1)
+                .putTag("type", "http").putTag("b", "2").putTag("error", "boom")
+                .putTag("a", "1").putTag("b", "3");
+        Span span = Span.newBuilder().traceId(0, 1).id(2).timestamp(1).duration(1L)
+                .putTag("type", "http").putTag("b", "2").putTag("error", "boom")
+                .putTag("a", "1").putTag("b", "3").build();
+
+        // when
+        byte[] json = SpanRecordEncoder.JSON_V2.encode(record);
+        byte[] proto3 = SpanRecordEncoder.PROTO3.encode(record);
+
+        // then
+        assertThat(json).isEqualTo(SpanBytesEncoder.JSON_V2.encode(span));
+        assertThat(proto3).isEqualTo(SpanBytesEncoder.PROTO3.encode(span));
+    }
+
+    @Test
+    public void testMixedCaseNameSameAsZipkin() {
+        // given
+        record.ids(0, 1, 0, 2).name("GET /Users/{userId}").timestamp(1).duration(1);
+        Span span = Span.newBuilder().traceId(0, 1).id(2).name("GET /Users/{userId}")
+                .timestamp(1).duration(1L).build();
+
+        // when
+        byte[] json = SpanRecordEncoder.JSON_V2.encode(record);
+        byte[] proto3 = SpanRecordEncoder.PROTO3.encode(record);
+
+        // then
+        assertThat(json).isEqualTo(SpanBytesEncoder.JSON_V2.encode(span));
+        assertThat(proto3).isEqualTo(SpanBytesEncoder.PROTO3.encode(span));
+    }
+
+    @Test
+    public void testReentrantAcquire() {
+        // when
+        SpanRecord nested = SpanRecord.acquire();
+        nested.release();
+
+        // then
+        assertThat(nested).isNotSameAs(record);
+    }
+
+    private static void populate(SpanRecord record) {
+        record.ids(0x463ac35c9f6413adL, 0x72d1107d6c6e8b3aL, 0x1f2e3d4c5b6a7988L,
+                0x0102030405060708L)
+                .name("get /caf\u00e9 \"quoted\" \\ \n\b\f\u2028 \ud83d\ude00")
+                .timestamp(1555555555555555L)
+                .duration(1234)
+                .putTag("error", "boom\t\u0001\u001f")
+                .putTag("type", "http");
+        for (int i = 0; i < 10; i++) {
+            // exercise growing the tag arrays
+            record.putTag("z" + i, "v" + i);
+        }
+    }
+
+    private static Span expectedSpan() {
+        Span.Builder builder = Span.newBuilder()
+                .traceId(0x463ac35c9f6413adL, 0x72d1107d6c6e8b3aL)
+                .parentId(0x1f2e3d4c5b6a7988L)
+                .id(0x0102030405060708L)
+                .name("get /caf\u00e9 \"quoted\" \\ \n\b\f\u2028 \ud83d\ude00")
+                .timestamp(1555555555555555L)
+                .duration(1234L)
+                .putTag("error", "boom\t\u0001\u001f")
+                .putTag("type", "http");
+        for (int i = 0; i < 10; i++) {
+            builder.putTag("z" + i, "v" + i);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanSpoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testFifo() throws Exception {
+        // given
+        SpanSpool spool = new SpanSpool(temporaryFolder.newFile(), 1024);
+
+        // when
+        assertThat(spool.offer(message("a", "b"))).isTrue();
+        assertThat(spool.offer(message("c"))).isTrue();
+
+        // then
+        assertThat(spool.size()).isEqualTo(2);
+        assertMessage(spool.peek(), "a", "b");
+        spool.remove();
+        assertMessage(spool.peek(), "c");
+        spool.remove();
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        // given
+        // each record is 8 + 4 + 10 = 22 bytes
+        SpanSpool spool = new SpanSpool(temporaryFolder.newFile(), 100);
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            assertThat(spool.offer(message("abcdefghi" + i))).isTrue();
+        }
+        // full (88 bytes used)
+        assertThat(spool.offer(message("abcdefghi4"))).isFalse();
+        spool.remove();
+        spool.remove();
+        // these wrap around to the start
+        assertThat(spool.offer(message("abcdefghi5"))).isTrue();
+        assertThat(spool.offer(message("abcdefghi6"))).isTrue();
+        assertThat(spool.offer(message("abcdefghi7"))).isFalse();
+
+        // then
+        for (int i : new int[] {2, 3, 5, 6}) {
+            assertMessage(spool.peek(), "abcdefghi" + i);
+            spool.remove();
+        }
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        // given
+        File file = temporaryFolder.newFile();
+        SpanSpool spool = new SpanSpool(file, 1024);
+        spool.offer(message("a"));
+        spool.offer(message("b"));
+        spool.remove();
+        spool.close();
+
+        // when
+        spool = new SpanSpool(file, 1024);
+
+        // then
+        assertThat(spool.size()).isEqualTo(1);
+        assertMessage(spool.peek(), "b");
+        spool.close();
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        // given
+        SpanSpool spool = new SpanSpool(temporaryFolder.newFile(), 16);
+
+        // then
+        assertThat(spool.offer(message("abcdefghi"))).isFalse();
+        spool.close();
+    }
+
+    static List<byte[]> message(String... spans) {
+        byte[][] encodedSpans = new byte[spans.length][];
+        for (int i = 0; i < spans.length; i++) {
+            encodedSpans[i] = spans[i].getBytes();
+        }
+        return Arrays.asList(encodedSpans);
+    }
+
+    private static void assertMessage(List<byte[]> encodedSpans, String... spans) {
+        assertThat(encodedSpans).hasSize(spans.length);
+        for (int i = 0; i < spans.length; i++) {
+            assertThat(new String(encodedSpans.get(i))).isEqualTo(spans[i]);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.reporter.okhttp3.OkHttpSender;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.glowroot.zipkin.reporter.SpanSpoolTest.message;
+
+// uses MockWebServer as a stand-in for the zipkin collector
+public class SpoolingSenderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer collector;
+    private AgentMetrics metrics;
+    private SpoolingSender sender;
+
+    @Before
+    public void beforeEach() throws Exception {
+        collector = new MockWebServer();
+        collector.start();
+        OkHttpSender.Builder delegate = OkHttpSender.newBuilder()
+                .endpoint(collector.url("/api/v2/spans"))
+                .compressionEnabled(false);
+        delegate.clientBuilder()
+                .addInterceptor(new SpoolingSender.TransientResponseInterceptor());
+        metrics = new AgentMetrics();
+        sender = new SpoolingSender(delegate.build(), temporaryFolder.newFile(), 1024 * 1024, 100,
+                3, metrics);
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        sender.close();
+        collector.shutdown();
+    }
+
+    @Test
+    public void testSendDirectlyWhenCollectorIsUp() throws Exception {
+        // given
+        collector.enqueue(new MockResponse().setResponseCode(202));
+
+        // when
+        sender.sendSpans(message("{\"id\":\"1\"}")).execute();
+
+        // then
+        assertThat(collector.takeRequest(5, SECONDS).getBody().readUtf8())
+                .isEqualTo("[{\"id\":\"1\"}]");
+        assertThat(sender.spooledMessageCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSpoolAndDrainInOrderWhenCollectorRecovers() throws Exception {
+        // given
+        collector.enqueue(new MockResponse().setResponseCode(503));
+        collector.enqueue(new MockResponse().setResponseCode(503));
+        for (int i = 0; i < 3; i++) {
+            collector.enqueue(new MockResponse().setResponseCode(202));
+        }
+
+        // when
+        // the first send fails and is spooled, the remaining go to the spool to preserve order
+        sender.sendSpans(message("{\"id\":\"1\"}")).execute();
+        sender.sendSpans(message("{\"id\":\"2\"}")).execute();
+        sender.sendSpans(message("{\"id\":\"3\"}", "{\"id\":\"4\"}")).execute();
+
+        // then
+        // initial attempt, then first retry from the drain thread
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"}]");
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"}]");
+        // collector recovers
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"}]");
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"2\"}]");
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"3\"},{\"id\":\"4\"}]");
+        awaitSpoolEmpty();
+        assertThat(sender.spooledMessageCount()).isEqualTo(0);
+        assertThat(metrics.getSpansDroppedSpool()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNotSpooledWhenCollectorRejects() throws Exception {
+        // given
+        collector.enqueue(new MockResponse().setResponseCode(400));
+
+        // when
+        try {
+            sender.sendSpans(message("{\"id\":\"1\"}")).execute();
+            fail("Expected the rejection to be propagated to the reporter");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // then
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"}]");
+        assertThat(sender.spooledMessageCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDropSpooledMessageWhenCollectorRejects() throws Exception {
+        // given
+        collector.enqueue(new MockResponse().setResponseCode(503));
+        collector.enqueue(new MockResponse().setResponseCode(400));
+        collector.enqueue(new MockResponse().setResponseCode(202));
+
+        // when
+        sender.sendSpans(message("{\"id\":\"1\"}", "{\"id\":\"2\"}")).execute();
+        sender.sendSpans(message("{\"id\":\"3\"}")).execute();
+
+        // then
+        // initial attempt, then the first retry is rejected and the message is dropped without
+        // blocking the message behind it
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"},{\"id\":\"2\"}]");
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"},{\"id\":\"2\"}]");
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"3\"}]");
+        awaitSpoolEmpty();
+        assertThat(sender.spooledMessageCount()).isEqualTo(0);
+        assertThat(metrics.getSpansDroppedSpool()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDropSpooledMessageAfterMaxRetries() throws Exception {
+        // given
+        for (int i = 0; i < 4; i++) {
+            collector.enqueue(new MockResponse().setResponseCode(503));
+        }
+        collector.enqueue(new MockResponse().setResponseCode(202));
+
+        // when
+        sender.sendSpans(message("{\"id\":\"1\"}")).execute();
+        sender.sendSpans(message("{\"id\":\"2\"}")).execute();
+
+        // then
+        // initial attempt, then 3 retries
+        for (int i = 0; i < 4; i++) {
+            assertThat(takeBody()).isEqualTo("[{\"id\":\"1\"}]");
+        }
+        assertThat(takeBody()).isEqualTo("[{\"id\":\"2\"}]");
+        awaitSpoolEmpty();
+        assertThat(sender.spooledMessageCount()).isEqualTo(0);
+        assertThat(metrics.getSpansDroppedSpool()).isEqualTo(1);
+    }
+
+    private void awaitSpoolEmpty() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (sender.spooledMessageCount() > 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String takeBody() throws InterruptedException, IOException {
+        RecordedRequest request = collector.takeRequest(5, SECONDS);
+        if (request == null) {
+            throw new IOException("Timed out waiting for request");
+        }
+        return request.getBody().readUtf8();
+    }
+}
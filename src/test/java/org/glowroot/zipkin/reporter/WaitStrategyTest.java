@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.reporter;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WaitStrategyTest {
+
+    @Test
+    public void testSleepBacksOffUpToMax() {
+        // given
+        int idleCount = 0;
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            idleCount = WaitStrategy.SLEEP.idle(idleCount);
+        }
+
+        // then
+        // 100 spins, 100 yields, then parks of 1us doubling up to 1us << 10
+        assertThat(idleCount).isEqualTo(210);
+        assertThat(WaitStrategy.SLEEP.idle(idleCount)).isEqualTo(210);
+    }
+
+    @Test
+    public void testSleepStartsOverAfterSpan() {
+        // the handoff thread passes 0 after each span is processed
+        assertThat(WaitStrategy.SLEEP.idle(0)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.sampler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.zipkin.metrics.AgentMetrics;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// the governor is driven by a synthetic load, which starts spans the same way the agent would
+// (consulting the governor before each trace, query span and local span), one simulated second per
+// governor update
+public class OverheadGovernorTest {
+
+    @Test
+    public void testNoThrottlingUnderBudget() {
+        // given
+        SyntheticLoad load = new SyntheticLoad(1000, 0.5);
+
+        // when
+        List<Integer> levels = load.run(100, 20);
+
+        // then
+        assertThat(levels).containsOnly(0);
+    }
+
+    @Test
+    public void testThrottleUnderLoadAndRestore() {
+        // given
+        SyntheticLoad load = new SyntheticLoad(1000, 0.5);
+        load.run(100, 10);
+
+        // when
+        List<Integer> levels = load.run(2000, 30);
+
+        // then
+        // query spans are disabled first, then local spans, then sampling is reduced
+        assertThat(levels.subList(0, 3)).containsExactly(OverheadGovernor.QUERY_SPANS_DISABLED,
+                OverheadGovernor.LOCAL_SPANS_DISABLED, OverheadGovernor.LOCAL_SPANS_DISABLED + 1);
+        assertThat(load.spansPerSecond).isLessThanOrEqualTo(1100);
+
+        // and when
+        levels = load.run(100, 60);
+
+        // then
+        assertThat(levels.get(levels.size() - 1)).isEqualTo(0);
+        assertThat(load.spansPerSecond).isEqualTo(800);
+    }
+
+    @Test
+    public void testStableUnderSustainedLoad() {
+        // given
+        SyntheticLoad load = new SyntheticLoad(1500, 0.5);
+        load.run(2000, 30);
+
+        // when
+        List<Integer> levels = load.run(2000, 30);
+
+        // then
+        // 2000 traces per second sampled at 1/2 is 1000 spans per second, under the budget but
+        // above half of it, so the governor neither throttles nor restores
+        assertThat(levels).containsOnly(OverheadGovernor.LOCAL_SPANS_DISABLED + 1);
+    }
+
+    @Test
+    public void testThrottleOnQueueFill() {
+        // given
+        AgentMetrics metrics = new AgentMetrics();
+        OverheadGovernor governor = new OverheadGovernor(metrics, 0, 0.5, 0, 1024, 1000);
+        long tick = System.nanoTime();
+
+        // when
+        metrics.forReporter(0).updateQueuedSpans(600);
+        governor.update(tick + SECONDS.toNanos(1));
+
+        // then
+        assertThat(governor.getLevel()).isEqualTo(OverheadGovernor.QUERY_SPANS_DISABLED);
+        assertThat(governor.isQuerySpansEnabled()).isFalse();
+        assertThat(governor.isLocalSpansEnabled()).isTrue();
+    }
+
+    private static class SyntheticLoad {
+
+        private static final int QUERY_SPANS_PER_TRACE = 5;
+        private static final int LOCAL_SPANS_PER_TRACE = 2;
+
+        private final AgentMetrics metrics = new AgentMetrics();
+        private final OverheadGovernor governor;
+        private final Random random = new Random(42);
+
+        private long tick = System.nanoTime();
+        private long spansPerSecond;
+
+        private SyntheticLoad(int maxSpansPerSecond, double maxQueueFill) {
+            governor = new OverheadGovernor(metrics, maxSpansPerSecond, maxQueueFill, 0, 1024,
+                    10000);
+        }
+
+        // returns the governor level after each second
+        private List<Integer> run(int tracesPerSecond, int seconds) {
+            List<Integer> levels = new ArrayList<Integer>();
+            for (int i = 0; i < seconds; i++) {
+                spansPerSecond = 0;
+                for (int j = 0; j < tracesPerSecond; j++) {
+                    startTrace();
+                }
+                tick += SECONDS.toNanos(1);
+                governor.update(tick);
+                levels.add(governor.getLevel());
+            }
+            return levels;
+        }
+
+        private void startTrace() {
+            if (!governor.isSampled(random.nextLong())) {
+                return;
+            }
+            spanStarted(AgentMetrics.INCOMING);
+            for (int i = 0; i < QUERY_SPANS_PER_TRACE; i++) {
+                if (governor.isQuerySpansEnabled()) {
+                    spanStarted(AgentMetrics.QUERY);
+                }
+            }
+            for (int i = 0; i < LOCAL_SPANS_PER_TRACE; i++) {
+                if (governor.isLocalSpansEnabled()) {
+                    spanStarted(AgentMetrics.LOCAL);
+                }
+            }
+        }
+
+        private void spanStarted(int kind) {
+            metrics.spanStarted(kind);
+            spansPerSecond++;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HexCodecTest {
+
+    @Test
+    public void testBytesRoundTrip() {
+        // given
+        long id = 0xfedcba9876543210L;
+        byte[] data = new byte[18];
+
+        // when
+        HexCodec.writeHexLong(data, 1, id);
+
+        // then
+        assertThat(new String(data, 1, 16)).isEqualTo(HexCodec.toLowerHex(id));
+        assertThat(HexCodec.lowerHexToUnsignedLong(data, 1, 17)).isEqualTo(id);
+    }
+
+    @Test
+    public void testByteBufferRoundTrip() {
+        // given
+        long id = 0x463ac35c9f6413adL;
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.put((byte) ' ');
+
+        // when
+        HexCodec.writeHexLong(buffer, id);
+
+        // then
+        assertThat(buffer.position()).isEqualTo(17);
+        assertThat(HexCodec.lowerHexToUnsignedLong(buffer, 1, 17)).isEqualTo(id);
+    }
+
+    @Test
+    public void testShortHex() {
+        assertThat(HexCodec.lowerHexToUnsignedLong("ff", 0, 2)).isEqualTo(255);
+        assertThat(HexCodec.lowerHexToUnsignedLong("ff".getBytes(), 0, 2)).isEqualTo(255);
+    }
+
+    @Test
+    public void testInvalidHex() {
+        assertThat(HexCodec.lowerHexToUnsignedLong("", 0, 0)).isEqualTo(0);
+        assertThat(HexCodec.lowerHexToUnsignedLong("00000000000000001", 0, 17)).isEqualTo(0);
+        assertThat(HexCodec.lowerHexToUnsignedLong("FF", 0, 2)).isEqualTo(0);
+        assertThat(HexCodec.lowerHexToUnsignedLong("0g", 0, 2)).isEqualTo(0);
+        assertThat(HexCodec.lowerHexToUnsignedLong(new byte[] {'0', (byte) 0xe9}, 0, 2))
+                .isEqualTo(0);
+        assertThat(HexCodec.lowerHexToUnsignedLong("\u00e9", 0, 1)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// throughput should scale linearly with thread count for the threadLocal and striped generators,
+// while sharedRandom (the previous implementation) flattens out or degrades as threads are added
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdGeneratorBenchmark {
+
+    private final Random sharedRandom = new Random();
+    private final IdGenerator threadLocal = new ThreadLocalIdGenerator(false);
+    private final IdGenerator striped = new StripedIdGenerator(false);
+
+    @Benchmark
+    @Threads(1)
+    public long sharedRandom_1() {
+        return sharedRandom.nextLong();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long sharedRandom_8() {
+        return sharedRandom.nextLong();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long sharedRandom_max() {
+        return sharedRandom.nextLong();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threadLocal_1() {
+        return threadLocal.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threadLocal_8() {
+        return threadLocal.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long threadLocal_max() {
+        return threadLocal.nextId();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long striped_1() {
+        return striped.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long striped_8() {
+        return striped.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long striped_max() {
+        return striped.nextId();
+    }
+}
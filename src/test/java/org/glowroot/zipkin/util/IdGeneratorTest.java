@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static java.util.Collections.newSetFromMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void testUniqueIdsWithThreadLocal() throws Exception {
+        assertUniqueIdsAcrossThreads(new ThreadLocalIdGenerator(false));
+    }
+
+    @Test
+    public void testUniqueIdsWithStriped() throws Exception {
+        assertUniqueIdsAcrossThreads(new StripedIdGenerator(false));
+    }
+
+    @Test
+    public void testUniqueIdsWithSingleStripe() throws Exception {
+        assertUniqueIdsAcrossThreads(new StripedIdGenerator(false, 1));
+    }
+
+    @Test
+    public void testTraceIdHighWith64Bit() {
+        assertThat(new ThreadLocalIdGenerator(false).nextTraceIdHigh()).isEqualTo(0);
+        assertThat(new StripedIdGenerator(false).nextTraceIdHigh()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTraceIdHighWith128Bit() {
+        long before = System.currentTimeMillis() / 1000;
+        long traceIdHigh = IdGenerator.create("threadLocal", true).nextTraceIdHigh();
+        long after = System.currentTimeMillis() / 1000;
+        assertThat(traceIdHigh >>> 32).isGreaterThanOrEqualTo(before).isLessThanOrEqualTo(after);
+    }
+
+    private static void assertUniqueIdsAcrossThreads(final IdGenerator idGenerator)
+            throws Exception {
+        final Set<Long> ids = newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 10000; j++) {
+                        long id = idGenerator.nextId();
+                        assertThat(id).isNotEqualTo(0);
+                        ids.add(id);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertThat(ids).hasSize(80000);
+    }
+}
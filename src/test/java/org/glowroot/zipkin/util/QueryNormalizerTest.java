@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryNormalizerTest {
+
+    @Test
+    public void testStringAndNumericLiterals() {
+        assertThat(QueryNormalizer.normalize(
+                "select * from t where name = 'o''brien' and x > 10.5 and y = -3e+2"))
+                        .isEqualTo("select * from t where name = ? and x > ? and y = -?");
+        assertThat(QueryNormalizer.normalize("update t set flags = 0xFF where id = $1"))
+                .isEqualTo("update t set flags = ? where id = ?");
+    }
+
+    @Test
+    public void testIdentifiersAreKept() {
+        assertThat(QueryNormalizer.normalize("select t1.col2 from \"Table 3\" t1 where t1.a = ?"))
+                .isEqualTo("select t1.col2 from \"Table 3\" t1 where t1.a = ?");
+    }
+
+    @Test
+    public void testInListsAreCollapsed() {
+        assertThat(QueryNormalizer.normalize("select * from t where id in (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?)");
+        assertThat(QueryNormalizer.normalize("select * from t where id IN(?,?) and x = 1"))
+                .isEqualTo("select * from t where id IN (?) and x = ?");
+        // subqueries are not collapsed
+        assertThat(QueryNormalizer.normalize("select * from t where id in (select id from u)"))
+                .isEqualTo("select * from t where id in (select id from u)");
+    }
+
+    @Test
+    public void testCommentsAndWhitespace() {
+        assertThat(QueryNormalizer.normalize(
+                "/* request 1234 */ select a,\n\t b -- trailing 5\n  from t  "))
+                        .isEqualTo("select a, b from t");
+    }
+
+    @Test
+    public void testJsonValues() {
+        assertThat(QueryNormalizer.normalize("{\"name\": \"bob\", \"age\": {\"$gt\": 21}}"))
+                .isEqualTo("{\"name\": ?, \"age\": {\"$gt\": ?}}");
+    }
+
+    @Test
+    public void testCachedName() {
+        // given
+        QueryNormalizer queryNormalizer = new QueryNormalizer(100, 100);
+
+        // when
+        String name = queryNormalizer.getName("select 1");
+
+        // then
+        assertThat(name).isEqualTo("select ?");
+        assertThat(queryNormalizer.getName("select 1")).isSameAs(name);
+    }
+
+    @Test
+    public void testMaxNames() {
+        // given
+        QueryNormalizer queryNormalizer = new QueryNormalizer(100, 2);
+
+        // when
+        queryNormalizer.getName("select a from t where x = 1");
+        queryNormalizer.getName("select b from t where x = 1");
+        String overflowName = queryNormalizer.getName("select c from t where x = 1");
+
+        // then
+        assertThat(overflowName).isEqualTo(QueryNormalizer.OVERFLOW_NAME);
+        // names that were already seen are still reported, even with different literals
+        assertThat(queryNormalizer.getName("select a from t where x = 2"))
+                .isEqualTo("select a from t where x = ?");
+    }
+
+    @Test
+    public void testCacheEviction() {
+        // given
+        ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(16);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, Integer.toString(i));
+        }
+
+        // then
+        assertThat(cache.size()).isEqualTo(16);
+        assertThat(cache.get(999)).isEqualTo("999");
+        assertThat(cache.get(0)).isNull();
+    }
+}
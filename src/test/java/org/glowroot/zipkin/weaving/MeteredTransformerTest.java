@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MeteredTransformerTest {
+
+    private static final String JDBC_ADVICE =
+            "org/glowroot/xyzzy/instrumentation/jdbc/StatementAspect";
+    private static final String SERVLET_ADVICE =
+            "org/glowroot/xyzzy/instrumentation/servlet/ServletAspect";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWeavingCost() throws Exception {
+        // given
+        WeavingCost weavingCost = new WeavingCost();
+        MeteredTransformer transformer = new MeteredTransformer(
+                new TestTransformer(TestClassFiles.referencing(JDBC_ADVICE, SERVLET_ADVICE)),
+                new InstrumentationModules(true, Collections.<String, Boolean>emptyMap()),
+                weavingCost, null);
+        byte[] classBytes = TestClassFiles.referencing("java/lang/Object");
+
+        // when
+        byte[] transformed = transformer.transform(null, "Woven", null, null, classBytes);
+        transformer.transform(null, "NotWoven", null, null, classBytes);
+
+        // then
+        assertThat(transformed).isNotNull();
+        assertThat(weavingCost.getClassesInspected()).isEqualTo(2);
+        assertThat(weavingCost.getClassesWovenByModule()).containsEntry("jdbc", 1L)
+                .containsEntry("servlet", 1L).hasSize(2);
+        assertThat(weavingCost.getClassesSkippedByModule()).containsEntry("jdbc", 0L)
+                .containsEntry("servlet", 0L);
+        assertThat(weavingCost.getReport()).contains("jdbc").contains("servlet");
+    }
+
+    @Test
+    public void testDisabledModule() throws Exception {
+        // given
+        WeavingCost weavingCost = new WeavingCost();
+        MeteredTransformer transformer = new MeteredTransformer(
+                new TestTransformer(TestClassFiles.referencing(JDBC_ADVICE, SERVLET_ADVICE)),
+                new InstrumentationModules(true, Collections.singletonMap("jdbc", false)),
+                weavingCost, null);
+
+        // when
+        byte[] transformed = transformer.transform(null, "Woven", null, null,
+                TestClassFiles.referencing("java/lang/Object"));
+
+        // then
+        assertThat(transformed).isNull();
+        Map<String, Long> classesSkipped = weavingCost.getClassesSkippedByModule();
+        assertThat(classesSkipped).containsEntry("jdbc", 1L).containsEntry("servlet", 0L);
+        // the enabled servlet module's instrumentation is lost along with the jdbc module's
+        Map<String, Long> classesLost = weavingCost.getClassesLostByModule();
+        assertThat(classesLost).containsEntry("servlet", 1L).containsEntry("jdbc", 0L);
+        assertThat(weavingCost.getReport()).contains("classes lost");
+    }
+
+    @Test
+    public void testDisabledModuleOnly() throws Exception {
+        // given
+        WeavingCost weavingCost = new WeavingCost();
+        MeteredTransformer transformer = new MeteredTransformer(
+                new TestTransformer(TestClassFiles.referencing(JDBC_ADVICE)),
+                new InstrumentationModules(true, Collections.singletonMap("jdbc", false)),
+                weavingCost, null);
+
+        // when
+        byte[] transformed = transformer.transform(null, "Woven", null, null,
+                TestClassFiles.referencing("java/lang/Object"));
+
+        // then
+        assertThat(transformed).isNull();
+        assertThat(weavingCost.getClassesSkippedByModule()).containsEntry("jdbc", 1L);
+        assertThat(weavingCost.getClassesLostByModule()).containsEntry("jdbc", 0L);
+    }
+
+    @Test
+    public void testAdviceClassNotAttributed() throws Exception {
+        // given
+        WeavingCost weavingCost = new WeavingCost();
+        MeteredTransformer transformer = new MeteredTransformer(
+                new TestTransformer(TestClassFiles.referencing(JDBC_ADVICE)),
+                new InstrumentationModules(true, Collections.singletonMap("jdbc", false)),
+                weavingCost, null);
+
+        // when
+        byte[] transformed = transformer.transform(null, JDBC_ADVICE + "$Advice", null, null,
+                TestClassFiles.referencing("java/lang/Object"));
+
+        // then
+        assertThat(transformed).isNotNull();
+        assertThat(weavingCost.getClassesInspected()).isEqualTo(1);
+        assertThat(weavingCost.getClassesWovenByModule()).isEmpty();
+    }
+
+    @Test
+    public void testNotWovenFromCache() throws Exception {
+        // given
+        byte[] classBytes = TestClassFiles.referencing("java/lang/Object");
+        TestTransformer delegate =
+                new TestTransformer(TestClassFiles.referencing(JDBC_ADVICE));
+        InstrumentationModules modules =
+                new InstrumentationModules(true, Collections.<String, Boolean>emptyMap());
+        WeavingCache weavingCache =
+                WeavingCache.open(temporaryFolder.getRoot(), "fingerprint", 1000);
+        new MeteredTransformer(delegate, modules, new WeavingCost(), weavingCache)
+                .transform(null, "NotWoven", null, null, classBytes);
+        new MeteredTransformer(delegate, modules, new WeavingCost(), weavingCache)
+                .transform(null, "Woven", null, null, classBytes);
+        weavingCache.close();
+        delegate.calls = 0;
+
+        // when
+        // next start
+        WeavingCost weavingCost = new WeavingCost();
+        MeteredTransformer transformer = new MeteredTransformer(delegate, modules, weavingCost,
+                WeavingCache.open(temporaryFolder.getRoot(), "fingerprint", 1000));
+        byte[] notWoven = transformer.transform(null, "NotWoven", null, null, classBytes);
+        byte[] woven = transformer.transform(null, "Woven", null, null, classBytes);
+        // retransformation always goes through the weaver
+        transformer.transform(null, "NotWoven", Object.class, null, classBytes);
+
+        // then
+        assertThat(notWoven).isNull();
+        assertThat(woven).isNotNull();
+        assertThat(delegate.calls).isEqualTo(2);
+        assertThat(weavingCost.getClassesFromCache()).isEqualTo(1);
+        assertThat(weavingCost.getClassesInspected()).isEqualTo(2);
+    }
+
+    // "weaves" every class other than NotWoven, by returning the given bytes
+    private static class TestTransformer implements ClassFileTransformer {
+
+        private final byte[] wovenBytes;
+
+        private int calls;
+
+        private TestTransformer(byte[] wovenBytes) {
+            this.wovenBytes = wovenBytes;
+        }
+
+        @Override
+        public byte /*@Nullable*/ [] transform(@Nullable ClassLoader loader,
+                @Nullable String className, @Nullable Class<?> classBeingRedefined,
+                @Nullable ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            calls++;
+            if ("NotWoven".equals(className)) {
+                return null;
+            }
+            return wovenBytes;
+        }
+    }
+}
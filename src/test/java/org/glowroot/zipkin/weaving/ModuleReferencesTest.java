@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ModuleReferencesTest {
+
+    @Test
+    public void testFindModules() throws Exception {
+        // given
+        byte[] classBytes = TestClassFiles.referencing("java/lang/Object",
+                "org/glowroot/xyzzy/instrumentation/servlet/ServletAspect",
+                "org/glowroot/xyzzy/instrumentation/jdbc/StatementAspect$ExecuteAdvice",
+                "org/glowroot/xyzzy/instrumentation/api/Agent",
+                "org/glowroot/xyzzy/instrumentation/jdbc/PreparedStatementAspect");
+
+        // when
+        // then
+        assertThat(ModuleReferences.find(classBytes)).containsExactly("jdbc", "servlet");
+    }
+
+    @Test
+    public void testFindNoModules() throws Exception {
+        // given
+        byte[] classBytes = TestClassFiles.referencing("java/lang/Object",
+                "com/example/org/glowroot/xyzzy/instrumentation/servlet/Shaded");
+
+        // when
+        // then
+        assertThat(ModuleReferences.find(classBytes)).isEmpty();
+    }
+}
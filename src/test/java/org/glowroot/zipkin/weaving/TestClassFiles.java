@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// class files with just a constant pool, which is all that ModuleReferences reads
+class TestClassFiles {
+
+    private TestClassFiles() {}
+
+    static byte[] referencing(String... classNames) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(classNames.length * 4 + 3);
+        // entries that are not utf8 must be skipped over correctly
+        out.writeByte(5); // long
+        out.writeLong(Long.MAX_VALUE);
+        for (String className : classNames) {
+            out.writeByte(1); // utf8
+            out.writeUTF(className);
+            out.writeByte(7); // class
+            out.writeShort(1);
+            out.writeByte(1); // utf8
+            out.writeUTF("(L" + className + ";)V");
+            out.writeByte(12); // name and type
+            out.writeShort(1);
+            out.writeShort(2);
+        }
+        out.writeShort(0x21);
+        out.close();
+        return baos.toByteArray();
+    }
+}
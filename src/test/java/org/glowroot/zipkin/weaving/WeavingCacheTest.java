@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.zipkin.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testKeysSurviveRestart() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        for (long key = 1; key <= 100; key++) {
+            weavingCache.addNotWoven(key * 31);
+        }
+        // added keys are only visible after the next start
+        assertThat(weavingCache.isNotWoven(31)).isFalse();
+        weavingCache.close();
+
+        // when
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(100);
+        for (long key = 1; key <= 100; key++) {
+            assertThat(weavingCache.isNotWoven(key * 31)).isTrue();
+            assertThat(weavingCache.isNotWoven(key * 31 + 1)).isFalse();
+        }
+        // the journal was merged into the index
+        assertThat(dir.list()).containsOnly("0000000000000001.index", "merge.lock");
+    }
+
+    @Test
+    public void testJournalsMergedAcrossRestarts() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        weavingCache.addNotWoven(1);
+        weavingCache.addNotWoven(2);
+        weavingCache.close();
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        weavingCache.addNotWoven(2);
+        weavingCache.addNotWoven(3);
+        weavingCache.close();
+
+        // when
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(3);
+        assertThat(weavingCache.isNotWoven(3)).isTrue();
+    }
+
+    @Test
+    public void testFingerprintChange() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        weavingCache.addNotWoven(1);
+        weavingCache.close();
+        WeavingCache.open(dir, "0000000000000001", 1000).close();
+
+        // when
+        weavingCache = WeavingCache.open(dir, "0000000000000002", 1000);
+
+        // then
+        assertThat(weavingCache.isNotWoven(1)).isFalse();
+        // e.g. another application sharing the agent installation, whose cache is kept
+        assertThat(dir.list()).containsOnly("0000000000000001.index", "merge.lock");
+        assertThat(WeavingCache.open(dir, "0000000000000001", 1000).isNotWoven(1)).isTrue();
+    }
+
+    @Test
+    public void testUnusedFingerprintDeleted() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        weavingCache.addNotWoven(1);
+        weavingCache.close();
+        WeavingCache.open(dir, "0000000000000001", 1000).close();
+        File indexFile = new File(dir, "0000000000000001.index");
+        indexFile.setLastModified(
+                System.currentTimeMillis() - WeavingCache.MAX_UNUSED_MILLIS - 60000);
+
+        // when
+        WeavingCache.open(dir, "0000000000000002", 1000).close();
+
+        // then
+        assertThat(dir.list()).containsOnly("merge.lock");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFingerprintsDeleted() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= WeavingCache.MAX_FINGERPRINTS; i++) {
+            File indexFile = new File(dir, String.format("%016x.index", i));
+            new FileOutputStream(indexFile).close();
+            // fingerprint 1 is the least recently used
+            indexFile.setLastModified(now - 60000 * (WeavingCache.MAX_FINGERPRINTS - i + 1));
+        }
+
+        // when
+        WeavingCache.open(dir, "00000000000000ff", 1000).close();
+
+        // then
+        assertThat(new File(dir, "0000000000000001.index").exists()).isFalse();
+        for (int i = 2; i <= WeavingCache.MAX_FINGERPRINTS; i++) {
+            assertThat(new File(dir, String.format("%016x.index", i)).exists()).isTrue();
+        }
+    }
+
+    @Test
+    public void testStartsOverWhenFull() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 2);
+        weavingCache.addNotWoven(1);
+        weavingCache.addNotWoven(2);
+        weavingCache.close();
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 2);
+        assertThat(weavingCache.size()).isEqualTo(2);
+        weavingCache.close();
+
+        // when
+        // e.g. a new version of a class whose old version is still in the cache
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 2);
+        weavingCache.addNotWoven(3);
+        weavingCache.close();
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 2);
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPartialJournalWrite() throws Exception {
+        // given
+        File dir = temporaryFolder.getRoot();
+        WeavingCache weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+        weavingCache.addNotWoven(1);
+        weavingCache.close();
+        // e.g. the JVM was killed in the middle of writing a key
+        File journal = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".journal")) {
+                journal = file;
+            }
+        }
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        // when
+        weavingCache = WeavingCache.open(dir, "0000000000000001", 1000);
+
+        // then
+        assertThat(weavingCache.size()).isEqualTo(1);
+        assertThat(weavingCache.isNotWoven(1)).isTrue();
+    }
+
+    @Test
+    public void testKey() {
+        // given
+        byte[] classBytes = new byte[] {1, 2, 3};
+
+        // when
+        // then
+        assertThat(WeavingCache.key("a/B", classBytes))
+                .isEqualTo(WeavingCache.key("a/B", new byte[] {1, 2, 3}));
+        assertThat(WeavingCache.key("a/B", classBytes))
+                .isNotEqualTo(WeavingCache.key("a/C", classBytes));
+        assertThat(WeavingCache.key("a/B", classBytes))
+                .isNotEqualTo(WeavingCache.key("a/B", new byte[] {1, 2, 4}));
+    }
+}